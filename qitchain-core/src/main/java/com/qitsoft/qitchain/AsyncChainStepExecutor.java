@@ -0,0 +1,36 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * The chain step which does not hold a thread while it waits. The blocking
+ * {@link #execute(ChainStorage)} is used when the chain is run synchronously
+ * and waits for the returned stage by default.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public interface AsyncChainStepExecutor extends ChainStepExecutor {
+    
+    CompletionStage<Status> executeAsync(ChainStorage storage);
+    
+    @Override
+    default Status execute(ChainStorage storage) {
+        return executeAsync(storage).toCompletableFuture().join();
+    }
+    
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.annotation.ChainListenerType;
+import com.qitsoft.qitchain.listeners.ChainAfterListener;
+import com.qitsoft.qitchain.listeners.ChainAfterStepListener;
+import com.qitsoft.qitchain.listeners.ChainBatchListener;
+import com.qitsoft.qitchain.listeners.ChainBeforeListener;
+import com.qitsoft.qitchain.listeners.ChainBeforeStepListener;
+import com.qitsoft.qitchain.listeners.BaseChainListener;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the listener events on a dedicated thread. The executions publish
+ * the events into a preallocated ring buffer and continue, the dispatcher
+ * thread calls the listeners in the publishing order. The publisher waits
+ * only if the buffer is full. The listeners get the storage as it is at
+ * the time of delivery.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainEventDispatcher implements AutoCloseable {
+    
+    public enum WaitStrategy {
+        
+        BUSY_SPIN,
+        YIELDING,
+        SLEEPING,
+        BLOCKING;
+        
+    }
+    
+    private static final Logger logger = LoggerFactory.getLogger(ChainEventDispatcher.class);
+    
+    private static final int SPINS = 100;
+    
+    private static final int YIELDS = 200;
+    
+    private static final long PARK_NANOS = 100000L;
+    
+    private static final long STOPPED = Long.MIN_VALUE;
+    
+    private static final AtomicInteger DISPATCHER_NUMBER = new AtomicInteger();
+    
+    private static final Lock defaultDispatcherLock = new ReentrantLock();
+    
+    private static volatile ChainEventDispatcher defaultDispatcher;
+    
+    private final Event[] ring;
+    
+    private final int mask;
+    
+    private final int batchSize;
+    
+    private final WaitStrategy waitStrategy;
+    
+    private final AtomicLong claimed = new AtomicLong();
+    
+    private final AtomicLong consumed = new AtomicLong();
+    
+    private final Lock lock = new ReentrantLock();
+    
+    private final Condition available = lock.newCondition();
+    
+    private volatile boolean waiting;
+    
+    private volatile boolean closed;
+    
+    private final Thread thread;
+
+    public ChainEventDispatcher() {
+        this(1024, 64, WaitStrategy.SLEEPING);
+    }
+
+    public ChainEventDispatcher(int capacity, int batchSize, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("The capacity and batch size should be positive.");
+        }
+        if (waitStrategy == null) {
+            throw new IllegalArgumentException("The wait strategy cannot be null");
+        }
+        
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        ring = new Event[size];
+        for(int i = 0; i < size; i++) {
+            ring[i] = new Event();
+        }
+        this.mask = size - 1;
+        this.batchSize = batchSize;
+        this.waitStrategy = waitStrategy;
+        
+        thread = new Thread(new Runnable() {
+
+            public void run() {
+                dispatch();
+            }
+        }, "qitchain-events-" + DISPATCHER_NUMBER.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+    
+    /**
+     * The shared dispatcher used for the listeners annotated with
+     * {@code @ChainListener(async = true)}.
+     */
+    public static ChainEventDispatcher getDefault() {
+        ChainEventDispatcher result = defaultDispatcher;
+        if (result == null) {
+            defaultDispatcherLock.lock();
+            try {
+                result = defaultDispatcher;
+                if (result == null) {
+                    result = new ChainEventDispatcher();
+                    defaultDispatcher = result;
+                }
+            } finally {
+                defaultDispatcherLock.unlock();
+            }
+        }
+        return result;
+    }
+    
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+    
+    public int getBatchSize() {
+        return batchSize;
+    }
+    
+    public int getCapacity() {
+        return ring.length;
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+    
+    /**
+     * Waits until all the events published before the call are delivered.
+     */
+    public void flush() {
+        long sequence = claimed.get();
+        int idleCount = 0;
+        while(consumed.get() < sequence && thread.isAlive()) {
+            idleCount = idle(idleCount, WaitStrategy.SLEEPING);
+        }
+    }
+
+    /**
+     * Delivers the published events and stops the dispatcher thread. The
+     * events published after the close are delivered on the publishing
+     * thread. The thread stops only when no slot of the buffer is claimed
+     * beyond the delivered events, so no event is lost on close.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        signal();
+        try {
+            thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    ChainBeforeListener beforeListener(ChainBeforeListener listener) {
+        return new AsyncBeforeListener(this, listener);
+    }
+    
+    ChainAfterListener afterListener(ChainAfterListener listener) {
+        return new AsyncAfterListener(this, listener);
+    }
+    
+    ChainBeforeStepListener beforeStepListener(ChainBeforeStepListener listener) {
+        return new AsyncBeforeStepListener(this, listener);
+    }
+    
+    ChainAfterStepListener afterStepListener(ChainAfterStepListener listener) {
+        return new AsyncAfterStepListener(this, listener);
+    }
+    
+    private void publish(ChainListenerType type, BaseChainListener listener, ChainWorker worker, 
+            ChainStepExecutor step, ChainStorage storage, ChainStepExecutor.Status status) {
+        
+        long sequence = closed ? STOPPED : claim();
+        if (sequence == STOPPED) {
+            deliver(type, listener, worker, step, storage, status);
+            return;
+        }
+        
+        int idleCount = 0;
+        while(sequence - consumed.get() >= ring.length) {
+            if (!thread.isAlive()) {
+                deliver(type, listener, worker, step, storage, status);
+                return;
+            }
+            idleCount = idle(idleCount, WaitStrategy.SLEEPING);
+        }
+        
+        Event event = ring[(int) sequence & mask];
+        event.type = type;
+        event.listener = listener;
+        event.worker = worker;
+        event.step = step;
+        event.storage = storage;
+        event.status = status;
+        event.sequence = sequence;
+        
+        if (waiting) {
+            signal();
+        }
+    }
+    
+    /**
+     * Claims the next slot of the buffer, or returns {@link #STOPPED} if the
+     * dispatcher thread has already stopped.
+     */
+    private long claim() {
+        while(true) {
+            long sequence = claimed.get();
+            if (sequence == STOPPED || claimed.compareAndSet(sequence, sequence + 1)) {
+                return sequence;
+            }
+        }
+    }
+    
+    private void dispatch() {
+        List<ChainBatchListener> batchListeners = new ArrayList<ChainBatchListener>();
+        long next = 0;
+        int idleCount = 0;
+        while(true) {
+            Event event = ring[(int) next & mask];
+            if (event.sequence != next) {
+                if (closed && claimed.compareAndSet(next, STOPPED)) {
+                    return;
+                }
+                idleCount = await(idleCount, next);
+                continue;
+            }
+            
+            idleCount = 0;
+            int count = 0;
+            while(count < batchSize && event.sequence == next) {
+                deliver(event.type, event.listener, event.worker, event.step, event.storage, event.status);
+                if (event.listener instanceof ChainBatchListener && !batchListeners.contains(event.listener)) {
+                    batchListeners.add((ChainBatchListener) event.listener);
+                }
+                event.clear();
+                next++;
+                count++;
+                event = ring[(int) next & mask];
+            }
+            consumed.lazySet(next);
+            
+            for(ChainBatchListener listener : batchListeners) {
+                try {
+                    listener.onEndOfBatch();
+                } catch (Throwable ex) {
+                    logger.error("The listener " + listener + " failed at the end of batch.", ex);
+                }
+            }
+            batchListeners.clear();
+        }
+    }
+    
+    private void deliver(ChainListenerType type, BaseChainListener listener, ChainWorker worker, 
+            ChainStepExecutor step, ChainStorage storage, ChainStepExecutor.Status status) {
+        
+        try {
+            switch(type) {
+                case BEFORE:
+                    ((ChainBeforeListener) listener).onBefore(worker, storage);
+                    break;
+                case AFTER:
+                    ((ChainAfterListener) listener).onAfter(worker, storage);
+                    break;
+                case BEFORE_STEP:
+                    ((ChainBeforeStepListener) listener).onBeforeStep(worker, step, storage);
+                    break;
+                case AFTER_STEP:
+                    ((ChainAfterStepListener) listener).onAfterStep(worker, step, storage, status);
+                    break;
+                default:
+                    break;
+            }
+        } catch (Throwable ex) {
+            logger.error("The listener " + listener + " failed.", ex);
+        }
+    }
+    
+    private int await(int idleCount, long sequence) {
+        if (waitStrategy != WaitStrategy.BLOCKING) {
+            return idle(idleCount, waitStrategy);
+        }
+        
+        lock.lock();
+        try {
+            waiting = true;
+            if (ring[(int) sequence & mask].sequence != sequence && !closed) {
+                available.await(1, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waiting = false;
+            lock.unlock();
+        }
+        return idleCount + 1;
+    }
+    
+    private void signal() {
+        lock.lock();
+        try {
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private static int idle(int idleCount, WaitStrategy waitStrategy) {
+        if (waitStrategy == WaitStrategy.BUSY_SPIN) {
+            return idleCount;
+        }
+        if (idleCount >= YIELDS && waitStrategy != WaitStrategy.YIELDING) {
+            LockSupport.parkNanos(PARK_NANOS);
+        } else if (idleCount >= SPINS) {
+            Thread.yield();
+        }
+        return idleCount + 1;
+    }
+    
+    private static class Event {
+        
+        private volatile long sequence = -1;
+        
+        private ChainListenerType type;
+        
+        private BaseChainListener listener;
+        
+        private ChainWorker worker;
+        
+        private ChainStepExecutor step;
+        
+        private ChainStorage storage;
+        
+        private ChainStepExecutor.Status status;
+        
+        private void clear() {
+            listener = null;
+            worker = null;
+            step = null;
+            storage = null;
+            status = null;
+        }
+    }
+    
+    /**
+     * The base of the listeners which publish the events to a dispatcher.
+     * The dispatcher is not serialized, the deserialized listeners use the
+     * default one.
+     */
+    abstract static class AsyncListener implements Serializable {
+        
+        private transient ChainEventDispatcher dispatcher;
+        
+        private final BaseChainListener listener;
+
+        public AsyncListener(ChainEventDispatcher dispatcher, BaseChainListener listener) {
+            this.dispatcher = dispatcher;
+            this.listener = listener;
+        }
+        
+        public BaseChainListener getListener() {
+            return listener;
+        }
+        
+        protected void publish(ChainListenerType type, ChainWorker worker, 
+                ChainStepExecutor step, ChainStorage storage, ChainStepExecutor.Status status) {
+            
+            if (dispatcher == null) {
+                dispatcher = getDefault();
+            }
+            dispatcher.publish(type, listener, worker, step, storage, status);
+        }
+    }
+    
+    private static class AsyncBeforeListener extends AsyncListener implements ChainBeforeListener {
+
+        public AsyncBeforeListener(ChainEventDispatcher dispatcher, ChainBeforeListener listener) {
+            super(dispatcher, listener);
+        }
+
+        public void onBefore(ChainWorker worker, ChainStorage storage) {
+            publish(ChainListenerType.BEFORE, worker, null, storage, null);
+        }
+    }
+    
+    private static class AsyncAfterListener extends AsyncListener implements ChainAfterListener {
+
+        public AsyncAfterListener(ChainEventDispatcher dispatcher, ChainAfterListener listener) {
+            super(dispatcher, listener);
+        }
+
+        public void onAfter(ChainWorker worker, ChainStorage storage) {
+            publish(ChainListenerType.AFTER, worker, null, storage, null);
+        }
+    }
+    
+    private static class AsyncBeforeStepListener extends AsyncListener implements ChainBeforeStepListener {
+
+        public AsyncBeforeStepListener(ChainEventDispatcher dispatcher, ChainBeforeStepListener listener) {
+            super(dispatcher, listener);
+        }
+
+        public void onBeforeStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage) {
+            publish(ChainListenerType.BEFORE_STEP, worker, step, storage, null);
+        }
+    }
+    
+    private static class AsyncAfterStepListener extends AsyncListener implements ChainAfterStepListener {
+
+        public AsyncAfterStepListener(ChainEventDispatcher dispatcher, ChainAfterStepListener listener) {
+            super(dispatcher, listener);
+        }
+
+        public void onAfterStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage, ChainStepExecutor.Status status) {
+            publish(ChainListenerType.AFTER_STEP, worker, step, storage, status);
+        }
+    }
+    
+}
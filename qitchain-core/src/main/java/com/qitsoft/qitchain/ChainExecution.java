@@ -0,0 +1,624 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.listeners.ChainAfterListener;
+import com.qitsoft.qitchain.listeners.ChainAfterStepListener;
+import com.qitsoft.qitchain.listeners.ChainBeforeListener;
+import com.qitsoft.qitchain.listeners.ChainBeforeStepListener;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The state of a single run of a {@link ChainWorker}. The worker itself holds
+ * only the immutable plan, so any number of executions can run it at once.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainExecution implements Serializable {
+
+    private final ChainWorker worker;
+
+    private final ChainStorage storage;
+
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private static final String INSTANCE_ID = Long.toString(UUID.randomUUID().getMostSignificantBits() & Long.MAX_VALUE, 36);
+
+    private volatile long sequence;
+
+    private String id;
+
+    private final List<ChainStepExecutor> executedSteps = new ArrayList<ChainStepExecutor>();
+    private final List<ChainStepExecutor> skippedSteps = new ArrayList<ChainStepExecutor>();
+    private final List<ChainStepExecutor> processedSteps = new UnionList(executedSteps, skippedSteps);
+
+    private final Deque<ChainStepExecutor> notExecutedSteps;
+
+    private final Lock parkingLock = new ReentrantLock();
+
+    private final AtomicLong storageVersion = new AtomicLong();
+
+    private final Set<ChainStepExecutor> parkedSteps = Collections.newSetFromMap(new IdentityHashMap<ChainStepExecutor, Boolean>());
+    private final Map<String, List<ChainStepExecutor>> stepsByAwaitedName = new HashMap<String, List<ChainStepExecutor>>();
+    private final Map<Class, List<ChainStepExecutor>> stepsByAwaitedType = new HashMap<Class, List<ChainStepExecutor>>();
+
+    private volatile int parkedCount;
+
+    private final Queue<ChainStepExecutor> wokenSteps = new ConcurrentLinkedQueue<ChainStepExecutor>();
+
+    private volatile RuntimeException cancellation;
+
+    private transient volatile ScheduledFuture<?> deadlineTask;
+
+    private transient volatile CompletableFuture<Object> pendingResult;
+
+    private boolean started;
+
+    private boolean finished;
+
+    public ChainExecution(ChainWorker worker, Object... params) {
+        if (worker == null) {
+            throw new IllegalArgumentException("The ChainWorker cannot be null");
+        }
+
+        this.worker = worker;
+        this.storage = new ChainStorage(worker, this, params);
+        this.notExecutedSteps = new ArrayDeque<ChainStepExecutor>(worker.getSteps());
+        this.sequence = SEQUENCE.incrementAndGet();
+    }
+
+    public Object execute() {
+        if (!started) {
+            start();
+        }
+
+        while(!finished && internalExecuteNextStep());
+
+        if (!finished) {
+            finish();
+        }
+        return storage.getResult();
+    }
+
+    public CompletableFuture<Object> executeAsync(final Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor cannot be null");
+        }
+        
+        final CompletableFuture<Object> result = new CompletableFuture<Object>();
+        completeOnCancel(result);
+        executor.execute(() -> {
+            try {
+                if (!started) {
+                    start();
+                }
+                executeNextStepAsync(executor, notExecutedSteps.size(), result);
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        });
+        return result;
+    }
+
+    public Object executeNextStep(Object... params) {
+        if (finished) {
+            throw new IllegalStateException("The execution " + getId() + " is already finished.");
+        }
+        if (!started) {
+            start();
+        }
+        storage.setStepParameters(params);
+        boolean continueStatus = internalExecuteNextStep();
+
+        Object result = storage.getResult();
+        if (!continueStatus) {
+            finish();
+        }
+        return result;
+    }
+
+    public ChainWorker getChainWorker() {
+        return worker;
+    }
+
+    /**
+     * Sets the deadline of the execution. When it expires the execution is
+     * cancelled: the running steps can see it through
+     * {@link ChainStorage#isCancelled()} and the remaining steps are not
+     * executed. A running step is not interrupted, but the asynchronous
+     * results complete with {@link ChainTimeoutException} at once.
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        if (deadlineTask != null) {
+            deadlineTask.cancel(false);
+        }
+        final long owner = sequence;
+        deadlineTask = ChainTimer.schedule(() -> cancel(owner, new ChainTimeoutException(
+                "The execution " + getId() + " exceeded its deadline.")), timeout, unit);
+    }
+
+    public void cancel() {
+        cancel(sequence, new CancellationException("The execution " + getId() + " is cancelled."));
+    }
+
+    public boolean isCancelled() {
+        return cancellation != null;
+    }
+
+    public ChainStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * The id is unique within the JVM run and is built only when it is
+     * asked for.
+     */
+    public String getId() {
+        if (id == null) {
+            id = worker.getName() + "-" + INSTANCE_ID + "-" + sequence;
+        }
+        return id;
+    }
+
+    public boolean isInProgress() {
+        return started && !finished;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public List<ChainStepExecutor> getExecutedSteps() {
+        return Collections.unmodifiableList(executedSteps);
+    }
+
+    public List<ChainStepExecutor> getSkippedSteps() {
+        return Collections.unmodifiableList(skippedSteps);
+    }
+
+    public List<ChainStepExecutor> getProcessedSteps() {
+        return Collections.unmodifiableList(processedSteps);
+    }
+
+    public List<ChainStepExecutor> getNotExecutedSteps() {
+        List<ChainStepExecutor> result = new ArrayList<ChainStepExecutor>(notExecutedSteps);
+        result.addAll(wokenSteps);
+        parkingLock.lock();
+        try {
+            for(ChainStepExecutor step : parkedSteps) {
+                if (!notExecutedSteps.contains(step)) {
+                    result.add(step);
+                }
+            }
+        } finally {
+            parkingLock.unlock();
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Prepares the execution to run the chain again with the new parameters.
+     * The collections and the storage are cleared but not recreated, so the
+     * results of the previous run should not be used after the reset.
+     */
+    protected void reset(Object... params) {
+        if (isInProgress()) {
+            throw new IllegalStateException("The execution " + getId() + " is in progress.");
+        }
+        
+        executedSteps.clear();
+        skippedSteps.clear();
+        notExecutedSteps.clear();
+        List<ChainStepExecutor> steps = worker.getSteps();
+        for(int i = 0; i < steps.size(); i++) {
+            notExecutedSteps.addLast(steps.get(i));
+        }
+        
+        parkingLock.lock();
+        try {
+            parkedSteps.clear();
+            stepsByAwaitedName.clear();
+            stepsByAwaitedType.clear();
+            parkedCount = 0;
+        } finally {
+            parkingLock.unlock();
+        }
+        wokenSteps.clear();
+        
+        storage.reset(params);
+        cancelDeadline();
+        cancellation = null;
+        pendingResult = null;
+        sequence = SEQUENCE.incrementAndGet();
+        id = null;
+        started = false;
+        finished = false;
+    }
+
+    protected boolean isStarted() {
+        return started;
+    }
+
+    protected void start() {
+        started = true;
+        if (deadlineTask == null && worker.getTimeoutMillis() > 0) {
+            setTimeout(worker.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        ChainBeforeListener[] listeners = worker.getBeforeListeners();
+        if (listeners.length > 0) {
+            for(ChainBeforeListener listener : listeners) listener.onBefore(worker, storage);
+        }
+    }
+
+    protected void finish() {
+        finished = true;
+        cancelDeadline();
+        ChainAfterListener[] listeners = worker.getAfterListeners();
+        if (listeners.length > 0) {
+            for(ChainAfterListener listener : listeners) listener.onAfter(worker, storage);
+        }
+    }
+
+    protected ChainStepExecutor.Status executeStep(ChainStepExecutor step) {
+        checkCancelled();
+        ChainStepExecutor.Status status = runStep(step);
+        checkCancelled();
+        
+        return status;
+    }
+
+    /**
+     * Runs the step asynchronously. The cancellation is not checked here: the
+     * caller checks it before it takes the step and after it records the
+     * status, so the step is never lost from the lists of the execution.
+     */
+    protected CompletionStage<ChainStepExecutor.Status> executeStepAsync(final ChainStepExecutor step) {
+        if (!(step instanceof AsyncChainStepExecutor)) {
+            return CompletableFuture.completedFuture(runStep(step));
+        }
+        
+        final ScheduledFuture<?> timeoutTask = scheduleStepTimeout(step);
+        fireBeforeStep(step);
+        return ((AsyncChainStepExecutor) step).executeAsync(storage).handle((status, error) -> {
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+            if (error != null) {
+                throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+            }
+            fireAfterStep(step, status);
+            return status;
+        });
+    }
+
+    protected void stepProcessed(ChainStepExecutor step, ChainStepExecutor.Status status) {
+        notExecutedSteps.remove(step);
+        recordStep(step, status);
+    }
+
+    /**
+     * Adds the step to the executed or skipped ones, for the executions
+     * which track the not executed steps themselves.
+     */
+    protected void recordStep(ChainStepExecutor step, ChainStepExecutor.Status status) {
+        if (ChainStepExecutor.Status.SKIP == status) {
+            skippedSteps.add(step);
+        } else if (status == null || ChainStepExecutor.Status.DONE == status) {
+            executedSteps.add(step);
+        }
+    }
+
+    protected long getStorageVersion() {
+        return storageVersion.get();
+    }
+
+    /**
+     * Parks the postponed step until the storage receives an object it waits
+     * for. The step is not parked if the storage was changed since the
+     * given version. The parked count is published before the version is
+     * checked, so either this check or {@link #storageChanged} sees the
+     * other and no wakeup is lost.
+     */
+    protected boolean park(ChainStepExecutor step, long version) {
+        if (!(step instanceof AwaitingChainStepExecutor)) {
+            return false;
+        }
+        
+        AwaitingChainStepExecutor awaitingStep = (AwaitingChainStepExecutor) step;
+        String[] names = awaitingStep.getAwaitedNames();
+        Class[] types = awaitingStep.getAwaitedTypes();
+        if ((names == null || names.length == 0) && (types == null || types.length == 0)) {
+            return false;
+        }
+        
+        parkingLock.lock();
+        try {
+            parkedCount = parkedSteps.size() + 1;
+            if (storageVersion.get() != version) {
+                parkedCount = parkedSteps.size();
+                return false;
+            }
+            
+            parkedSteps.add(step);
+            if (names != null) {
+                for(String name : names) {
+                    awaitingList(stepsByAwaitedName, name).add(step);
+                }
+            }
+            if (types != null) {
+                for(Class type : types) {
+                    awaitingList(stepsByAwaitedType, type).add(step);
+                }
+            }
+            return true;
+        } finally {
+            parkingLock.unlock();
+        }
+    }
+
+    /**
+     * Called from the thread which changed the storage. The woken steps are
+     * moved to the queue by the thread running the execution.
+     */
+    protected void stepWoken(ChainStepExecutor step) {
+        wokenSteps.add(step);
+    }
+
+    void storageChanged(String name, Class type) {
+        storageVersion.incrementAndGet();
+        if (parkedCount == 0) {
+            return;
+        }
+        
+        List<ChainStepExecutor> wokenSteps = new ArrayList<ChainStepExecutor>();
+        parkingLock.lock();
+        try {
+            if (name != null) {
+                wake(stepsByAwaitedName.remove(name), wokenSteps);
+            }
+            Iterator<Map.Entry<Class, List<ChainStepExecutor>>> i = stepsByAwaitedType.entrySet().iterator();
+            while(i.hasNext()) {
+                Map.Entry<Class, List<ChainStepExecutor>> entry = i.next();
+                if (entry.getKey().isAssignableFrom(type)) {
+                    wake(entry.getValue(), wokenSteps);
+                    i.remove();
+                }
+            }
+            parkedCount = parkedSteps.size();
+        } finally {
+            parkingLock.unlock();
+        }
+        
+        for(ChainStepExecutor step : wokenSteps) {
+            stepWoken(step);
+        }
+    }
+
+    private void wake(List<ChainStepExecutor> steps, List<ChainStepExecutor> wokenSteps) {
+        if (steps == null) {
+            return;
+        }
+        for(ChainStepExecutor step : steps) {
+            if (parkedSteps.remove(step)) {
+                wokenSteps.add(step);
+            }
+        }
+    }
+
+    private static <K> List<ChainStepExecutor> awaitingList(Map<K, List<ChainStepExecutor>> map, K key) {
+        List<ChainStepExecutor> result = map.get(key);
+        if (result == null) {
+            result = new ArrayList<ChainStepExecutor>();
+            map.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Completes the result exceptionally as soon as the execution is
+     * cancelled.
+     */
+    void completeOnCancel(CompletableFuture<Object> result) {
+        pendingResult = result;
+        RuntimeException ex = cancellation;
+        if (ex != null) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Cancels the execution if it is still run by the given owner, so the
+     * timer of a previous run cannot cancel the reset execution.
+     */
+    private void cancel(long owner, RuntimeException ex) {
+        if (cancellation != null || sequence != owner) {
+            return;
+        }
+        cancellation = ex;
+        CompletableFuture<Object> result = pendingResult;
+        if (result != null) {
+            result.completeExceptionally(ex);
+        }
+    }
+
+    /**
+     * Throws a new exception on the executing thread, the original one 
+     * raised by the canceller is kept as the cause.
+     */
+    private void checkCancelled() {
+        RuntimeException ex = cancellation;
+        if (ex instanceof ChainTimeoutException) {
+            throw new ChainTimeoutException(ex.getMessage(), ex);
+        } else if (ex != null) {
+            CancellationException cancelled = new CancellationException(ex.getMessage());
+            cancelled.initCause(ex);
+            throw cancelled;
+        }
+    }
+
+    private void cancelDeadline() {
+        ScheduledFuture<?> task = deadlineTask;
+        if (task != null) {
+            task.cancel(false);
+            deadlineTask = null;
+        }
+    }
+
+    private ChainStepExecutor.Status runStep(ChainStepExecutor step) {
+        ScheduledFuture<?> timeoutTask = scheduleStepTimeout(step);
+        ChainStepExecutor.Status status;
+        try {
+            fireBeforeStep(step);
+            status = step.execute(storage);
+            fireAfterStep(step, status);
+        } finally {
+            if (timeoutTask != null) {
+                timeoutTask.cancel(false);
+            }
+        }
+        return status;
+    }
+
+    private ScheduledFuture<?> scheduleStepTimeout(final ChainStepExecutor step) {
+        if (!(step instanceof TimedChainStepExecutor)) {
+            return null;
+        }
+        
+        final long timeout = ((TimedChainStepExecutor) step).getTimeoutMillis();
+        if (timeout <= 0) {
+            return null;
+        }
+        final long owner = sequence;
+        return ChainTimer.schedule(() -> cancel(owner, new ChainTimeoutException("The step " + step 
+                + " of the execution " + getId() + " exceeded its timeout of " + timeout + " ms.")), 
+                timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void fireBeforeStep(ChainStepExecutor step) {
+        ChainBeforeStepListener[] listeners = worker.getBeforeStepListeners();
+        if (listeners.length > 0) {
+            for(ChainBeforeStepListener listener : listeners) listener.onBeforeStep(worker, step, storage);
+        }
+    }
+
+    private void fireAfterStep(ChainStepExecutor step, ChainStepExecutor.Status status) {
+        ChainAfterStepListener[] listeners = worker.getAfterStepListeners();
+        if (listeners.length > 0) {
+            for(ChainAfterStepListener listener : listeners) listener.onAfterStep(worker, step, storage, status);
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        getId();
+        out.defaultWriteObject();
+    }
+
+    private void executeNextStepAsync(final Executor executor, final int remaining, final CompletableFuture<Object> result) {
+        if (result.isDone()) {
+            return;
+        }
+        checkCancelled();
+        final int left = remaining + requeueWoken();
+        final ChainStepExecutor step = left > 0 ? notExecutedSteps.pollFirst() : null;
+        if (step == null) {
+            finish();
+            result.complete(storage.getResult());
+            return;
+        }
+        
+        final long version = storageVersion.get();
+        executeStepAsync(step).whenCompleteAsync((status, error) -> {
+            try {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else if (stepCompleted(step, status, version)) {
+                    checkCancelled();
+                    executeNextStepAsync(executor, notExecutedSteps.size(), result);
+                } else {
+                    checkCancelled();
+                    executeNextStepAsync(executor, left - 1, result);
+                }
+            } catch (Throwable ex) {
+                result.completeExceptionally(ex);
+            }
+        }, executor);
+    }
+
+    private boolean internalExecuteNextStep() {
+        checkCancelled();
+        requeueWoken();
+        int lastSize = notExecutedSteps.size();
+
+        ChainStepExecutor step;
+        int count = 0;
+        while(count < lastSize && (step = notExecutedSteps.pollFirst()) != null) {
+            long version = storageVersion.get();
+            ChainStepExecutor.Status status = runStep(step);
+
+            boolean completed = stepCompleted(step, status, version);
+            lastSize += requeueWoken();
+            checkCancelled();
+            if (completed) {
+                return notExecutedSteps.size() > 0;
+            }
+            count++;
+        }
+
+        return false;
+    }
+
+    private boolean stepCompleted(ChainStepExecutor step, ChainStepExecutor.Status status, long version) {
+        if (ChainStepExecutor.Status.POSTPONE == status) {
+            if (!park(step, version)) {
+                notExecutedSteps.addLast(step);
+            }
+        } else if (ChainStepExecutor.Status.SKIP == status) {
+            skippedSteps.add(step);
+        } else {
+            executedSteps.add(step);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Moves the woken steps to the queue and returns how many were moved.
+     */
+    private int requeueWoken() {
+        int count = 0;
+        ChainStepExecutor step;
+        while((step = wokenSteps.poll()) != null) {
+            notExecutedSteps.addLast(step);
+            count++;
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The executors for running chains. The virtual thread executor is looked up
+ * at runtime, so the library still works on the JVMs without virtual threads.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public final class ChainExecutors {
+    
+    private static final Method NEW_VIRTUAL_THREAD_EXECUTOR = findVirtualThreadExecutorFactory();
+
+    private ChainExecutors() {
+    }
+    
+    public static boolean isVirtualThreadSupported() {
+        return NEW_VIRTUAL_THREAD_EXECUTOR != null;
+    }
+    
+    public static ExecutorService newVirtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            throw new UnsupportedOperationException("The virtual threads are not supported by the JVM.");
+        }
+        
+        try {
+            return (ExecutorService) NEW_VIRTUAL_THREAD_EXECUTOR.invoke(null);
+        } catch (IllegalAccessException ex) {
+            throw new UnsupportedOperationException("Cannot access the virtual thread executor.", ex);
+        } catch (InvocationTargetException ex) {
+            throw new UnsupportedOperationException("Cannot create the virtual thread executor.", ex.getCause());
+        }
+    }
+    
+    /**
+     * The shared virtual thread executor, created on the first call.
+     */
+    public static ExecutorService virtualThreadExecutor() {
+        if (NEW_VIRTUAL_THREAD_EXECUTOR == null) {
+            throw new UnsupportedOperationException("The virtual threads are not supported by the JVM.");
+        }
+        return VirtualThreadExecutorHolder.EXECUTOR;
+    }
+
+    private static Method findVirtualThreadExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException ex) {
+            return null;
+        }
+    }
+    
+    private static final class VirtualThreadExecutorHolder {
+        
+        private static final ExecutorService EXECUTOR = newVirtualThreadExecutor();
+        
+    }
+    
+}
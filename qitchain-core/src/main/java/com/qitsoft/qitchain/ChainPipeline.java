@@ -0,0 +1,284 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs a chain as a pipeline of stages, each stage runs a range of the
+ * consecutive steps on its own thread, by default a stage per step. The
+ * items pass the stages in the order they are submitted through the bounded
+ * queues, so a stage can process the next item while the following stages
+ * are still busy with the previous ones. The submitter waits while the first
+ * queue is full, an idle stage parks its thread until it is handed an item.
+ * Each item gets its own {@link ChainExecution}, the postponed steps are
+ * retried by the last stage. The steps and the step listeners are called
+ * from the stage threads.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainPipeline implements AutoCloseable {
+    
+    private static final int SPINS = 100;
+    
+    private static final int YIELDS = 200;
+    
+    private static final long PARK_NANOS = 50000L;
+    
+    private static final AtomicInteger PIPELINE_NUMBER = new AtomicInteger();
+    
+    private final ChainWorker worker;
+    
+    private final Stage[] stages;
+    
+    private final Thread[] threads;
+    
+    private final Lock submitLock = new ReentrantLock();
+    
+    private volatile boolean closed;
+
+    public ChainPipeline(ChainWorker worker, int capacity) {
+        this(worker, capacity, null);
+    }
+
+    public ChainPipeline(ChainWorker worker, int capacity, ThreadFactory threadFactory) {
+        this(worker, capacity, worker == null ? 0 : worker.getSteps().size(), threadFactory);
+    }
+
+    /**
+     * Creates the pipeline of the given number of stages, the steps are
+     * split between them evenly keeping their order.
+     */
+    public ChainPipeline(ChainWorker worker, int capacity, int stageCount, ThreadFactory threadFactory) {
+        if (worker == null) {
+            throw new IllegalArgumentException("The ChainWorker cannot be null");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity should be positive.");
+        }
+        List<ChainStepExecutor> steps = worker.getSteps();
+        if (stageCount <= 0 && !steps.isEmpty()) {
+            throw new IllegalArgumentException("The number of stages should be positive.");
+        }
+        
+        this.worker = worker;
+        int count = Math.min(stageCount, steps.size());
+        stages = new Stage[count];
+        threads = new Thread[count];
+        for(int i = 0; i < count; i++) {
+            List<ChainStepExecutor> stageSteps = steps.subList(i * steps.size() / count, (i + 1) * steps.size() / count);
+            stages[i] = new Stage(i, stageSteps.toArray(new ChainStepExecutor[stageSteps.size()]), 
+                    new SpscQueue<Item>(capacity));
+        }
+        
+        int number = PIPELINE_NUMBER.incrementAndGet();
+        for(int i = 0; i < stages.length; i++) {
+            if (threadFactory == null) {
+                threads[i] = new Thread(stages[i], "qitchain-" + worker.getName() + "-" + number + "-stage-" + i);
+                threads[i].setDaemon(true);
+            } else {
+                threads[i] = threadFactory.newThread(stages[i]);
+            }
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+    }
+    
+    public CompletableFuture<Object> submit(Object... params) {
+        Item item = new Item(worker.createExecution(params));
+        item.execution.completeOnCancel(item.result);
+        if (stages.length == 0) {
+            try {
+                item.result.complete(item.execution.execute());
+            } catch (Throwable ex) {
+                item.result.completeExceptionally(ex);
+            }
+            return item.result;
+        }
+        
+        submitLock.lock();
+        try {
+            if (closed) {
+                throw new IllegalStateException("The pipeline of " + worker.getName() + " is closed.");
+            }
+            put(stages[0], item);
+        } finally {
+            submitLock.unlock();
+        }
+        return item.result;
+    }
+    
+    public ChainWorker getChainWorker() {
+        return worker;
+    }
+    
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Stops accepting the items and waits until the submitted ones pass
+     * all the stages.
+     */
+    @Override
+    public void close() {
+        submitLock.lock();
+        try {
+            closed = true;
+        } finally {
+            submitLock.unlock();
+        }
+        if (stages.length > 0) {
+            stages[0].wake();
+        }
+        
+        try {
+            for(Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static void put(Stage stage, Item item) {
+        int idleCount = 0;
+        while(!stage.input.offer(item)) {
+            idleCount = idle(idleCount);
+        }
+        stage.wake();
+    }
+    
+    private static int idle(int idleCount) {
+        if (idleCount >= YIELDS) {
+            LockSupport.parkNanos(PARK_NANOS);
+        } else if (idleCount >= SPINS) {
+            Thread.yield();
+        }
+        return idleCount + 1;
+    }
+    
+    private static class Item {
+        
+        private final ChainExecution execution;
+        
+        private final CompletableFuture<Object> result = new CompletableFuture<Object>();
+
+        public Item(ChainExecution execution) {
+            this.execution = execution;
+        }
+    }
+    
+    private class Stage implements Runnable {
+        
+        private final int index;
+        
+        private final ChainStepExecutor[] steps;
+        
+        private final SpscQueue<Item> input;
+        
+        private volatile boolean done;
+        
+        private volatile Thread sleeper;
+
+        public Stage(int index, ChainStepExecutor[] steps, SpscQueue<Item> input) {
+            this.index = index;
+            this.steps = steps;
+            this.input = input;
+        }
+
+        public void run() {
+            try {
+                int idleCount = 0;
+                while(true) {
+                    Item item = input.poll();
+                    if (item != null) {
+                        idleCount = 0;
+                        process(item);
+                    } else if (isUpstreamDone() && input.isEmpty()) {
+                        break;
+                    } else if (idleCount < YIELDS) {
+                        idleCount = idle(idleCount);
+                    } else {
+                        sleep();
+                    }
+                }
+            } finally {
+                done = true;
+                if (index < stages.length - 1) {
+                    stages[index + 1].wake();
+                }
+            }
+        }
+        
+        /**
+         * Parks the stage thread until an item is put or the upstream is
+         * done. The sleeper is published before the queue is checked and
+         * the producers publish the item before they check the sleeper, so
+         * one of them always sees the other.
+         */
+        private void sleep() {
+            sleeper = Thread.currentThread();
+            if (input.isEmpty() && !isUpstreamDone()) {
+                LockSupport.park(this);
+            }
+            sleeper = null;
+        }
+        
+        private void wake() {
+            Thread thread = sleeper;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+        
+        private boolean isUpstreamDone() {
+            return index == 0 ? closed : stages[index - 1].done;
+        }
+        
+        private void process(Item item) {
+            ChainExecution execution = item.execution;
+            try {
+                if (index == 0) {
+                    execution.start();
+                }
+                
+                for(ChainStepExecutor step : steps) {
+                    ChainStepExecutor.Status status = execution.executeStep(step);
+                    if (ChainStepExecutor.Status.POSTPONE != status) {
+                        execution.stepProcessed(step, status);
+                    }
+                }
+                
+                if (index == stages.length - 1) {
+                    item.result.complete(execution.execute());
+                } else {
+                    put(stages[index + 1], item);
+                }
+            } catch (Throwable ex) {
+                item.result.completeExceptionally(ex);
+            }
+        }
+    }
+    
+}
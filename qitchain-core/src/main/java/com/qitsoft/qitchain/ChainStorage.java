@@ -4,8 +4,20 @@
  */
 package com.qitsoft.qitchain;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 /**
  *
@@ -13,11 +25,80 @@ import java.util.*;
  */
 public class ChainStorage implements Serializable {
     
-    private final Map<Class, List> mapByClass = new Hashtable<Class, List>();
-    private final Map<String, Object> mapByName = new Hashtable<String, Object>();
+    private transient Map<Class, Values> mapByClass = new LinkedHashMap<Class, Values>();
+    private transient Map<String, Handle> mapByName = new HashMap<String, Handle>();
+    
+    /**
+     * The stored classes assignable to each of the types looked up, in the
+     * order the classes were first stored. The index is built on the first
+     * lookup of a type and is extended under the write lock when a new class
+     * is stored, so the readers iterate it without copying.
+     */
+    private transient ConcurrentMap<Class, List<Class>> classesByType = new ConcurrentHashMap<Class, List<Class>>();
+    
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    
+    /**
+     * Counts the classes becoming non-empty, so the lookups by a supertype
+     * find the class stored first even after the storage is reset.
+     */
+    private transient long storedClasses;
+    
+    /**
+     * The slot indexes of the names, shared by the storages of the chain.
+     */
+    private transient StorageLayout layout;
+    
+    /**
+     * The values of the {@link StorageKey keys} by the slot indexes. They are
+     * read optimistically and serialized by the names since the indexes
+     * depend on the order the names were first used.
+     */
+    private transient Object[] slots;
+    
+    /**
+     * The primitive values, kept unboxed next to the slots. The kind tells
+     * whether the slot holds an int, a long or the bits of a double.
+     */
+    private transient long[] primitives;
+    
+    private transient byte[] kinds;
+    
+    /**
+     * Whether any object was stored by name, so the slot writes should
+     * remove the object of the same name.
+     */
+    private transient volatile boolean hasNames;
+    
+    private transient StampedLock slotsLock = new StampedLock();
+    
+    /**
+     * The primitive values of the names without a slot, so the names made
+     * up at run time do not grow the layout shared by the storages of the
+     * chain. Guarded by the slots lock.
+     */
+    private transient Map<String, Primitive> namedPrimitives;
+    
+    private transient volatile boolean hasNamedPrimitives;
+    
+    private static final byte NONE = 0;
+    
+    private static final byte INT = 1;
+    
+    private static final byte LONG = 2;
+    
+    private static final byte DOUBLE = 3;
     
     private ChainWorker chainWorker;
     
+    /**
+     * The shared layer read when the storage itself has no object of the
+     * type or name.
+     */
+    private ChainStorageLayer base;
+    
+    private ChainExecution execution;
+    
     private Object[] parameters;
     
     private Object[] stepParameters;
@@ -25,28 +106,86 @@ public class ChainStorage implements Serializable {
     private Object result;
 
     public ChainStorage(ChainWorker worker, Object[] parameters) {
+        this(worker, null, parameters);
+    }
+
+    ChainStorage(ChainWorker worker, ChainExecution execution, Object[] parameters) {
         if (worker == null) {
             throw new IllegalArgumentException("The ChainWorker cannot be null");
         }
         
         this.chainWorker = worker;
+        this.layout = layoutOf(worker);
+        this.slots = new Object[layout.size()];
+        this.primitives = new long[slots.length];
+        this.kinds = new byte[slots.length];
+        this.base = baseOf(worker);
+        this.execution = execution;
         this.parameters = parameters;
     }
     
+    /**
+     * Returns the last stored object of the type. If there is none, the last
+     * stored object of the assignable class which was stored the earliest is
+     * returned, and then the one of the shared layer.
+     */
     public <T> T get(Class<T> type) {
-        List list = internalList(type);
-        if (list == null || list.isEmpty()) {
-            return null;
+        Object value = null;
+        lock.readLock().lock();
+        try {
+            Values values = mapByClass.get(type);
+            if (values == null || values.head == null) {
+                List<Class> classes = assignableClasses(type);
+                Values first = null;
+                for(int i = 0; i < classes.size(); i++) {
+                    values = mapByClass.get(classes.get(i));
+                    if (values.head != null && (first == null || values.since < first.since)) {
+                        first = values;
+                    }
+                }
+                if (first != null) {
+                    value = first.head.value;
+                }
+            } else {
+                value = values.head.value;
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        
-        return (T) list.get(0);
+        if (value == null && base != null) {
+            return base.get(type);
+        }
+        return (T) resolve(value);
     } 
     
+    /**
+     * Returns the value of the key, or the object stored under its name. The
+     * value of another type stored under the same name is not returned.
+     */
+    public <T> T get(StorageKey<T> key) {
+        Object value = readSlotValue(layout.indexOf(key));
+        if (value == null) {
+            value = getNamedValue(key.getName());
+        }
+        return key.getType().isInstance(value) ? (T) value : null;
+    }
+    
+    /**
+     * Returns the object stored under the name, by the name itself or by a
+     * {@link StorageKey key} or a primitive setter.
+     */
     public Object get(String name) {
         if (name == null) {
             return null;
         }
-        return mapByName.get(name);
+        int index = layout.indexOf(name);
+        if (index >= 0) {
+            Object value = readSlotValue(index);
+            if (value != null) {
+                return value;
+            }
+        }
+        return getNamedValue(name);
     }
     
     public <T> T get(String name, Class<T> type) {
@@ -62,51 +201,429 @@ public class ChainStorage implements Serializable {
         }
     }
     
+    /**
+     * Returns a copy of the objects of the type, the newest first. If there
+     * are none, the objects of all the classes assignable to the type are
+     * returned. The objects of the shared layer follow the own ones.
+     */
     public <T> List<T> list(Class<T> type) {
-        List list = internalList(type);
-        if (list.isEmpty()) {
-            list = listByDescendants(type);
+        final List<T> result = new ArrayList<T>();
+        forEach(type, item -> result.add(item));
+        return Collections.unmodifiableList(result);
+    }
+    
+    /**
+     * Passes the objects which {@link #list(Class)} would return to the
+     * consumer without copying them. The consumer is called under the read
+     * lock, so it should not change the storage. Once a lazy value is met,
+     * it and the objects after it are copied and passed after the lock is
+     * released, so the lazy values are computed outside of the lock.
+     */
+    public <T> void forEach(Class<T> type, Consumer<? super T> consumer) {
+        List<Object> pending = null;
+        lock.readLock().lock();
+        try {
+            Values values = mapByClass.get(type);
+            if (values != null && values.head != null) {
+                pending = values.forEach(consumer, pending);
+            } else {
+                List<Class> classes = assignableClasses(type);
+                for(int i = 0; i < classes.size(); i++) {
+                    pending = mapByClass.get(classes.get(i)).forEach(consumer, pending);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (pending != null) {
+            for(int i = 0; i < pending.size(); i++) {
+                consumer.accept((T) resolve(pending.get(i)));
+            }
+        }
+        if (base != null) {
+            base.forEach(type, consumer);
+        }
+    }
+    
+    /**
+     * Removes the objects which {@link #list(Class)} would return and passes
+     * them to the consumer, the newest first. The objects are detached under
+     * the lock at once, the consumer is called after it is released. The
+     * shared layer is left as is.
+     */
+    public <T> int drain(Class<T> type, Consumer<? super T> consumer) {
+        Handle first = null;
+        Handle last = null;
+        lockForWrite();
+        try {
+            Values values = mapByClass.get(type);
+            if (values != null && values.head != null) {
+                first = values.head;
+                last = values.detach();
+            } else {
+                List<Class> classes = assignableClasses(type);
+                for(int i = 0; i < classes.size(); i++) {
+                    values = mapByClass.get(classes.get(i));
+                    if (values.head != null) {
+                        Handle head = values.head;
+                        Handle tail = values.detach();
+                        if (first == null) {
+                            first = head;
+                        } else {
+                            last.next = head;
+                        }
+                        last = tail;
+                    }
+                }
+            }
+            
+            for(Handle handle = first; handle != null; handle = handle.next) {
+                if (handle.name != null) {
+                    mapByName.remove(handle.name);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        int count = 0;
+        for(Handle handle = first; handle != null; handle = handle.next) {
+            consumer.accept((T) resolve(handle.value));
+            count++;
+        }
+        return count;
+    }
+    
+    /**
+     * Stores the value in the slot of the key, replacing the object stored
+     * under its name. The keyed values are not indexed by their types. It is
+     * named differently from the put methods, so the existing
+     * {@code put(null, data)} calls stay unambiguous.
+     */
+    public <T> void set(StorageKey<T> key, T value) {
+        int index = layout.indexOf(key);
+        long stamp = slotsLock.writeLock();
+        try {
+            ensureSlot(index);
+            slots[index] = value;
+            kinds[index] = NONE;
+            removeNamedPrimitive(key.getName());
+        } finally {
+            slotsLock.unlockWrite(stamp);
         }
-        return Collections.unmodifiableList(list);
+        removeNamed(key.getName());
+        
+        if (value != null) {
+            changed(key.getName(), value.getClass());
+        }
+    }
+    
+    /**
+     * Returns the int value of the key, or 0 if there is none. The values
+     * stored by the other primitive or object setters are converted.
+     */
+    public int getInt(StorageKey<Integer> key) {
+        return (int) readLong(layout.indexOf(key), key.getName());
+    }
+    
+    public int getInt(String name) {
+        return (int) readLong(layout.indexOf(name), name);
+    }
+    
+    /**
+     * Stores the int value without boxing it, replacing any value of the
+     * name. Only the keys get the slots of the chain, the value of a name
+     * without one is kept by the storage itself.
+     */
+    public void putInt(StorageKey<Integer> key, int value) {
+        writePrimitive(layout.indexOf(key), key.getName(), INT, value);
+    }
+    
+    public void putInt(String name, int value) {
+        writePrimitive(name, INT, value);
+    }
+    
+    public long getLong(StorageKey<Long> key) {
+        return readLong(layout.indexOf(key), key.getName());
+    }
+    
+    public long getLong(String name) {
+        return readLong(layout.indexOf(name), name);
+    }
+    
+    public void putLong(StorageKey<Long> key, long value) {
+        writePrimitive(layout.indexOf(key), key.getName(), LONG, value);
+    }
+    
+    public void putLong(String name, long value) {
+        writePrimitive(name, LONG, value);
+    }
+    
+    public double getDouble(StorageKey<Double> key) {
+        return readDouble(layout.indexOf(key), key.getName());
+    }
+    
+    public double getDouble(String name) {
+        return readDouble(layout.indexOf(name), name);
+    }
+    
+    public void putDouble(StorageKey<Double> key, double value) {
+        writePrimitive(layout.indexOf(key), key.getName(), DOUBLE, Double.doubleToRawLongBits(value));
+    }
+    
+    public void putDouble(String name, double value) {
+        writePrimitive(name, DOUBLE, Double.doubleToRawLongBits(value));
+    }
+    
+    /**
+     * Increments the counter of the key and returns the new value. The
+     * missing counter starts from 0.
+     */
+    public long increment(StorageKey<Long> key) {
+        return add(key, 1);
+    }
+    
+    /**
+     * Increments the counter of the name like {@link #increment(StorageKey)}.
+     * The counter stays an int if it was stored as an int, otherwise it
+     * becomes a long.
+     */
+    public long increment(String name) {
+        int index = layout.indexOf(name);
+        return index >= 0 ? add(index, name, NONE, 1) : addNamed(name, 1);
+    }
+    
+    /**
+     * Adds the delta to the counter of the key and returns the new value.
+     */
+    public long add(StorageKey<?> key, long delta) {
+        byte kind;
+        if (key.getType() == Integer.class) {
+            kind = INT;
+        } else if (key.getType() == Long.class) {
+            kind = LONG;
+        } else {
+            throw new IllegalArgumentException("The counter " + key.getName() + " should be of type " 
+                    + Integer.class.getName() + " or " + Long.class.getName() + ".");
+        }
+        return add(layout.indexOf(key), key.getName(), kind, delta);
+    }
+    
+    /**
+     * Adds the delta to the counter in the slot. The kind of NONE keeps the
+     * int counter an int and makes any other a long.
+     */
+    private long add(int index, String name, byte kind, long delta) {
+        Object named = hasNames ? getNamed(name) : null;
+        long value;
+        long stamp = slotsLock.writeLock();
+        try {
+            ensureSlot(index);
+            Primitive primitive = removeNamedPrimitive(name);
+            byte currentKind = kinds[index];
+            boolean isInt = currentKind == INT;
+            if (currentKind == DOUBLE) {
+                value = (long) Double.longBitsToDouble(primitives[index]);
+            } else if (currentKind != NONE) {
+                value = primitives[index];
+            } else if (primitive != null) {
+                value = primitive.kind == DOUBLE ? (long) Double.longBitsToDouble(primitive.value) : primitive.value;
+                isInt = primitive.kind == INT;
+            } else {
+                Object current = slots[index];
+                if (current == null) {
+                    current = named != null || base == null ? named : base.get(name);
+                }
+                value = toNumber(name, current).longValue();
+                isInt = current instanceof Integer;
+            }
+            if (kind == NONE) {
+                kind = isInt ? INT : LONG;
+            }
+            value = kind == INT ? (int) (value + delta) : value + delta;
+            slots[index] = null;
+            primitives[index] = value;
+            kinds[index] = kind;
+        } finally {
+            slotsLock.unlockWrite(stamp);
+        }
+        removeNamed(name);
+        
+        changed(name, kind == INT ? Integer.class : Long.class);
+        return value;
+    }
+    
+    /**
+     * Adds the delta to the counter of the name without a slot like
+     * {@link #add(int, String, byte, long)} with the kind of NONE.
+     */
+    private long addNamed(String name, long delta) {
+        Object named = hasNames ? getNamed(name) : null;
+        long value;
+        byte kind;
+        long stamp = slotsLock.writeLock();
+        try {
+            Primitive primitive = hasNamedPrimitives ? namedPrimitives.get(name) : null;
+            if (primitive == null) {
+                Object current = named != null || base == null ? named : base.get(name);
+                primitive = new Primitive(current instanceof Integer ? INT : LONG, toNumber(name, current).longValue());
+                putNamedPrimitive(name, primitive);
+            } else if (primitive.kind == DOUBLE) {
+                primitive.kind = LONG;
+                primitive.value = (long) Double.longBitsToDouble(primitive.value);
+            }
+            kind = primitive.kind;
+            value = kind == INT ? (int) (primitive.value + delta) : primitive.value + delta;
+            primitive.value = value;
+        } finally {
+            slotsLock.unlockWrite(stamp);
+        }
+        removeNamed(name);
+        
+        changed(name, kind == INT ? Integer.class : Long.class);
+        return value;
     }
     
     public void put(String name, Object data) {
+        put(name, data, data == null ? null : data.getClass());
+    }
+    
+    /**
+     * Stores the value which is computed by the supplier on the first read.
+     * The concurrent readers wait for the single computation. The type of
+     * the value is not known before it is computed, so it is found by the
+     * name only; use {@link #putLazy(String, Class, Supplier)} to find it by
+     * the type too.
+     */
+    public void putLazy(String name, Supplier<?> supplier) {
+        put(name, new Lazy(supplier), Object.class);
+    }
+    
+    /**
+     * Stores the value computed by the supplier on the first read under the
+     * name, indexed by the given type.
+     */
+    public <T> void putLazy(String name, Class<T> type, Supplier<? extends T> supplier) {
+        put(name, new Lazy(supplier), checkType(type));
+    }
+    
+    /**
+     * Stores the value computed by the supplier on the first read like
+     * {@link #putLazy(String, Supplier)}, indexed by the given type.
+     */
+    public <T> void putLazy(Class<T> type, Supplier<? extends T> supplier) {
+        put(null, new Lazy(supplier), checkType(type));
+    }
+    
+    /**
+     * Stores the result of the future. The readers wait for it to complete.
+     * Like {@link #putLazy(String, Supplier)}, it is found by the name only.
+     */
+    public void putFuture(String name, Future<?> future) {
+        put(name, new Lazy(future), Object.class);
+    }
+    
+    public <T> void putFuture(String name, Class<T> type, Future<? extends T> future) {
+        put(name, new Lazy(future), checkType(type));
+    }
+    
+    public <T> void putFuture(Class<T> type, Future<? extends T> future) {
+        put(null, new Lazy(future), checkType(type));
+    }
+    
+    private static <T> Class<T> checkType(Class<T> type) {
+        if (type == null) {
+            throw new IllegalArgumentException("The type cannot be null.");
+        }
+        return type;
+    }
+    
+    /**
+     * Stores the object under the name and indexes it by the type. The value
+     * of the name kept in its slot is cleared.
+     */
+    private void put(String name, Object data, Class type) {
         if (name == null) {
-            put(data);
+            add(data, type);
             return;
         }
         
-        Object prevObject;
+        lockForWrite();
+        try {
+            Handle prevHandle;
 
-        if (data == null) {
-            prevObject = mapByName.remove(name);
-            if (prevObject != null) {
-                removeObject(prevObject, prevObject.getClass());
+            if (data == null) {
+                prevHandle = mapByName.remove(name);
+            } else {
+                prevHandle = mapByName.put(name, internalPut(data, type, name));
+                hasNames = true;
             }
-        } else {
-            prevObject = mapByName.put(name, data);
-            removeObject(prevObject, data.getClass());
-            put(data);
+            if (prevHandle != null) {
+                prevHandle.unlink();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        
+        int index = layout.indexOf(name);
+        if (index >= 0 || hasNamedPrimitives) {
+            clearSlot(index, name);
+        }
+        
+        if (data != null) {
+            changed(name, type);
         }
     }
     
     public void put(Object data) {
+        add(data);
+    }
+    
+    /**
+     * Stores the object like {@link #put(Object)} and returns the handle to
+     * remove it later without searching.
+     */
+    public Handle add(Object data) {
+        return add(data, data == null ? null : data.getClass());
+    }
+    
+    private Handle add(Object data, Class type) {
         if (data == null) {
-            return;
+            return null;
         }
         
-        List list = mapByClass.get(data.getClass());
-        if (list == null) {
-            list = new ArrayList();
-            mapByClass.put(data.getClass(), list);
+        Handle handle;
+        lockForWrite();
+        try {
+            handle = internalPut(data, type, null);
+        } finally {
+            lock.writeLock().unlock();
         }
-        list.add(0, data);
+        
+        changed(null, type);
+        return handle;
+    }
+    
+    /**
+     * Whether the execution is cancelled or timed out. The long running
+     * steps should check it and stop.
+     */
+    public boolean isCancelled() {
+        return execution != null && execution.isCancelled();
     }
     
     public ChainWorker getChainWorker() {
         return chainWorker;
     }
 
+    public ChainStorageLayer getSharedLayer() {
+        return base;
+    }
+
+    public ChainExecution getExecution() {
+        return execution;
+    }
+
     public Object[] getParameters() {
         return parameters;
     }
@@ -127,37 +644,668 @@ public class ChainStorage implements Serializable {
         this.stepParameters = stepParameters;
     }
     
-    private <T> List<T> internalList(Class<T> type) {
-        List list = mapByClass.get(type);
-        if (list == null) {
-            list = new ArrayList();
+    void reset(Object[] parameters) {
+        lock.writeLock().lock();
+        try {
+            if (!mapByClass.isEmpty()) {
+                for(Values values : mapByClass.values()) {
+                    values.detach();
+                }
+            }
+            mapByName.clear();
+            hasNames = false;
+            this.base = baseOf(chainWorker);
+            this.parameters = parameters;
+            long stamp = slotsLock.writeLock();
+            Arrays.fill(slots, null);
+            Arrays.fill(kinds, NONE);
+            if (hasNamedPrimitives) {
+                namedPrimitives.clear();
+                hasNamedPrimitives = false;
+            }
+            slotsLock.unlockWrite(stamp);
+            this.stepParameters = null;
+            this.result = null;
+        } finally {
+            lock.writeLock().unlock();
         }
-
-        return list;
     }
     
-    private void removeObject(Object prev, Class type) {
-        List list = internalList(type);
-        Iterator i = list.iterator();
-        while(i.hasNext()) {
-            Object o = i.next();
-            if (o == prev) {
-                i.remove();
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        lock.readLock().lock();
+        try {
+            out.writeInt(mapByClass.size());
+            for(Values typedValues : mapByClass.values()) {
+                out.writeInt(typedValues.size);
+                for(Handle handle = typedValues.tail; handle != null; handle = handle.prev) {
+                    out.writeObject(resolve(handle.value));
+                    out.writeObject(handle.name);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        Map<String, Object> values = new HashMap<String, Object>();
+        long stamp = slotsLock.readLock();
+        try {
+            for(int i = 0; i < slots.length; i++) {
+                if (slots[i] != null || kinds[i] != NONE) {
+                    values.put(layout.nameOf(i), readSlot(i));
+                }
+            }
+            if (hasNamedPrimitives) {
+                for(Map.Entry<String, Primitive> entry : namedPrimitives.entrySet()) {
+                    values.put(entry.getKey(), box(entry.getValue().kind, entry.getValue().value));
+                }
+            }
+        } finally {
+            slotsLock.unlockRead(stamp);
+        }
+        out.writeObject(values);
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        mapByClass = new LinkedHashMap<Class, Values>();
+        mapByName = new HashMap<String, Handle>();
+        classesByType = new ConcurrentHashMap<Class, List<Class>>();
+        int classCount = in.readInt();
+        for(int i = 0; i < classCount; i++) {
+            int size = in.readInt();
+            for(int j = 0; j < size; j++) {
+                Object value = in.readObject();
+                String name = (String) in.readObject();
+                if (value == null) {
+                    continue;
+                }
+                Handle handle = internalPut(value, value.getClass(), name);
+                if (name != null) {
+                    mapByName.put(name, handle);
+                    hasNames = true;
+                }
+            }
+        }
+        
+        slotsLock = new StampedLock();
+        Map<String, Object> values = (Map<String, Object>) in.readObject();
+        layout = layoutOf(chainWorker);
+        slots = new Object[layout.size()];
+        primitives = new long[slots.length];
+        kinds = new byte[slots.length];
+        for(Map.Entry<String, Object> entry : values.entrySet()) {
+            int index = layout.indexOf(entry.getKey());
+            byte kind = kindOf(entry.getValue());
+            if (index < 0 && kind != NONE) {
+                long value = kind == DOUBLE ? Double.doubleToRawLongBits((Double) entry.getValue()) : ((Number) entry.getValue()).longValue();
+                putNamedPrimitive(entry.getKey(), new Primitive(kind, value));
+                continue;
+            }
+            if (index < 0) {
+                index = layout.index(entry.getKey());
+            }
+            ensureSlot(index);
+            slots[index] = entry.getValue();
+        }
+    }
+    
+    private void lockForWrite() {
+        if (lock.getReadHoldCount() > 0) {
+            throw new IllegalStateException("The storage cannot be changed while it is iterated.");
+        }
+        lock.writeLock().lock();
+    }
+    
+    private Handle internalPut(Object data, Class type, String name) {
+        Values values = mapByClass.get(type);
+        if (values == null) {
+            values = new Values();
+            mapByClass.put(type, values);
+            for(Map.Entry<Class, List<Class>> entry : classesByType.entrySet()) {
+                if (entry.getKey().isAssignableFrom(type)) {
+                    entry.getValue().add(type);
+                }
+            }
+        }
+        
+        if (values.head == null) {
+            values.since = ++storedClasses;
+        }
+        Handle handle = new Handle(data, name);
+        values.push(handle);
+        return handle;
+    }
+    
+    private void ensureSlot(int index) {
+        if (index >= slots.length) {
+            int length = Math.max(index + 1, layout.size());
+            slots = Arrays.copyOf(slots, length);
+            primitives = Arrays.copyOf(primitives, length);
+            kinds = Arrays.copyOf(kinds, length);
+        }
+    }
+    
+    private Object readSlotValue(int index) {
+        long stamp = slotsLock.tryOptimisticRead();
+        Object value = readSlot(index);
+        if (!slotsLock.validate(stamp)) {
+            stamp = slotsLock.readLock();
+            try {
+                value = readSlot(index);
+            } finally {
+                slotsLock.unlockRead(stamp);
+            }
+        }
+        return value;
+    }
+    
+    /**
+     * Clears the slot, if the index is not negative, and the primitive value
+     * of the name.
+     */
+    private void clearSlot(int index, String name) {
+        long stamp = slotsLock.writeLock();
+        try {
+            if (index >= 0 && index < slots.length) {
+                slots[index] = null;
+                kinds[index] = NONE;
+            }
+            removeNamedPrimitive(name);
+        } finally {
+            slotsLock.unlockWrite(stamp);
+        }
+    }
+    
+    /**
+     * Returns the primitive value of the name without a slot, or the object
+     * stored by the name.
+     */
+    private Object getNamedValue(String name) {
+        if (hasNamedPrimitives) {
+            long stamp = slotsLock.readLock();
+            try {
+                Primitive primitive = hasNamedPrimitives ? namedPrimitives.get(name) : null;
+                if (primitive != null) {
+                    return box(primitive.kind, primitive.value);
+                }
+            } finally {
+                slotsLock.unlockRead(stamp);
+            }
+        }
+        return getNamed(name);
+    }
+    
+    /**
+     * Puts the primitive value of the name, called under the write lock of
+     * the slots.
+     */
+    private void putNamedPrimitive(String name, Primitive primitive) {
+        if (namedPrimitives == null) {
+            namedPrimitives = new HashMap<String, Primitive>();
+        }
+        namedPrimitives.put(name, primitive);
+        hasNamedPrimitives = true;
+    }
+    
+    /**
+     * Removes the primitive value of the name, called under the write lock
+     * of the slots.
+     */
+    private Primitive removeNamedPrimitive(String name) {
+        return hasNamedPrimitives ? namedPrimitives.remove(name) : null;
+    }
+    
+    /**
+     * Returns the object stored by the name, or the one of the shared layer.
+     */
+    private Object getNamed(String name) {
+        Object value = null;
+        if (hasNames) {
+            lock.readLock().lock();
+            try {
+                Handle handle = mapByName.get(name);
+                value = handle == null ? null : handle.value;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+        if (value == null && base != null) {
+            return base.get(name);
+        }
+        return resolve(value);
+    }
+    
+    /**
+     * Removes the object stored by the name, which is replaced by the value
+     * of its slot.
+     */
+    private void removeNamed(String name) {
+        if (!hasNames) {
+            return;
+        }
+        lock.readLock().lock();
+        try {
+            if (!mapByName.containsKey(name)) {
                 return;
             }
+        } finally {
+            lock.readLock().unlock();
+        }
+        
+        lockForWrite();
+        try {
+            Handle handle = mapByName.remove(name);
+            if (handle != null) {
+                handle.unlink();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+    
+    /**
+     * Reads the slot boxing its primitive value. It is called both under the
+     * lock and optimistically, so the arrays are checked separately.
+     */
+    private Object readSlot(int index) {
+        Object[] currentSlots = slots;
+        Object value = index < currentSlots.length ? currentSlots[index] : null;
+        if (value == null) {
+            byte[] currentKinds = kinds;
+            long[] currentPrimitives = primitives;
+            if (index < currentKinds.length && index < currentPrimitives.length) {
+                return box(currentKinds[index], currentPrimitives[index]);
+            }
+        }
+        return value;
+    }
+    
+    private static Object box(byte kind, long value) {
+        switch (kind) {
+            case INT:
+                return (int) value;
+            case LONG:
+                return value;
+            case DOUBLE:
+                return Double.longBitsToDouble(value);
+            default:
+                return null;
+        }
+    }
+    
+    private static byte kindOf(Object value) {
+        if (value instanceof Integer) {
+            return INT;
+        } else if (value instanceof Long) {
+            return LONG;
+        } else if (value instanceof Double) {
+            return DOUBLE;
+        }
+        return NONE;
+    }
+    
+    private long readLong(int index, String name) {
+        if (index >= 0) {
+            long stamp = slotsLock.tryOptimisticRead();
+            byte kind = readKind(index);
+            long value = readPrimitive(index);
+            if (!slotsLock.validate(stamp)) {
+                stamp = slotsLock.readLock();
+                try {
+                    kind = readKind(index);
+                    value = readPrimitive(index);
+                } finally {
+                    slotsLock.unlockRead(stamp);
+                }
+            }
+            if (kind == DOUBLE) {
+                return (long) Double.longBitsToDouble(value);
+            } else if (kind != NONE) {
+                return value;
+            }
+        }
+        if (hasNamedPrimitives) {
+            long stamp = slotsLock.readLock();
+            try {
+                Primitive primitive = hasNamedPrimitives ? namedPrimitives.get(name) : null;
+                if (primitive != null) {
+                    return primitive.kind == DOUBLE ? (long) Double.longBitsToDouble(primitive.value) : primitive.value;
+                }
+            } finally {
+                slotsLock.unlockRead(stamp);
+            }
+        }
+        return toNumber(name, get(name)).longValue();
+    }
+    
+    private double readDouble(int index, String name) {
+        if (index >= 0) {
+            long stamp = slotsLock.tryOptimisticRead();
+            byte kind = readKind(index);
+            long value = readPrimitive(index);
+            if (!slotsLock.validate(stamp)) {
+                stamp = slotsLock.readLock();
+                try {
+                    kind = readKind(index);
+                    value = readPrimitive(index);
+                } finally {
+                    slotsLock.unlockRead(stamp);
+                }
+            }
+            if (kind == DOUBLE) {
+                return Double.longBitsToDouble(value);
+            } else if (kind != NONE) {
+                return value;
+            }
+        }
+        if (hasNamedPrimitives) {
+            long stamp = slotsLock.readLock();
+            try {
+                Primitive primitive = hasNamedPrimitives ? namedPrimitives.get(name) : null;
+                if (primitive != null) {
+                    return primitive.kind == DOUBLE ? Double.longBitsToDouble(primitive.value) : primitive.value;
+                }
+            } finally {
+                slotsLock.unlockRead(stamp);
+            }
+        }
+        return toNumber(name, get(name)).doubleValue();
+    }
+    
+    private static Number toNumber(String name, Object value) {
+        if (value == null) {
+            return 0;
+        } else if (!(value instanceof Number)) {
+            throw new IllegalArgumentException("The value of " + name + " is not a number.");
+        }
+        return (Number) value;
+    }
+    
+    private byte readKind(int index) {
+        byte[] currentKinds = kinds;
+        return index < currentKinds.length ? currentKinds[index] : NONE;
+    }
+    
+    private long readPrimitive(int index) {
+        long[] currentPrimitives = primitives;
+        return index < currentPrimitives.length ? currentPrimitives[index] : 0;
+    }
+    
+    /**
+     * Writes the primitive value to the slot of the name, or keeps it in the
+     * storage if the name has no slot.
+     */
+    private void writePrimitive(String name, byte kind, long value) {
+        int index = layout.indexOf(name);
+        if (index >= 0) {
+            writePrimitive(index, name, kind, value);
+            return;
+        }
+        
+        long stamp = slotsLock.writeLock();
+        try {
+            Primitive primitive = hasNamedPrimitives ? namedPrimitives.get(name) : null;
+            if (primitive == null) {
+                putNamedPrimitive(name, new Primitive(kind, value));
+            } else {
+                primitive.kind = kind;
+                primitive.value = value;
+            }
+        } finally {
+            slotsLock.unlockWrite(stamp);
         }
+        removeNamed(name);
+        
+        changed(name, kind == INT ? Integer.class : kind == LONG ? Long.class : Double.class);
     }
     
-    private List listByDescendants(Class type) {
-        List resultItem = new ArrayList();
+    private void writePrimitive(int index, String name, byte kind, long value) {
+        long stamp = slotsLock.writeLock();
+        try {
+            ensureSlot(index);
+            slots[index] = null;
+            primitives[index] = value;
+            kinds[index] = kind;
+            removeNamedPrimitive(name);
+        } finally {
+            slotsLock.unlockWrite(stamp);
+        }
+        removeNamed(name);
         
-        for(Map.Entry<Class, List> entry : mapByClass.entrySet()) {
-            if (type.isAssignableFrom(entry.getKey())) {
-                resultItem.addAll(entry.getValue());
+        changed(name, kind == INT ? Integer.class : kind == LONG ? Long.class : Double.class);
+    }
+    
+    private static StorageLayout layoutOf(ChainWorker worker) {
+        StorageLayout result = worker.getStorageLayout();
+        return result != null ? result : new StorageLayout();
+    }
+    
+    private static ChainStorageLayer baseOf(ChainWorker worker) {
+        ChainStorageLayer layer = worker.getSharedStorage();
+        return layer != null ? layer : ChainStorageLayer.getGlobal();
+    }
+    
+    private static Object resolve(Object value) {
+        return value instanceof Lazy ? ((Lazy) value).get() : value;
+    }
+    
+    private void changed(String name, Class type) {
+        if (execution != null) {
+            execution.storageChanged(name, type);
+        }
+    }
+    
+    private List<Class> assignableClasses(final Class type) {
+        List<Class> result = classesByType.get(type);
+        if (result == null) {
+            result = classesByType.computeIfAbsent(type, key -> {
+                List<Class> classes = new ArrayList<Class>();
+                for(Class storedClass : mapByClass.keySet()) {
+                    if (type.isAssignableFrom(storedClass)) {
+                        classes.add(storedClass);
+                    }
+                }
+                return classes;
+            });
+        }
+        return result;
+    }
+    
+    /**
+     * The handle of a stored object.
+     */
+    public final class Handle {
+        
+        private final Object value;
+        
+        private final String name;
+        
+        private Values values;
+        
+        private Handle prev;
+        
+        private Handle next;
+
+        private Handle(Object value, String name) {
+            this.value = value;
+            this.name = name;
+        }
+
+        public Object get() {
+            return resolve(value);
+        }
+        
+        public boolean isRemoved() {
+            lock.readLock().lock();
+            try {
+                return values == null;
+            } finally {
+                lock.readLock().unlock();
             }
         }
         
-        return resultItem;
+        /**
+         * Removes the object from the storage, if it is still there.
+         */
+        public void remove() {
+            lockForWrite();
+            try {
+                if (values != null) {
+                    if (name != null && mapByName.get(name) == this) {
+                        mapByName.remove(name);
+                    }
+                    unlink();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+        
+        private void unlink() {
+            if (values != null) {
+                values.unlink(this);
+            }
+        }
+    }
+    
+    /**
+     * The objects of a class, the newest first.
+     */
+    private static class Values {
+        
+        private Handle head;
+        
+        private Handle tail;
+        
+        private int size;
+        
+        private long since;
+        
+        private void push(Handle handle) {
+            handle.values = this;
+            handle.next = head;
+            if (head != null) {
+                head.prev = handle;
+            } else {
+                tail = handle;
+            }
+            head = handle;
+            size++;
+        }
+        
+        private void unlink(Handle handle) {
+            if (handle.prev != null) {
+                handle.prev.next = handle.next;
+            } else {
+                head = handle.next;
+            }
+            if (handle.next != null) {
+                handle.next.prev = handle.prev;
+            } else {
+                tail = handle.prev;
+            }
+            handle.prev = null;
+            handle.next = null;
+            handle.values = null;
+            size--;
+        }
+        
+        /**
+         * Empties the list and returns its former tail. The detached handles
+         * keep their links, so the chain can still be walked.
+         */
+        private Handle detach() {
+            Handle result = tail;
+            for(Handle handle = head; handle != null; handle = handle.next) {
+                handle.values = null;
+            }
+            head = null;
+            tail = null;
+            size = 0;
+            return result;
+        }
+        
+        /**
+         * Passes the values to the consumer until the first lazy one, which
+         * is added with the values after it to the pending values. Returns
+         * the pending values, which are null if there are none.
+         */
+        private <T> List<Object> forEach(Consumer<? super T> consumer, List<Object> pending) {
+            for(Handle handle = head; handle != null; handle = handle.next) {
+                if (pending == null && !(handle.value instanceof Lazy)) {
+                    consumer.accept((T) handle.value);
+                } else {
+                    if (pending == null) {
+                        pending = new ArrayList<Object>();
+                    }
+                    pending.add(handle.value);
+                }
+            }
+            return pending;
+        }
+    }
+    
+    /**
+     * The primitive value of a name without a slot, changed in place.
+     */
+    private static final class Primitive {
+        
+        private byte kind;
+        
+        private long value;
+
+        private Primitive(byte kind, long value) {
+            this.kind = kind;
+            this.value = value;
+        }
+    }
+    
+    /**
+     * The value computed on the first read. The supplier is wrapped into a
+     * {@link FutureTask}, so it runs once and the concurrent readers wait for
+     * it; the foreign futures are only waited for.
+     */
+    private static final class Lazy {
+        
+        private final Future<?> future;
+        
+        private final boolean owned;
+
+        private Lazy(Supplier<?> supplier) {
+            if (supplier == null) {
+                throw new IllegalArgumentException("The supplier cannot be null.");
+            }
+            this.future = new FutureTask<Object>(supplier::get);
+            this.owned = true;
+        }
+
+        private Lazy(Future<?> future) {
+            if (future == null) {
+                throw new IllegalArgumentException("The future cannot be null.");
+            }
+            this.future = future;
+            this.owned = false;
+        }
+        
+        private Object get() {
+            if (owned && !future.isDone()) {
+                ((FutureTask<?>) future).run();
+            }
+            try {
+                return future.get();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the value.", ex);
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                } else if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw new IllegalStateException("The value cannot be computed.", ex.getCause());
+            }
+        }
     }
     
 }
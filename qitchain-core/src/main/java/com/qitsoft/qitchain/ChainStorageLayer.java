@@ -0,0 +1,219 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * The immutable layer of the reference data shared by the executions. The
+ * {@link ChainStorage} reads the layer of its {@link ChainWorker#getSharedStorage() worker},
+ * or the {@link #getGlobal() global} one, when it has no object of its own,
+ * so the reference objects are neither copied nor put into each storage.
+ * The layer is built once and is safe to read from any thread.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public final class ChainStorageLayer implements Serializable {
+    
+    private static final Object[] EMPTY = new Object[0];
+    
+    private static volatile ChainStorageLayer global;
+    
+    private final Map<String, Object> byName;
+    
+    /**
+     * The objects of each class, the newest first, in the order the classes
+     * were first stored.
+     */
+    private final Map<Class, Object[]> byClass;
+    
+    private transient volatile ConcurrentMap<Class, Object[]> byAssignableType;
+
+    private ChainStorageLayer(Map<String, Object> byName, Map<Class, Object[]> byClass) {
+        this.byName = byName;
+        this.byClass = byClass;
+    }
+    
+    public static ChainStorageLayer getGlobal() {
+        return global;
+    }
+
+    /**
+     * Sets the layer read by the storages of the workers which have no
+     * layer of their own. The storages pick it up when they are created
+     * or reset.
+     */
+    public static void setGlobal(ChainStorageLayer layer) {
+        global = layer;
+    }
+    
+    public static Builder builder() {
+        return new Builder(null);
+    }
+    
+    /**
+     * Returns the builder of the layer which contains the objects of the
+     * parent layer overridden by the added ones.
+     */
+    public static Builder builder(ChainStorageLayer parent) {
+        return new Builder(parent);
+    }
+    
+    public Object get(String name) {
+        return name == null ? null : byName.get(name);
+    }
+    
+    /**
+     * Returns the newest object of the type, or of the first class
+     * assignable to the type like {@link ChainStorage#get(Class)}.
+     */
+    public <T> T get(Class<T> type) {
+        Object[] values = values(type);
+        return values.length == 0 ? null : (T) values[0];
+    }
+    
+    public <T> List<T> list(Class<T> type) {
+        return (List<T>) Collections.unmodifiableList(Arrays.asList(values(type)));
+    }
+    
+    public <T> void forEach(Class<T> type, Consumer<? super T> consumer) {
+        Object[] values = values(type);
+        for(int i = 0; i < values.length; i++) {
+            consumer.accept((T) values[i]);
+        }
+    }
+    
+    public boolean isEmpty() {
+        return byName.isEmpty() && byClass.isEmpty();
+    }
+    
+    private Object[] values(Class type) {
+        Object[] values = byClass.get(type);
+        if (values != null) {
+            return values;
+        }
+        
+        ConcurrentMap<Class, Object[]> cache = byAssignableType;
+        if (cache == null) {
+            cache = new ConcurrentHashMap<Class, Object[]>();
+            byAssignableType = cache;
+        }
+        values = cache.get(type);
+        if (values == null) {
+            List<Object> result = new ArrayList<Object>();
+            for(Map.Entry<Class, Object[]> entry : byClass.entrySet()) {
+                if (type.isAssignableFrom(entry.getKey())) {
+                    Collections.addAll(result, entry.getValue());
+                }
+            }
+            values = result.isEmpty() ? EMPTY : result.toArray();
+            cache.putIfAbsent(type, values);
+        }
+        return values;
+    }
+    
+    /**
+     * Collects the objects of the layer. The builder is not thread-safe.
+     */
+    public static final class Builder {
+        
+        private final Map<String, Object> byName = new HashMap<String, Object>();
+        
+        /**
+         * The objects of each class, the oldest first, so they are appended
+         * and reversed once by {@link #build()}.
+         */
+        private final Map<Class, List<Object>> byClass = new LinkedHashMap<Class, List<Object>>();
+
+        private Builder(ChainStorageLayer parent) {
+            if (parent != null) {
+                byName.putAll(parent.byName);
+                for(Map.Entry<Class, Object[]> entry : parent.byClass.entrySet()) {
+                    Object[] parentValues = entry.getValue();
+                    List<Object> values = new ArrayList<Object>(parentValues.length);
+                    for(int i = parentValues.length - 1; i >= 0; i--) {
+                        values.add(parentValues[i]);
+                    }
+                    byClass.put(entry.getKey(), values);
+                }
+            }
+        }
+        
+        public Builder put(Object data) {
+            if (data != null) {
+                List<Object> values = byClass.get(data.getClass());
+                if (values == null) {
+                    values = new ArrayList<Object>();
+                    byClass.put(data.getClass(), values);
+                }
+                values.add(data);
+            }
+            return this;
+        }
+        
+        /**
+         * Adds the named object replacing the previous object of the name.
+         */
+        public Builder put(String name, Object data) {
+            if (name == null) {
+                return put(data);
+            }
+            
+            Object prevData = data == null ? byName.remove(name) : byName.put(name, data);
+            if (prevData != null) {
+                List<Object> values = byClass.get(prevData.getClass());
+                for(int i = values.size() - 1; i >= 0; i--) {
+                    if (values.get(i) == prevData) {
+                        values.remove(i);
+                        break;
+                    }
+                }
+                if (values.isEmpty()) {
+                    byClass.remove(prevData.getClass());
+                }
+            }
+            return put(data);
+        }
+        
+        public <T> Builder put(StorageKey<T> key, T data) {
+            return put(key.getName(), data);
+        }
+        
+        public ChainStorageLayer build() {
+            Map<Class, Object[]> classes = new LinkedHashMap<Class, Object[]>();
+            for(Map.Entry<Class, List<Object>> entry : byClass.entrySet()) {
+                List<Object> values = entry.getValue();
+                Object[] newestFirst = new Object[values.size()];
+                for(int i = 0; i < newestFirst.length; i++) {
+                    newestFirst[i] = values.get(newestFirst.length - 1 - i);
+                }
+                classes.put(entry.getKey(), newestFirst);
+            }
+            return new ChainStorageLayer(new HashMap<String, Object>(byName), classes);
+        }
+    }
+    
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+/**
+ * Thrown when an execution exceeds its deadline or a step exceeds its
+ * timeout. The steps which were not executed yet are cancelled.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainTimeoutException extends RuntimeException {
+
+    public ChainTimeoutException(String message) {
+        super(message);
+    }
+
+    public ChainTimeoutException(String message, Throwable cause) {
+        super(message, cause);
+    }
+    
+}
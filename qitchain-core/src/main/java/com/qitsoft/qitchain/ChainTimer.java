@@ -0,0 +1,52 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The shared timer of the execution deadlines and step timeouts.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+final class ChainTimer {
+    
+    private static final ScheduledThreadPoolExecutor TIMER = createTimer();
+
+    private ChainTimer() {
+    }
+    
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return TIMER.schedule(task, delay, unit);
+    }
+    
+    private static ScheduledThreadPoolExecutor createTimer() {
+        ScheduledThreadPoolExecutor result = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "qitchain-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        result.setRemoveOnCancelPolicy(true);
+        return result;
+    }
+    
+}
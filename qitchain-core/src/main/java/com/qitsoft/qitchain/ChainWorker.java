@@ -4,6 +4,7 @@
  */
 package com.qitsoft.qitchain;
 
+import com.qitsoft.qitchain.annotation.ChainListener;
 import com.qitsoft.qitchain.listeners.ChainAfterListener;
 import com.qitsoft.qitchain.listeners.ChainAfterStepListener;
 import com.qitsoft.qitchain.listeners.ChainBeforeListener;
@@ -11,6 +12,12 @@ import com.qitsoft.qitchain.listeners.ChainBeforeStepListener;
 import com.qitsoft.qitchain.listeners.BaseChainListener;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  *
@@ -18,27 +25,35 @@ import java.util.*;
  */
 public class ChainWorker implements Serializable {
     
-    private final List<ChainStepExecutor> steps;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ChainWorker, AtomicReferenceArray> EXECUTION_POOL 
+            = AtomicReferenceFieldUpdater.newUpdater(ChainWorker.class, AtomicReferenceArray.class, "executionPool");
+    
+    private volatile List<ChainStepExecutor> steps;
     
     private final String name;
     
-    private String id;
+    private final Lock listenersLock = new ReentrantLock();
+    
+    private volatile ChainBeforeListener[] beforeListeners = new ChainBeforeListener[0];
+    private volatile ChainAfterListener[] afterListeners = new ChainAfterListener[0];
+    private volatile ChainBeforeStepListener[] beforeStepListeners = new ChainBeforeStepListener[0];
+    private volatile ChainAfterStepListener[] afterStepListeners = new ChainAfterStepListener[0];
+    
+    private volatile boolean asyncListeners;
     
-    private final List<ChainBeforeListener> beforeListeners = new ArrayList<ChainBeforeListener>();
-    private final List<ChainAfterListener> afterListeners = new ArrayList<ChainAfterListener>();
-    private final List<ChainBeforeStepListener> beforeStepListeners = new ArrayList<ChainBeforeStepListener>();
-    private final List<ChainAfterStepListener> afterStepListeners = new ArrayList<ChainAfterStepListener>();
+    private volatile long timeoutMillis;
     
-    private List<ChainStepExecutor> executedSteps;
-    private List<ChainStepExecutor> skippedSteps;
-    private List<ChainStepExecutor> processedSteps;
+    private volatile ChainStorageLayer sharedStorage;
     
-    private Deque<ChainStepExecutor> notExecutedSteps;
+    private volatile int executionPoolSize = Runtime.getRuntime().availableProcessors();
     
-    private ChainStorage storage;
+    private transient volatile AtomicReferenceArray<ChainExecution> executionPool;
+    
+    private final StorageLayout storageLayout = new StorageLayout();
     
     public ChainWorker(String name, List<ChainStepExecutor> steps) {
-        this.steps = steps;
+        this.steps = Collections.unmodifiableList(new ArrayList<ChainStepExecutor>(steps));
         this.name = name;
     }
     
@@ -46,141 +61,287 @@ public class ChainWorker implements Serializable {
         this(name, Arrays.asList(steps));
     }
 
-    public synchronized Object execute(Object... params) {
-        initExecution(params);
-        
-        while(internalExecuteNextStep());
-        
-        Object result = storage.getResult();
-        finishExecution();
+    /**
+     * Executes the chain with a pooled execution. The execution and its
+     * storage are reset and reused by the next calls, so the storage should
+     * not be used after the call returns. The executions which failed are
+     * not returned to the pool.
+     */
+    public Object execute(Object... params) {
+        ChainExecution execution = acquireExecution(params);
+        Object result = execution.execute();
+        releaseExecution(execution);
         return result;
     }
 
-    public synchronized Object executeNextStep(Object... params) {
-        if (!isInProgress()) {
-            initExecution(null);
-        }
-        storage.setStepParameters(params);
-        boolean continueStatus = internalExecuteNextStep();
-        
-        Object result = storage.getResult();
-        if (!continueStatus) {
-            finishExecution();
+    public CompletableFuture<Object> executeAsync(Executor executor, Object... params) {
+        return createExecution(params).executeAsync(executor);
+    }
+
+    /**
+     * Runs the whole execution as one blocking task of the executor. Used
+     * with {@link ChainExecutors#virtualThreadExecutor()} each execution gets
+     * its own virtual thread.
+     */
+    public CompletableFuture<Object> submit(Executor executor, Object... params) {
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor cannot be null");
         }
+        final ChainExecution execution = createExecution(params);
+        CompletableFuture<Object> result = CompletableFuture.supplyAsync(execution::execute, executor);
+        execution.completeOnCancel(result);
         return result;
     }
-    
-    public ChainStorage getStorage() {
-        return storage;
+
+    /**
+     * Runs the chain once for each of the parameter arrays and returns the
+     * results in the same order. A single execution and its storage are
+     * reused for all the items, unless there are asynchronous listeners
+     * which could still see the storage of the previous item.
+     */
+    public List<Object> executeBatch(List<Object[]> params) {
+        if (params == null) {
+            throw new IllegalArgumentException("The parameters cannot be null");
+        }
+        
+        List<Object> results = new ArrayList<Object>(params.size());
+        ChainExecution execution = null;
+        for(Object[] itemParams : params) {
+            if (execution == null || asyncListeners) {
+                execution = createExecution(itemParams);
+            } else {
+                execution.reset(itemParams);
+            }
+            results.add(execution.execute());
+        }
+        return results;
     }
-    
-    public String getId() {
-        return id;
+
+    public ChainExecution createExecution(Object... params) {
+        return new ChainExecution(this, params);
     }
     
     public String getName() {
         return name;
     }
 
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * Sets the deadline of each execution counted from its start, the
+     * non-positive timeout means no deadline.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public ChainStorageLayer getSharedStorage() {
+        return sharedStorage;
+    }
+
+    /**
+     * Sets the layer of the reference data read by the storages of the
+     * executions instead of the {@link ChainStorageLayer#getGlobal() global} one.
+     * Build it from the global layer to keep both.
+     */
+    public void setSharedStorage(ChainStorageLayer sharedStorage) {
+        this.sharedStorage = sharedStorage;
+    }
+
+    /**
+     * Registers the listener for each of the listener interfaces it
+     * implements. It is safe to change the listeners while the chain is
+     * executed. The listener class annotated with
+     * {@code @ChainListener(async = true)} gets the events through the
+     * {@link ChainEventDispatcher#getDefault() default dispatcher}.
+     */
     public void addListener(BaseChainListener listener) {
-        if (listener instanceof ChainBeforeListener) {
-            beforeListeners.add((ChainBeforeListener)listener);
-        } else if (listener instanceof ChainAfterListener) {
-            afterListeners.add((ChainAfterListener)listener);
-        } else if (listener instanceof ChainBeforeStepListener) {
-            beforeStepListeners.add((ChainBeforeStepListener)listener);
-        } else if (listener instanceof ChainAfterStepListener) {
-            afterStepListeners.add((ChainAfterStepListener)listener);
+        ChainListener annotation = listener == null ? null : listener.getClass().getAnnotation(ChainListener.class);
+        if (annotation != null && annotation.async()) {
+            addListener(listener, ChainEventDispatcher.getDefault());
+        } else {
+            addListener(listener, null);
         }
     }
     
-    public void removeListener(BaseChainListener listener) {
-        if (listener instanceof ChainBeforeListener) {
-            beforeListeners.remove((ChainBeforeListener)listener);
-        } else if (listener instanceof ChainAfterListener) {
-            afterListeners.remove((ChainAfterListener)listener);
-        } else if (listener instanceof ChainBeforeStepListener) {
-            beforeStepListeners.remove((ChainBeforeStepListener)listener);
-        } else if (listener instanceof ChainAfterStepListener) {
-            afterStepListeners.remove((ChainAfterStepListener)listener);
+    /**
+     * Registers the listener which gets the events asynchronously through
+     * the dispatcher, or synchronously if the dispatcher is null.
+     */
+    public void addListener(BaseChainListener listener, ChainEventDispatcher dispatcher) {
+        listenersLock.lock();
+        try {
+            if (listener instanceof ChainBeforeListener) {
+                ChainBeforeListener item = (ChainBeforeListener)listener;
+                beforeListeners = added(beforeListeners, dispatcher == null ? item : dispatcher.beforeListener(item));
+            }
+            if (listener instanceof ChainAfterListener) {
+                ChainAfterListener item = (ChainAfterListener)listener;
+                afterListeners = added(afterListeners, dispatcher == null ? item : dispatcher.afterListener(item));
+            }
+            if (listener instanceof ChainBeforeStepListener) {
+                ChainBeforeStepListener item = (ChainBeforeStepListener)listener;
+                beforeStepListeners = added(beforeStepListeners, dispatcher == null ? item : dispatcher.beforeStepListener(item));
+            }
+            if (listener instanceof ChainAfterStepListener) {
+                ChainAfterStepListener item = (ChainAfterStepListener)listener;
+                afterStepListeners = added(afterStepListeners, dispatcher == null ? item : dispatcher.afterStepListener(item));
+            }
+            if (dispatcher != null && listener != null) {
+                asyncListeners = true;
+            }
+        } finally {
+            listenersLock.unlock();
         }
     }
     
-    public boolean isInProgress() {
-        return storage != null;
+    public void removeListener(BaseChainListener listener) {
+        listenersLock.lock();
+        try {
+            beforeListeners = removed(beforeListeners, listener);
+            afterListeners = removed(afterListeners, listener);
+            beforeStepListeners = removed(beforeStepListeners, listener);
+            afterStepListeners = removed(afterStepListeners, listener);
+            asyncListeners = hasAsync(beforeListeners) || hasAsync(afterListeners) 
+                    || hasAsync(beforeStepListeners) || hasAsync(afterStepListeners);
+        } finally {
+            listenersLock.unlock();
+        }
     }
 
     public List<ChainStepExecutor> getSteps() {
-        return Collections.unmodifiableList(steps);
+        return steps;
     }
-    
-    public List<ChainStepExecutor> getExecutedSteps() {
-        if (executedSteps == null) {
-            return null;
+
+    /**
+     * Replaces the steps of the chain at once. The executions in progress
+     * finish with the steps they started with, the new and the reused
+     * pooled executions run the new steps.
+     */
+    public void setSteps(List<ChainStepExecutor> steps) {
+        if (steps == null) {
+            throw new IllegalArgumentException("The steps cannot be null.");
         }
-        return Collections.unmodifiableList(executedSteps);
+        this.steps = Collections.unmodifiableList(new ArrayList<ChainStepExecutor>(steps));
+    }
+
+    ChainBeforeListener[] getBeforeListeners() {
+        return beforeListeners;
+    }
+
+    ChainAfterListener[] getAfterListeners() {
+        return afterListeners;
+    }
+
+    ChainBeforeStepListener[] getBeforeStepListeners() {
+        return beforeStepListeners;
+    }
+
+    ChainAfterStepListener[] getAfterStepListeners() {
+        return afterStepListeners;
+    }
+    
+    StorageLayout getStorageLayout() {
+        return storageLayout;
     }
     
-    public List<ChainStepExecutor> getSkippedSteps() {
-        if (skippedSteps == null) {
-            return null;
+    public int getExecutionPoolSize() {
+        return executionPoolSize;
+    }
+
+    /**
+     * Sets how many idle executions are kept for {@link #execute(Object...)},
+     * zero disables the pooling. The idle executions of the previous pool
+     * are dropped.
+     */
+    public void setExecutionPoolSize(int executionPoolSize) {
+        if (executionPoolSize < 0) {
+            throw new IllegalArgumentException("The pool size cannot be negative.");
         }
-        return Collections.unmodifiableList(skippedSteps);
+        this.executionPoolSize = executionPoolSize;
+        this.executionPool = executionPoolSize == 0 ? null : new AtomicReferenceArray<ChainExecution>(executionPoolSize);
     }
     
-    public List<ChainStepExecutor> getProcessedSteps() {
-        if (processedSteps == null) {
-            return null;
+    private ChainExecution acquireExecution(Object[] params) {
+        AtomicReferenceArray<ChainExecution> pool = executionPool;
+        if (pool != null && !asyncListeners) {
+            int start = (int) Thread.currentThread().getId();
+            for(int i = 0; i < pool.length(); i++) {
+                int index = ((start + i) & Integer.MAX_VALUE) % pool.length();
+                ChainExecution execution = pool.get(index);
+                if (execution != null && pool.compareAndSet(index, execution, null)) {
+                    execution.reset(params);
+                    return execution;
+                }
+            }
         }
-        return Collections.unmodifiableList(processedSteps);
+        return createExecution(params);
     }
     
-    private void initExecution(Object... params) {
-        storage = new ChainStorage(this, params);
-        id = name + "-" + UUID.randomUUID().toString();
-        executedSteps = new ArrayList<ChainStepExecutor>();
-        skippedSteps = new ArrayList<ChainStepExecutor>();
-        processedSteps = new UnionList(executedSteps, skippedSteps);
-        notExecutedSteps = new LinkedList<ChainStepExecutor>(steps);
+    private void releaseExecution(ChainExecution execution) {
+        if (asyncListeners || executionPoolSize == 0) {
+            return;
+        }
         
-        for(ChainBeforeListener listener : beforeListeners) listener.onBefore(this, storage);
-    }
-
-    private void finishExecution() {
-        for(ChainAfterListener listener : afterListeners) listener.onAfter(this, storage);
-        storage = null;
-        id = null;
-        executedSteps = null;
-        skippedSteps = null;
-        processedSteps = null;
-        notExecutedSteps = null;
+        AtomicReferenceArray<ChainExecution> pool = executionPool();
+        if (pool == null) {
+            return;
+        }
+        int start = (int) Thread.currentThread().getId();
+        for(int i = 0; i < pool.length(); i++) {
+            int index = ((start + i) & Integer.MAX_VALUE) % pool.length();
+            if (pool.get(index) == null && pool.compareAndSet(index, null, execution)) {
+                return;
+            }
+        }
     }
-
-    private boolean internalExecuteNextStep() {
-        int lastSize = notExecutedSteps.size();
-            
-        ChainStepExecutor step;
-        int count = 0;
-        while( (step = notExecutedSteps.pollFirst()) != null && count < lastSize) {
-            for(ChainBeforeStepListener listener : beforeStepListeners) listener.onBeforeStep(this, step, storage);
-
-            ChainStepExecutor.Status status = step.execute(storage);
-
-            for(ChainAfterStepListener listener : afterStepListeners) listener.onAfterStep(this, step, storage, status);
-
-            if (ChainStepExecutor.Status.POSTPONE == status) {
-                notExecutedSteps.addLast(step);
+    
+    /**
+     * Returns the pool, the missing one is installed with a CAS so the 
+     * executions released concurrently end up in the same pool.
+     */
+    @SuppressWarnings("unchecked")
+    private AtomicReferenceArray<ChainExecution> executionPool() {
+        AtomicReferenceArray<ChainExecution> pool = executionPool;
+        while (pool == null) {
+            int size = executionPoolSize;
+            if (size == 0) {
+                return null;
             }
-            if (ChainStepExecutor.Status.SKIP == status) {
-                skippedSteps.add(step);
-            } else if (status == null || ChainStepExecutor.Status.DONE == status) {
-                executedSteps.add(step);
-                return notExecutedSteps.size() > 0;
+            EXECUTION_POOL.compareAndSet(this, null, new AtomicReferenceArray<ChainExecution>(size));
+            pool = executionPool;
+        }
+        return pool;
+    }
+    
+    private static boolean hasAsync(Object[] listeners) {
+        for(Object listener : listeners) {
+            if (listener instanceof ChainEventDispatcher.AsyncListener) {
+                return true;
             }
-            count++;
         }
-        
         return false;
     }
     
+    private static <T> T[] added(T[] listeners, T listener) {
+        T[] result = Arrays.copyOf(listeners, listeners.length + 1);
+        result[listeners.length] = listener;
+        return result;
+    }
+    
+    private static <T> T[] removed(T[] listeners, Object listener) {
+        for(int i = 0; i < listeners.length; i++) {
+            Object item = listeners[i] instanceof ChainEventDispatcher.AsyncListener 
+                    ? ((ChainEventDispatcher.AsyncListener) listeners[i]).getListener() : listeners[i];
+            if (item.equals(listener)) {
+                T[] result = Arrays.copyOf(listeners, listeners.length - 1);
+                System.arraycopy(listeners, i + 1, result, i, listeners.length - i - 1);
+                return result;
+            }
+        }
+        return listeners;
+    }
+    
 }
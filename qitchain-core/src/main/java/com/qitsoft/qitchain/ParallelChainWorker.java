@@ -0,0 +1,535 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.io.Serializable;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountedCompleter;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The chain worker which runs the steps as a dependency graph. A step is
+ * started as soon as all the steps it depends on are processed, so the
+ * independent steps run in parallel on the given executor. A
+ * {@link ForkJoinPool} runs the steps as forked tasks; any other executor,
+ * e.g. {@link ChainExecutors#newVirtualThreadExecutor()}, gets a task per step.
+ * Postponed steps are retried after the running steps are completed, the
+ * {@link AwaitingChainStepExecutor awaiting} ones only after the storage
+ * receives what they wait for. The steps and the step listeners are called
+ * from the executor threads, so they should be thread-safe.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ParallelChainWorker extends ChainWorker {
+
+    private volatile Graph graph;
+
+    private transient Executor executor;
+
+    public ParallelChainWorker(String name, List<ChainStepExecutor> steps, int[][] dependencies) {
+        this(name, steps, dependencies, ForkJoinPool.commonPool());
+    }
+
+    public ParallelChainWorker(String name, List<ChainStepExecutor> steps, int[][] dependencies, Executor executor) {
+        this(name, new Graph(steps, dependencies), executor);
+    }
+
+    private ParallelChainWorker(String name, Graph graph, Executor executor) {
+        super(name, graph.steps);
+        if (executor == null) {
+            throw new IllegalArgumentException("The executor cannot be null");
+        }
+
+        this.graph = graph;
+        this.executor = executor;
+    }
+
+    @Override
+    public ChainExecution createExecution(Object... params) {
+        return new ParallelChainExecution(this, params);
+    }
+
+    /**
+     * Not supported, the dependencies are bound to the positions of the
+     * steps, use {@link #setSteps(List, int[][])}.
+     */
+    @Override
+    public void setSteps(List<ChainStepExecutor> steps) {
+        throw new UnsupportedOperationException("The steps of the parallel chain are replaced with their dependencies.");
+    }
+
+    /**
+     * Replaces the steps and their dependencies at once. The executions in
+     * progress finish with the steps they started with.
+     */
+    public void setSteps(List<ChainStepExecutor> steps, int[][] dependencies) {
+        Graph newGraph = new Graph(steps, dependencies);
+        super.setSteps(newGraph.steps);
+        this.graph = newGraph;
+    }
+
+    public Executor getExecutor() {
+        return executor == null ? ForkJoinPool.commonPool() : executor;
+    }
+
+    public int[][] getDependencies() {
+        int[][] dependencies = graph.dependencies;
+        int[][] result = new int[dependencies.length][];
+        for(int i = 0; i < dependencies.length; i++) {
+            result[i] = dependencies[i].clone();
+        }
+        return result;
+    }
+
+    private static class Graph implements Serializable {
+
+        private final List<ChainStepExecutor> steps;
+
+        private final int[][] dependencies;
+
+        private final int[][] dependents;
+
+        /**
+         * Sorts the steps topologically keeping the original order of the
+         * independent steps and remaps the dependencies to the sorted indexes.
+         * The ready step with the lowest original index is taken first.
+         */
+        public Graph(List<ChainStepExecutor> originalSteps, int[][] originalDependencies) {
+            if (originalSteps == null || originalDependencies == null) {
+                throw new IllegalArgumentException("The steps and dependencies cannot be null.");
+            }
+            if (originalSteps.size() != originalDependencies.length) {
+                throw new IllegalArgumentException("The dependencies should be defined for each step.");
+            }
+
+            int size = originalSteps.size();
+            int[] inDegree = new int[size];
+            int[][] originalDependents = dependents(originalDependencies, inDegree);
+            Queue<Integer> ready = new PriorityQueue<Integer>();
+            for(int i = 0; i < size; i++) {
+                if (inDegree[i] == 0) {
+                    ready.add(i);
+                }
+            }
+            
+            int[] order = new int[size];
+            int[] position = new int[size];
+            int count = 0;
+            Integer next;
+            while((next = ready.poll()) != null) {
+                order[count] = next;
+                position[next] = count++;
+                for(int dependent : originalDependents[next]) {
+                    if (--inDegree[dependent] == 0) {
+                        ready.add(dependent);
+                    }
+                }
+            }
+            if (count < size) {
+                throw new IllegalArgumentException("The step dependencies are cyclic.");
+            }
+
+            steps = new ArrayList<ChainStepExecutor>(size);
+            dependencies = new int[size][];
+            for(int i = 0; i < size; i++) {
+                steps.add(originalSteps.get(order[i]));
+                int[] original = originalDependencies[order[i]];
+                dependencies[i] = new int[original.length];
+                for(int j = 0; j < original.length; j++) {
+                    dependencies[i][j] = position[original[j]];
+                }
+            }
+            dependents = dependents(dependencies, inDegree);
+        }
+
+        /**
+         * Inverts the dependencies and stores the number of the dependencies
+         * of each step to the given array.
+         */
+        private static int[][] dependents(int[][] dependencies, int[] inDegree) {
+            int size = dependencies.length;
+            int[] dependentsCount = new int[size];
+            for(int i = 0; i < size; i++) {
+                for(int dependency : dependencies[i]) {
+                    if (dependency < 0 || dependency >= size) {
+                        throw new IllegalArgumentException("The step dependency " + dependency + " is out of range.");
+                    }
+                    dependentsCount[dependency]++;
+                }
+                inDegree[i] = dependencies[i].length;
+            }
+
+            int[][] result = new int[size][];
+            for(int i = 0; i < size; i++) {
+                result[i] = new int[dependentsCount[i]];
+                dependentsCount[i] = 0;
+            }
+            for(int i = 0; i < size; i++) {
+                for(int dependency : dependencies[i]) {
+                    result[dependency][dependentsCount[dependency]++] = i;
+                }
+            }
+            return result;
+        }
+    }
+
+    private static class ParallelChainExecution extends ChainExecution {
+
+        private final ParallelChainWorker worker;
+
+        private final Lock lock = new ReentrantLock();
+
+        private final Queue<Integer> woken = new ConcurrentLinkedQueue<Integer>();
+
+        private Graph graph;
+
+        private volatile boolean[] processed;
+
+        public ParallelChainExecution(ParallelChainWorker worker, Object... params) {
+            super(worker, params);
+            this.worker = worker;
+            this.graph = worker.graph;
+        }
+
+        @Override
+        public Object execute() {
+            if (isStarted()) {
+                return super.execute();
+            }
+
+            start();
+
+            List<Integer> ready = new ArrayList<Integer>();
+            Round round = firstRound(ready);
+            while(!ready.isEmpty()) {
+                round.run(worker.getExecutor(), ready);
+                ready = nextReady(round);
+            }
+
+            finish();
+            return getStorage().getResult();
+        }
+
+        /**
+         * Runs the rounds without blocking a thread, the next round is
+         * started by the step which completes the previous one.
+         */
+        @Override
+        public CompletableFuture<Object> executeAsync(final Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("The executor cannot be null");
+            }
+            if (isStarted()) {
+                return super.executeAsync(executor);
+            }
+            
+            final CompletableFuture<Object> result = new CompletableFuture<Object>();
+            completeOnCancel(result);
+            executor.execute(() -> {
+                try {
+                    start();
+                    List<Integer> ready = new ArrayList<Integer>();
+                    Round round = firstRound(ready);
+                    executeRoundAsync(round, ready, result);
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            });
+            return result;
+        }
+
+        /**
+         * The steps run by the graph are tracked by their indexes.
+         */
+        @Override
+        public List<ChainStepExecutor> getNotExecutedSteps() {
+            lock.lock();
+            try {
+                if (processed == null) {
+                    return super.getNotExecutedSteps();
+                }
+                List<ChainStepExecutor> result = new ArrayList<ChainStepExecutor>();
+                for(int i = 0; i < processed.length; i++) {
+                    if (!processed[i]) {
+                        result.add(graph.steps.get(i));
+                    }
+                }
+                return Collections.unmodifiableList(result);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        protected void reset(Object... params) {
+            super.reset(params);
+            woken.clear();
+            graph = worker.graph;
+            processed = null;
+        }
+
+        @Override
+        protected void stepWoken(ChainStepExecutor step) {
+            if (processed == null) {
+                super.stepWoken(step);
+                return;
+            }
+            for(int i = 0; i < graph.steps.size(); i++) {
+                if (graph.steps.get(i) == step) {
+                    woken.add(i);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Prepares the graph run and adds the steps without dependencies to
+         * the ready ones.
+         */
+        private Round firstRound(List<Integer> ready) {
+            Graph current = graph;
+            int size = current.steps.size();
+            processed = new boolean[size];
+            AtomicIntegerArray pending = new AtomicIntegerArray(size);
+            for(int i = 0; i < size; i++) {
+                pending.set(i, current.dependencies[i].length);
+                if (current.dependencies[i].length == 0) {
+                    ready.add(i);
+                }
+            }
+            return new Round(this, current, pending);
+        }
+
+        /**
+         * Returns the postponed and the woken steps to retry, or nothing if
+         * the last round made no progress.
+         */
+        private List<Integer> nextReady(Round round) {
+            if (!round.progress && woken.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Integer> ready = new ArrayList<Integer>(round.postponed);
+            Integer index;
+            while((index = woken.poll()) != null) {
+                ready.add(index);
+            }
+            return ready;
+        }
+
+        private void executeRoundAsync(final Round round, List<Integer> ready, final CompletableFuture<Object> result) {
+            if (result.isDone()) {
+                return;
+            }
+            if (ready.isEmpty()) {
+                finish();
+                result.complete(getStorage().getResult());
+                return;
+            }
+            
+            round.runAsync(worker.getExecutor(), ready).whenComplete((ignored, error) -> {
+                try {
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        executeRoundAsync(round, nextReady(round), result);
+                    }
+                } catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            });
+        }
+
+        private void processed(int index, ChainStepExecutor.Status status) {
+            lock.lock();
+            try {
+                processed[index] = true;
+                recordStep(graph.steps.get(index), status);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Runs the ready steps and all the steps which become ready after them
+     * and collects the postponed steps for the next round. The awaiting steps
+     * are parked instead and join the round after they are woken.
+     */
+    private static class Round {
+
+        private final ParallelChainExecution execution;
+
+        private final Graph graph;
+
+        private final AtomicIntegerArray pending;
+
+        private final Queue<Integer> postponed = new ConcurrentLinkedQueue<Integer>();
+
+        private volatile boolean progress;
+
+        public Round(ParallelChainExecution execution, Graph graph, AtomicIntegerArray pending) {
+            this.execution = execution;
+            this.graph = graph;
+            this.pending = pending;
+        }
+
+        public void run(Executor executor, List<Integer> ready) {
+            postponed.clear();
+            progress = false;
+            if (executor instanceof ForkJoinPool) {
+                ((ForkJoinPool) executor).invoke(new RootTask(this, ready));
+            } else {
+                new ExecutorRoundTask(this, executor).run(ready);
+            }
+        }
+
+        public CompletableFuture<Void> runAsync(Executor executor, List<Integer> ready) {
+            postponed.clear();
+            progress = false;
+            return new ExecutorRoundTask(this, executor).start(ready);
+        }
+
+        public void executeStep(int index, Consumer<Integer> scheduler) {
+            ChainStepExecutor step = graph.steps.get(index);
+            long version = execution.getStorageVersion();
+            ChainStepExecutor.Status status = execution.executeStep(step);
+
+            if (ChainStepExecutor.Status.POSTPONE == status) {
+                if (!execution.park(step, version)) {
+                    postponed.add(index);
+                }
+            } else {
+                progress = true;
+                execution.processed(index, status);
+                for(int dependent : graph.dependents[index]) {
+                    if (pending.decrementAndGet(dependent) == 0) {
+                        scheduler.accept(dependent);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class RootTask extends CountedCompleter<Void> {
+
+        private final Round round;
+
+        private final List<Integer> ready;
+
+        public RootTask(Round round, List<Integer> ready) {
+            this.round = round;
+            this.ready = ready;
+        }
+
+        @Override
+        public void compute() {
+            for(int index : ready) {
+                addToPendingCount(1);
+                new StepTask(this, round, index).fork();
+            }
+            tryComplete();
+        }
+    }
+
+    private static class StepTask extends CountedCompleter<Void> {
+
+        private final Round round;
+
+        private final int index;
+
+        public StepTask(CountedCompleter<?> completer, Round round, int index) {
+            super(completer);
+            this.round = round;
+            this.index = index;
+        }
+
+        @Override
+        public void compute() {
+            round.executeStep(index, dependent -> {
+                addToPendingCount(1);
+                new StepTask(this, round, dependent).fork();
+            });
+            tryComplete();
+        }
+    }
+
+    private static class ExecutorRoundTask {
+
+        private final Round round;
+
+        private final Executor executor;
+
+        private final AtomicInteger running = new AtomicInteger(1);
+
+        private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+
+        public ExecutorRoundTask(Round round, Executor executor) {
+            this.round = round;
+            this.executor = executor;
+        }
+
+        public void run(List<Integer> ready) {
+            start(ready);
+            try {
+                done.join();
+            } catch (CompletionException ex) {
+                if (ex.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) ex.getCause();
+                } else if (ex.getCause() instanceof Error) {
+                    throw (Error) ex.getCause();
+                }
+                throw ex;
+            }
+        }
+
+        public CompletableFuture<Void> start(List<Integer> ready) {
+            for(int index : ready) {
+                schedule(index);
+            }
+            release();
+            return done;
+        }
+
+        private void schedule(final int index) {
+            running.incrementAndGet();
+            executor.execute(() -> {
+                try {
+                    round.executeStep(index, this::schedule);
+                } catch (Throwable ex) {
+                    done.completeExceptionally(ex);
+                } finally {
+                    release();
+                }
+            });
+        }
+
+        private void release() {
+            if (running.decrementAndGet() == 0) {
+                done.complete(null);
+            }
+        }
+    }
+
+}
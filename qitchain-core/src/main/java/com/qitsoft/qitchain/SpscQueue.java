@@ -0,0 +1,86 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The bounded lock-free ring queue for exactly one producer thread and one
+ * consumer thread. The item is published with a volatile write, so a
+ * consumer which parks after it found the queue empty can be woken by the
+ * producer reliably.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+class SpscQueue<E> {
+    
+    private final Object[] buffer;
+    
+    private final int mask;
+    
+    private final int capacity;
+    
+    private final AtomicLong head = new AtomicLong();
+    
+    private final AtomicLong tail = new AtomicLong();
+
+    public SpscQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("The capacity should be positive.");
+        }
+        
+        int size = 1;
+        while(size < capacity) {
+            size <<= 1;
+        }
+        this.buffer = new Object[size];
+        this.mask = size - 1;
+        this.capacity = capacity;
+    }
+    
+    public boolean offer(E item) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() >= capacity) {
+            return false;
+        }
+        
+        buffer[(int) currentTail & mask] = item;
+        tail.set(currentTail + 1);
+        return true;
+    }
+    
+    public E poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        
+        int index = (int) currentHead & mask;
+        E item = (E) buffer[index];
+        buffer[index] = null;
+        head.lazySet(currentHead + 1);
+        return item;
+    }
+    
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+    
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+    
+}
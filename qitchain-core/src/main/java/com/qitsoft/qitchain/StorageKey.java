@@ -0,0 +1,117 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * The typed key of the {@link ChainStorage}. The keys are meant to be
+ * constants. The storages of a chain keep the keyed values in an array; the
+ * slot of the key is assigned per chain worker and cached in the key by the
+ * id of the worker's layout, so a key shared by several chains is resolved
+ * without hashing in each of them. The keys of the same name may have
+ * different types in different chains. The keyed value is also available by
+ * the name.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public final class StorageKey<T> implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final AtomicReferenceFieldUpdater<StorageKey, long[]> SLOTS 
+            = AtomicReferenceFieldUpdater.newUpdater(StorageKey.class, long[].class, "slots");
+    
+    private final String name;
+    
+    private final Class<T> type;
+    
+    /**
+     * The slots of the key by the ids of the layouts. Each entry holds the
+     * generation of the layout in the high bits, so the entry of a
+     * collected layout whose id is reused does not match.
+     */
+    private transient volatile long[] slots;
+
+    private StorageKey(String name, Class<T> type) {
+        this.name = name;
+        this.type = type;
+    }
+    
+    public static <T> StorageKey<T> of(String name, Class<T> type) {
+        if (name == null || type == null) {
+            throw new IllegalArgumentException("The name and type of the key cannot be null.");
+        }
+        return new StorageKey<T>(name, type);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (!(obj instanceof StorageKey)) {
+            return false;
+        }
+        StorageKey<?> other = (StorageKey<?>) obj;
+        return name.equals(other.name) && type == other.type;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * name.hashCode() + type.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return name + ":" + type.getName();
+    }
+    
+    /**
+     * Returns the cached slot of the key in the layout of the id and
+     * generation, or -1 if it is not resolved yet.
+     */
+    int slotIn(int id, int generation) {
+        long[] table = slots;
+        if (table != null && id < table.length) {
+            long entry = table[id];
+            if ((int) (entry >>> 32) == generation) {
+                return (int) entry;
+            }
+        }
+        return -1;
+    }
+    
+    void cacheSlot(int id, int generation, int index) {
+        long entry = ((long) generation << 32) | (index & 0xffffffffL);
+        while(true) {
+            long[] table = slots;
+            long[] newTable = table == null ? new long[id + 1] : Arrays.copyOf(table, Math.max(table.length, id + 1));
+            newTable[id] = entry;
+            if (SLOTS.compareAndSet(this, table, newTable)) {
+                return;
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.io.Serializable;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The slot indexes of the storages of one chain worker. A name gets its slot
+ * when it is first used with a {@link StorageKey key} in any execution of
+ * the chain, so the slot arrays of a storage grow only with the keys of its
+ * own chain.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+final class StorageLayout implements Serializable {
+    
+    private static final long serialVersionUID = 1L;
+    
+    private static final Lock idsLock = new ReentrantLock();
+    
+    private static final BitSet usedIds = new BitSet();
+    
+    /**
+     * The ids of the live layouts, kept reachable so they are enqueued when
+     * their layouts are collected.
+     */
+    private static final Set<LayoutId> liveIds = new HashSet<LayoutId>();
+    
+    private static final ReferenceQueue<StorageLayout> collected = new ReferenceQueue<StorageLayout>();
+    
+    private static int lastGeneration;
+    
+    private final ConcurrentMap<String, Integer> indexes = new ConcurrentHashMap<String, Integer>();
+    
+    private final Lock lock = new ReentrantLock();
+    
+    private volatile String[] names = new String[0];
+    
+    /**
+     * The id of the layout in the slot tables of the keys, assigned on the
+     * first key lookup and released when the layout is collected.
+     */
+    private transient volatile LayoutId id;
+    
+    /**
+     * Returns the slot of the key. The slot is cached in the key by the id
+     * of the layout, so a key used with several chains is resolved without
+     * hashing in each of them.
+     */
+    int indexOf(StorageKey<?> key) {
+        LayoutId layoutId = id;
+        if (layoutId == null) {
+            layoutId = assignId();
+        }
+        int index = key.slotIn(layoutId.id, layoutId.generation);
+        if (index < 0) {
+            index = index(key.getName());
+            key.cacheSlot(layoutId.id, layoutId.generation, index);
+        }
+        return index;
+    }
+    
+    /**
+     * Returns the slot of the name, or -1 if it has none yet.
+     */
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index == null ? -1 : index;
+    }
+    
+    /**
+     * Returns the slot of the name, assigning the next one if it has none.
+     */
+    int index(String name) {
+        Integer index = indexes.get(name);
+        if (index != null) {
+            return index;
+        }
+        
+        lock.lock();
+        try {
+            index = indexes.get(name);
+            if (index == null) {
+                String[] currentNames = names;
+                String[] newNames = new String[currentNames.length + 1];
+                System.arraycopy(currentNames, 0, newNames, 0, currentNames.length);
+                newNames[currentNames.length] = name;
+                names = newNames;
+                index = currentNames.length;
+                indexes.put(name, index);
+            }
+            return index;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    String nameOf(int index) {
+        return names[index];
+    }
+    
+    int size() {
+        return names.length;
+    }
+    
+    /**
+     * Assigns the smallest id which is not used by a live layout, so the
+     * slot tables of the keys stay as small as the number of the chains.
+     */
+    private LayoutId assignId() {
+        idsLock.lock();
+        try {
+            if (id == null) {
+                LayoutId released;
+                while((released = (LayoutId) collected.poll()) != null) {
+                    liveIds.remove(released);
+                    usedIds.clear(released.id);
+                }
+                int newId = usedIds.nextClearBit(0);
+                usedIds.set(newId);
+                if (++lastGeneration == 0) {
+                    lastGeneration = 1;
+                }
+                LayoutId layoutId = new LayoutId(this, newId, lastGeneration);
+                liveIds.add(layoutId);
+                id = layoutId;
+            }
+            return id;
+        } finally {
+            idsLock.unlock();
+        }
+    }
+    
+    /**
+     * The id of a layout, enqueued when the layout is collected.
+     */
+    private static final class LayoutId extends WeakReference<StorageLayout> {
+        
+        final int id;
+        
+        final int generation;
+
+        LayoutId(StorageLayout layout, int id, int generation) {
+            super(layout, collected);
+            this.id = id;
+            this.generation = generation;
+        }
+    }
+    
+}
@@ -29,4 +29,10 @@ import java.lang.annotation.Target;
 public @interface ChainListener {
     
     ChainListenerType type() default ChainListenerType.UNKNOWN;
+    
+    /**
+     * Whether the events are delivered on a dedicated thread instead of the
+     * execution thread.
+     */
+    boolean async() default false;
 }
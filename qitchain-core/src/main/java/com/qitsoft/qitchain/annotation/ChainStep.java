@@ -30,4 +30,21 @@ public @interface ChainStep {
     
     int order() default -1;
     
+    Class<?>[] after() default {};
+    
+    String[] requires() default {};
+    
+    String[] produces() default {};
+    
+    /**
+     * The timeout of the step in milliseconds, the non-positive value means
+     * no timeout.
+     */
+    long timeoutMillis() default 0;
+    
+    /**
+     * How the instances of the step class are shared by the executions.
+     */
+    ChainStepScope scope() default ChainStepScope.SINGLETON;
+    
 }
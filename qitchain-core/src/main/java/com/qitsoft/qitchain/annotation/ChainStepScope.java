@@ -0,0 +1,46 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.annotation;
+
+/**
+ * How the chain factory shares the instances of a step class.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public enum ChainStepScope {
+    
+    /**
+     * A single instance is shared by all the executions, the step should be
+     * thread-safe.
+     */
+    SINGLETON,
+    
+    /**
+     * Each thread gets its own instance.
+     */
+    THREAD,
+    
+    /**
+     * An instance is borrowed from a pool for a single call of the step.
+     */
+    POOLED,
+    
+    /**
+     * Each execution gets its own instance, which lives in its storage.
+     */
+    EXECUTION;
+    
+}
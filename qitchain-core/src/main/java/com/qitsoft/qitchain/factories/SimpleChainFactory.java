@@ -15,17 +15,514 @@
  */
 package com.qitsoft.qitchain.factories;
 
+import com.qitsoft.qitchain.ChainEventDispatcher;
 import com.qitsoft.qitchain.ChainFactory;
+import com.qitsoft.qitchain.ChainStepExecutor;
+import com.qitsoft.qitchain.ChainStorage;
 import com.qitsoft.qitchain.ChainWorker;
+import com.qitsoft.qitchain.ParallelChainWorker;
+import com.qitsoft.qitchain.StorageKey;
+import com.qitsoft.qitchain.TimedChainStepExecutor;
+import com.qitsoft.qitchain.annotation.ChainStep;
+import com.qitsoft.qitchain.annotation.ChainStepScope;
+import com.qitsoft.qitchain.registry.ChainInfo;
+import com.qitsoft.qitchain.registry.ChainListenerInfo;
+import com.qitsoft.qitchain.registry.ChainStepInfo;
+import com.qitsoft.qitchain.listeners.BaseChainListener;
+import com.qitsoft.qitchain.registry.ChainsRegistry;
+import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
+ * Creates the workers of a chain found by the {@link ChainsRegistry}. The
+ * step and listener classes are instantiated by their no-argument
+ * constructors according to the {@link ChainStep#scope() scopes} of the
+ * steps; the singletons are shared by the steps and listeners of the same
+ * class and by all the workers created by the factory. The chain whose
+ * steps declare the {@link ChainStep#after() after} or
+ * {@link ChainStep#requires() requires} dependencies gets the
+ * {@link ParallelChainWorker}. The workers are thread-safe, so a worker is
+ * usually created once and reused.
  *
  * @author Serj Soloviov <serj@qitsoft.com>
  */
 public class SimpleChainFactory implements ChainFactory {
 
+    private static final String EXECUTION_INSTANCE_PREFIX = "qitchain.step.";
+    
+    private static final String DEFAULT_CHAIN_NAME = "#DEFAULT#";
+
+    private final ChainsRegistry registry;
+
+    private final String chainName;
+
+    private final Class<? extends Annotation> chainAnnotation;
+
+    private final ConcurrentMap<Class, Object> singletons = new ConcurrentHashMap<Class, Object>();
+
+    private final ConcurrentMap<Class, ThreadLocal<ThreadInstance>> threadInstances = new ConcurrentHashMap<Class, ThreadLocal<ThreadInstance>>();
+
+    private final Lock workersLock = new ReentrantLock();
+
+    private final Map<ChainWorker, WorkerState> workers = new WeakHashMap<ChainWorker, WorkerState>();
+
+    private final AtomicBoolean listening = new AtomicBoolean();
+
+    private final ReloadListener reloadListener;
+
+    private volatile int poolSize = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Creates the factory of the default chain, the one of the classes
+     * annotated with {@code @Chain} without a name.
+     */
+    public SimpleChainFactory() {
+        this(DEFAULT_CHAIN_NAME);
+    }
+
+    public SimpleChainFactory(String chainName) {
+        this(ChainsRegistry.getInstance(), chainName);
+    }
+
+    public SimpleChainFactory(Class<? extends Annotation> chainAnnotation) {
+        this(ChainsRegistry.getInstance(), chainAnnotation);
+    }
+
+    public SimpleChainFactory(ChainsRegistry registry, String chainName) {
+        this(registry, chainName, null);
+    }
+
+    public SimpleChainFactory(ChainsRegistry registry, Class<? extends Annotation> chainAnnotation) {
+        this(registry, null, chainAnnotation);
+    }
+
+    private SimpleChainFactory(ChainsRegistry registry, String chainName, Class<? extends Annotation> chainAnnotation) {
+        if (registry == null) {
+            throw new IllegalArgumentException("The registry cannot be null.");
+        }
+        if (chainName == null && chainAnnotation == null) {
+            throw new IllegalArgumentException("The chain name or annotation should be specified.");
+        }
+        this.registry = registry;
+        this.chainName = chainName;
+        this.chainAnnotation = chainAnnotation;
+        this.reloadListener = new ReloadListener(this);
+    }
+
+    /**
+     * Creates the worker of the chain. The worker follows the changes of
+     * the chain made by the later {@link ChainsRegistry#scan(ClassLoader)
+     * scans} until it or the factory is garbage collected, or the factory
+     * is {@link #close() closed}. The registry holds the factory weakly.
+     */
     public ChainWorker create() {
-        throw new UnsupportedOperationException("Not supported yet.");
+        ChainInfo chainInfo = chainInfo();
+        int[][] dependencies = chainInfo.getStepDependencies();
+        ChainWorker worker;
+        if (hasDependencies(dependencies)) {
+            worker = new ParallelChainWorker(chainInfo.getName(), createSteps(chainInfo), dependencies);
+        } else {
+            worker = new ChainWorker(chainInfo.getName(), createSteps(chainInfo));
+        }
+        WorkerState state = new WorkerState(chainInfo);
+        updateListeners(worker, state, chainInfo);
+
+        workersLock.lock();
+        try {
+            workers.put(worker, state);
+        } finally {
+            workersLock.unlock();
+        }
+        if (listening.compareAndSet(false, true)) {
+            registry.addReloadListener(reloadListener);
+        }
+        if (chainInfo() != chainInfo) {
+            refresh();
+        }
+        return worker;
     }
-    
+
+    /**
+     * Rebuilds the steps of the created workers whose chain was changed
+     * since they were built and replaces them at once, the listeners added
+     * to the chain are registered and the removed ones are unregistered. The executions in progress finish
+     * with the steps they started with. The kind of a worker is kept, so
+     * the parallel worker gets the new dependencies while the sequential
+     * one runs the steps in their order.
+     */
+    public void refresh() {
+        workersLock.lock();
+        try {
+            ChainInfo chainInfo = chainInfo();
+            for(Map.Entry<ChainWorker, WorkerState> entry : workers.entrySet()) {
+                WorkerState state = entry.getValue();
+                if (state.chainInfo != chainInfo) {
+                    if (entry.getKey() instanceof ParallelChainWorker) {
+                        ((ParallelChainWorker) entry.getKey()).setSteps(createSteps(chainInfo), 
+                                chainInfo.getStepDependencies());
+                    } else {
+                        entry.getKey().setSteps(createSteps(chainInfo));
+                    }
+                    updateListeners(entry.getKey(), state, chainInfo);
+                    state.chainInfo = chainInfo;
+                }
+            }
+        } finally {
+            workersLock.unlock();
+        }
+    }
+
+    /**
+     * Stops following the changes of the chain. The workers created so far
+     * keep their steps, the next {@link #create()} follows the changes again.
+     */
+    public void close() {
+        if (listening.compareAndSet(true, false)) {
+            registry.removeReloadListener(reloadListener);
+        }
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Sets how many idle instances of each {@link ChainStepScope#POOLED
+     * pooled} step are kept by the workers created afterwards.
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("The pool size should be positive.");
+        }
+        this.poolSize = poolSize;
+    }
+
+    private ChainInfo chainInfo() {
+        ChainInfo chainInfo = chainName != null
+                ? registry.getChainInfo(chainName) : registry.getChainInfo(chainAnnotation);
+        if (chainInfo == null) {
+            throw new IllegalStateException("The chain [" + name() + "] is not found.");
+        }
+        return chainInfo;
+    }
+
+    private String name() {
+        return chainName != null ? chainName : chainAnnotation.getName();
+    }
+
+    private void chainReloaded(ChainInfo chainInfo) {
+        if (name().equals(chainInfo.getName())) {
+            refresh();
+        }
+    }
+
+    private static boolean hasDependencies(int[][] dependencies) {
+        for(int[] stepDependencies : dependencies) {
+            if (stepDependencies.length > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<ChainStepExecutor> createSteps(ChainInfo chainInfo) {
+        List<ChainStepExecutor> steps = new ArrayList<ChainStepExecutor>();
+        for(ChainStepInfo stepInfo : chainInfo.getSteps()) {
+            steps.add(createStep(stepInfo));
+        }
+        return steps;
+    }
+
+    /**
+     * Registers the listeners of the chain which the worker does not have
+     * yet and unregisters the ones removed from the chain. A listener shared
+     * with a listener still in the chain is kept.
+     */
+    private void updateListeners(ChainWorker worker, WorkerState state, ChainInfo chainInfo) {
+        List<ChainListenerInfo> listenerInfos = chainInfo.getListeners();
+        Set<BaseChainListener> kept = Collections.newSetFromMap(new IdentityHashMap<BaseChainListener, Boolean>());
+        List<BaseChainListener> removed = new ArrayList<BaseChainListener>();
+        Iterator<Map.Entry<ChainListenerInfo, BaseChainListener>> i = state.listeners.entrySet().iterator();
+        while(i.hasNext()) {
+            Map.Entry<ChainListenerInfo, BaseChainListener> entry = i.next();
+            if (listenerInfos.contains(entry.getKey())) {
+                kept.add(entry.getValue());
+            } else {
+                removed.add(entry.getValue());
+                i.remove();
+            }
+        }
+        for(BaseChainListener listener : removed) {
+            if (!kept.contains(listener)) {
+                worker.removeListener(listener);
+            }
+        }
+        
+        for(ChainListenerInfo listenerInfo : listenerInfos) {
+            if (state.listeners.containsKey(listenerInfo)) {
+                continue;
+            }
+            Object target = Modifier.isStatic(listenerInfo.getMethod().getModifiers())
+                    ? null : singleton(listenerInfo.getListenerClass());
+            BaseChainListener listener = listenerInfo.createListener(target);
+            worker.addListener(listener, listenerInfo.isAsync() ? ChainEventDispatcher.getDefault() : null);
+            state.listeners.put(listenerInfo, listener);
+        }
+    }
+
+    private ChainStepExecutor createStep(final ChainStepInfo stepInfo) {
+        ChainStepExecutor step;
+        final Class type = stepInfo.getStepClass();
+        if (Modifier.isStatic(stepInfo.getMethod().getModifiers())) {
+            step = stepInfo.createExecutor(null);
+        } else {
+            switch (stepInfo.getScope()) {
+                case THREAD:
+                    step = new ThreadStep(stepInfo, threadInstance(type));
+                    break;
+                case POOLED:
+                    step = new PooledStep(stepInfo, poolSize);
+                    break;
+                case EXECUTION:
+                    step = new ExecutionStep(stepInfo, StorageKey.of(EXECUTION_INSTANCE_PREFIX + type.getName(), type));
+                    break;
+                default:
+                    step = stepInfo.createExecutor(singleton(type));
+            }
+        }
+
+        if (stepInfo.getTimeoutMillis() > 0 && !(step instanceof TimedChainStepExecutor)) {
+            step = new TimedStep(step, stepInfo.getTimeoutMillis());
+        }
+        return step;
+    }
+
+    private Object singleton(Class type) {
+        Object result = singletons.get(type);
+        if (result == null) {
+            result = instantiate(type);
+            Object previous = singletons.putIfAbsent(type, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    private ThreadLocal<ThreadInstance> threadInstance(final Class type) {
+        ThreadLocal<ThreadInstance> result = threadInstances.get(type);
+        if (result == null) {
+            result = ThreadLocal.withInitial(() -> new ThreadInstance(instantiate(type)));
+            ThreadLocal<ThreadInstance> previous = threadInstances.putIfAbsent(type, result);
+            if (previous != null) {
+                result = previous;
+            }
+        }
+        return result;
+    }
+
+    private static Object instantiate(Class type) {
+        try {
+            Constructor constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor.newInstance();
+        } catch (NoSuchMethodException ex) {
+            throw new IllegalStateException("The class [" + type.getName() + "] has no default constructor.", ex);
+        } catch (InstantiationException ex) {
+            throw new IllegalStateException("Cannot instantiate the class [" + type.getName() + "].", ex);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException("Cannot instantiate the class [" + type.getName() + "].", ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException("Cannot instantiate the class [" + type.getName() + "].", ex.getCause());
+        }
+    }
+
+    /**
+     * Refers to the factory weakly, so the registry does not keep the
+     * factory alive, and unregisters itself once the factory is collected.
+     */
+    private static class ReloadListener implements Consumer<ChainInfo> {
+
+        private final ChainsRegistry registry;
+
+        private final WeakReference<SimpleChainFactory> factory;
+
+        public ReloadListener(SimpleChainFactory factory) {
+            this.registry = factory.registry;
+            this.factory = new WeakReference<SimpleChainFactory>(factory);
+        }
+
+        public void accept(ChainInfo chainInfo) {
+            SimpleChainFactory target = factory.get();
+            if (target == null) {
+                registry.removeReloadListener(this);
+            } else {
+                target.chainReloaded(chainInfo);
+            }
+        }
+    }
+
+    private static class WorkerState {
+
+        private ChainInfo chainInfo;
+
+        private final Map<ChainListenerInfo, BaseChainListener> listeners = new LinkedHashMap<ChainListenerInfo, BaseChainListener>();
+
+        public WorkerState(ChainInfo chainInfo) {
+            this.chainInfo = chainInfo;
+        }
+    }
+
+    /**
+     * The instance of a step class bound to a thread and its executors. The
+     * steps rebuilt on refresh reuse the thread local of their class, so no
+     * stale instances are left in the threads.
+     */
+    private static class ThreadInstance {
+
+        private final Object target;
+
+        private final Map<Method, ChainStepExecutor> executors = new HashMap<Method, ChainStepExecutor>();
+
+        public ThreadInstance(Object target) {
+            this.target = target;
+        }
+
+        public ChainStepExecutor executor(ChainStepInfo stepInfo) {
+            ChainStepExecutor result = executors.get(stepInfo.getMethod());
+            if (result == null) {
+                result = stepInfo.createExecutor(target);
+                executors.put(stepInfo.getMethod(), result);
+            }
+            return result;
+        }
+    }
+
+    private static class ThreadStep implements ChainStepExecutor {
+
+        private final ChainStepInfo stepInfo;
+
+        private final ThreadLocal<ThreadInstance> instances;
+
+        public ThreadStep(ChainStepInfo stepInfo, ThreadLocal<ThreadInstance> instances) {
+            this.stepInfo = stepInfo;
+            this.instances = instances;
+        }
+
+        public Status execute(ChainStorage storage) {
+            return instances.get().executor(stepInfo).execute(storage);
+        }
+    }
+
+    /**
+     * Borrows the executor bound to an idle instance for the call, the
+     * instances which do not fit into the pool are dropped.
+     */
+    private static class PooledStep implements ChainStepExecutor {
+
+        private final ChainStepInfo stepInfo;
+
+        private final AtomicReferenceArray<ChainStepExecutor> pool;
+
+        public PooledStep(ChainStepInfo stepInfo, int poolSize) {
+            this.stepInfo = stepInfo;
+            this.pool = new AtomicReferenceArray<ChainStepExecutor>(poolSize);
+        }
+
+        public Status execute(ChainStorage storage) {
+            ChainStepExecutor executor = acquire();
+            Status status = executor.execute(storage);
+            release(executor);
+            return status;
+        }
+
+        private ChainStepExecutor acquire() {
+            int start = (int) Thread.currentThread().getId();
+            for(int i = 0; i < pool.length(); i++) {
+                int index = ((start + i) & Integer.MAX_VALUE) % pool.length();
+                ChainStepExecutor executor = pool.get(index);
+                if (executor != null && pool.compareAndSet(index, executor, null)) {
+                    return executor;
+                }
+            }
+            return stepInfo.createExecutor(instantiate(stepInfo.getStepClass()));
+        }
+
+        private void release(ChainStepExecutor executor) {
+            int start = (int) Thread.currentThread().getId();
+            for(int i = 0; i < pool.length(); i++) {
+                int index = ((start + i) & Integer.MAX_VALUE) % pool.length();
+                if (pool.get(index) == null && pool.compareAndSet(index, null, executor)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the instance in the storage of the execution, so the steps of
+     * the same class share it until the storage is reset.
+     */
+    private static class ExecutionStep implements ChainStepExecutor {
+
+        private final ChainStepInfo stepInfo;
+
+        private final StorageKey key;
+
+        public ExecutionStep(ChainStepInfo stepInfo, StorageKey key) {
+            this.stepInfo = stepInfo;
+            this.key = key;
+        }
+
+        public Status execute(ChainStorage storage) {
+            Object instance = storage.get(key);
+            if (instance == null) {
+                instance = instantiate(stepInfo.getStepClass());
+                storage.set(key, instance);
+            }
+            return stepInfo.createExecutor(instance).execute(storage);
+        }
+    }
+
+    private static class TimedStep implements TimedChainStepExecutor {
+
+        private final ChainStepExecutor step;
+
+        private final long timeoutMillis;
+
+        public TimedStep(ChainStepExecutor step, long timeoutMillis) {
+            this.step = step;
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public Status execute(ChainStorage storage) {
+            return step.execute(storage);
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+    }
+
 }
@@ -32,6 +32,10 @@ public class ChainInfo {
     private Set<Class> types = new HashSet<Class>();
     
     private SortedSet<ChainStepInfo> steps = new TreeSet<ChainStepInfo>(new ChainStepComparator());
+    
+    private Set<ChainStepInfo> stepIndex = new HashSet<ChainStepInfo>();
+    
+    private volatile List<ChainStepInfo> stepsList;
 
     private Set<ChainListenerInfo> listeners = new HashSet<ChainListenerInfo>();
 
@@ -59,23 +63,102 @@ public class ChainInfo {
         return types;
     }
 
+    /**
+     * Returns the ordered steps. The list is immutable and built once after
+     * the steps are changed.
+     */
     public List<ChainStepInfo> getSteps() {
-        return Lists.newArrayList(steps);
+        List<ChainStepInfo> result = stepsList;
+        if (result == null) {
+            result = Collections.unmodifiableList(new ArrayList<ChainStepInfo>(steps));
+            stepsList = result;
+        }
+        return result;
     }
 
+    /**
+     * Adds the steps which are not in the chain yet, the first of the equal
+     * steps is kept.
+     */
     public void addSteps(List<ChainStepInfo> steps) {
-        boolean found = false;
+        boolean changed = false;
         for(ChainStepInfo step : steps) {
-            for(ChainStepInfo stepInfo : this.steps) {
-                if (step.equals(stepInfo)) {
-                    found = true;
-                    break;
-                }
-            }
-            if (!found) {
+            if (stepIndex.add(step)) {
                 this.steps.add(step);
+                changed = true;
+            }
+        }
+        if (changed) {
+            stepsList = null;
+        }
+    }
+
+    /**
+     * Returns the copy which is changed by the rescans instead of the chain
+     * already published by the registry.
+     */
+    ChainInfo copy() {
+        ChainInfo result = new ChainInfo();
+        result.name = name;
+        result.annotationType = annotationType;
+        result.types.addAll(types);
+        result.steps.addAll(steps);
+        result.stepIndex.addAll(stepIndex);
+        result.stepsList = stepsList;
+        result.listeners.addAll(listeners);
+        return result;
+    }
+
+    /**
+     * Whether the chain has the same name, types, steps and listeners as the
+     * other one, so a rescan finding it again does not change it.
+     */
+    boolean hasSameDefinition(ChainInfo other) {
+        return (name == null ? other.name == null : name.equals(other.name)) 
+                && annotationType == other.annotationType
+                && types.equals(other.types) 
+                && getSteps().equals(other.getSteps()) 
+                && listeners.equals(other.listeners);
+    }
+
+    /**
+     * Returns the indexes of the steps each step depends on, in the order of
+     * {@link #getSteps()}. The steps are looked up by their classes and
+     * produced names, so the chains with many steps are not compared pairwise.
+     */
+    public int[][] getStepDependencies() {
+        List<ChainStepInfo> stepsList = getSteps();
+        Map<Class, List<Integer>> byClass = new HashMap<Class, List<Integer>>();
+        Map<String, List<Integer>> byProduced = new HashMap<String, List<Integer>>();
+        for(int i = 0; i < stepsList.size(); i++) {
+            ChainStepInfo step = stepsList.get(i);
+            index(byClass, step.getStepClass(), i);
+            for(String produced : step.getProduces()) {
+                index(byProduced, produced, i);
+            }
+        }
+        
+        int[][] result = new int[stepsList.size()][];
+        for(int i = 0; i < stepsList.size(); i++) {
+            ChainStepInfo step = stepsList.get(i);
+            SortedSet<Integer> dependencies = new TreeSet<Integer>();
+            for(Class type : step.getAfter()) {
+                addAll(dependencies, byClass.get(type));
+            }
+            for(String required : step.getRequires()) {
+                addAll(dependencies, byProduced.get(required));
+            }
+            dependencies.remove(i);
+            
+            result[i] = new int[dependencies.size()];
+            int j = 0;
+            for(Integer dependency : dependencies) {
+                result[i][j++] = dependency;
             }
         }
+        
+        checkAcyclic(stepsList, result);
+        return result;
     }
 
     public List<ChainListenerInfo> getListeners() {
@@ -86,6 +169,64 @@ public class ChainInfo {
         this.listeners.addAll(listeners);
     }
 
+    private static <K> void index(Map<K, List<Integer>> index, K key, int position) {
+        List<Integer> positions = index.get(key);
+        if (positions == null) {
+            positions = new ArrayList<Integer>(1);
+            index.put(key, positions);
+        }
+        positions.add(position);
+    }
+
+    private static void addAll(Set<Integer> target, List<Integer> positions) {
+        if (positions != null) {
+            target.addAll(positions);
+        }
+    }
+
+    /**
+     * Walks the dependencies depth first with an explicit stack, so the long
+     * dependency paths do not overflow the thread stack.
+     */
+    private void checkAcyclic(List<ChainStepInfo> stepsList, int[][] dependencies) {
+        int[] state = new int[dependencies.length];
+        int[] next = new int[dependencies.length];
+        int[] stack = new int[dependencies.length];
+        for(int i = 0; i < dependencies.length; i++) {
+            if (state[i] != 0) {
+                continue;
+            }
+            
+            int top = 0;
+            stack[0] = i;
+            state[i] = 1;
+            while(top >= 0) {
+                int index = stack[top];
+                if (next[index] == dependencies[index].length) {
+                    state[index] = 2;
+                    top--;
+                    continue;
+                }
+                
+                int dependency = dependencies[index][next[index]++];
+                if (state[dependency] == 1) {
+                    ChainStepInfo step = stepsList.get(dependency);
+                    throw new IllegalStateException(String.format("The chain [%s] has cyclic step dependencies at step [%s.%s].", 
+                            name, step.getStepClass().getName(), step.getMethod().getName()));
+                } else if (state[dependency] == 0) {
+                    state[dependency] = 1;
+                    stack[++top] = dependency;
+                }
+            }
+        }
+    }
+
+    /**
+     * Orders the steps by their orders, the unordered steps go last, then by
+     * the names of their classes and methods. The classes of the same name
+     * loaded by other class loaders are not equal, so they are told apart by
+     * their identities.
+     */
     protected static class ChainStepComparator implements Comparator<ChainStepInfo> {
 
         public ChainStepComparator() {
@@ -97,14 +238,14 @@ public class ChainInfo {
             }
             
             int result;
-            if (b.getOrder() == -1 && a.getOrder() == -1) {
+            if (b.getOrder() < 0 && a.getOrder() < 0) {
                 result = 0;
             } else if (b.getOrder() < 0) {
-                result = 0;
+                result = -1;
             } else if (a.getOrder() < 0) {
                 result = 1;
             } else {
-                result = a.getOrder() - b.getOrder();
+                result = a.getOrder() < b.getOrder() ? -1 : (a.getOrder() == b.getOrder() ? 0 : 1);
             }
             
             if (result == 0) {
@@ -113,6 +254,9 @@ public class ChainInfo {
             if (result == 0) {
                 result = a.getMethod().getName().compareTo(b.getMethod().getName());
             }
+            if (result == 0) {
+                result = Integer.compare(System.identityHashCode(a.getStepClass()), System.identityHashCode(b.getStepClass()));
+            }
             
             return result;
         }
@@ -16,7 +16,10 @@
 package com.qitsoft.qitchain.registry;
 
 import com.qitsoft.qitchain.annotation.ChainListenerType;
+import com.qitsoft.qitchain.listeners.BaseChainListener;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.function.Function;
 
 /**
  *
@@ -29,11 +32,20 @@ public class ChainListenerInfo {
     private final Method method;
     
     private final ChainListenerType type;
+    
+    private final boolean async;
+    
+    private volatile Function<Object, BaseChainListener> listenerFactory;
 
     public ChainListenerInfo(Class listenerClass, Method method, ChainListenerType type) {
+        this(listenerClass, method, type, false);
+    }
+
+    public ChainListenerInfo(Class listenerClass, Method method, ChainListenerType type, boolean async) {
         this.listenerClass = listenerClass;
         this.method = method;
         this.type = type;
+        this.async = async;
     }
 
     public Class getListenerClass() {
@@ -48,6 +60,39 @@ public class ChainListenerInfo {
         return type;
     }
 
+    public boolean isAsync() {
+        return async;
+    }
+    
+    /**
+     * Returns the listener calling the listener method on the target, which
+     * is ignored for the static methods. The call is bound once per
+     * listener. The target which implements the listener interface of the
+     * method is returned as is.
+     */
+    public BaseChainListener createListener(Object target) {
+        if (isInterfaceMethod(target)) {
+            return (BaseChainListener) target;
+        }
+        
+        Function<Object, BaseChainListener> factory = listenerFactory;
+        if (factory == null) {
+            factory = MethodAdapters.listenerFactory(method, type);
+            listenerFactory = factory;
+        }
+        return factory.apply(target);
+    }
+    
+    private boolean isInterfaceMethod(Object target) {
+        Class listenerInterface = MethodAdapters.listenerInterface(type);
+        if (listenerInterface == null || !listenerInterface.isInstance(target)) {
+            return false;
+        }
+        Method interfaceMethod = listenerInterface.getMethods()[0];
+        return interfaceMethod.getName().equals(method.getName()) 
+                && Arrays.equals(interfaceMethod.getParameterTypes(), method.getParameterTypes());
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
@@ -15,7 +15,12 @@
  */
 package com.qitsoft.qitchain.registry;
 
+import com.qitsoft.qitchain.ChainStepExecutor;
+import com.qitsoft.qitchain.ChainStorage;
+import com.qitsoft.qitchain.annotation.ChainStepScope;
 import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.function.Function;
 
 /**
  *
@@ -28,11 +33,43 @@ public class ChainStepInfo {
     private final Method method;
     
     private final int order;
+    
+    private final Class[] after;
+    
+    private final String[] requires;
+    
+    private final String[] produces;
+    
+    private final long timeoutMillis;
+    
+    private final ChainStepScope scope;
+    
+    private volatile Function<Object, ChainStepExecutor> executorFactory;
 
     public ChainStepInfo(Class stepClass, Method method, int order) {
+        this(stepClass, method, order, new Class[0], new String[0], new String[0]);
+    }
+
+    public ChainStepInfo(Class stepClass, Method method, int order, Class[] after, String[] requires, String[] produces) {
+        this(stepClass, method, order, after, requires, produces, 0);
+    }
+
+    public ChainStepInfo(Class stepClass, Method method, int order, Class[] after, String[] requires, String[] produces, long timeoutMillis) {
+        this(stepClass, method, order, after, requires, produces, timeoutMillis, ChainStepScope.SINGLETON);
+    }
+
+    public ChainStepInfo(Class stepClass, Method method, int order, Class[] after, String[] requires, String[] produces, long timeoutMillis, ChainStepScope scope) {
+        if (scope == null) {
+            throw new IllegalArgumentException("The scope cannot be null.");
+        }
         this.stepClass = stepClass;
         this.method = method;
         this.order = order;
+        this.after = after;
+        this.requires = requires;
+        this.produces = produces;
+        this.timeoutMillis = timeoutMillis;
+        this.scope = scope;
     }
 
     public Class getStepClass() {
@@ -47,6 +84,46 @@ public class ChainStepInfo {
         return order;
     }
 
+    public Class[] getAfter() {
+        return after.clone();
+    }
+
+    public String[] getRequires() {
+        return requires.clone();
+    }
+
+    public String[] getProduces() {
+        return produces.clone();
+    }
+    
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public ChainStepScope getScope() {
+        return scope;
+    }
+    
+    /**
+     * Returns the executor calling the step method on the target, which is
+     * ignored for the static methods. The call is bound once per step, so
+     * the executors cost as much as the hand-written ones. The target which
+     * is the step executor itself is returned as is.
+     */
+    public ChainStepExecutor createExecutor(Object target) {
+        if (target instanceof ChainStepExecutor && method.getName().equals("execute") 
+                && Arrays.equals(method.getParameterTypes(), new Class[] {ChainStorage.class})) {
+            return (ChainStepExecutor) target;
+        }
+        
+        Function<Object, ChainStepExecutor> factory = executorFactory;
+        if (factory == null) {
+            factory = MethodAdapters.stepFactory(method);
+            executorFactory = factory;
+        }
+        return factory.apply(target);
+    }
+    
     @Override
     public boolean equals(Object obj) {
         if (obj == null) {
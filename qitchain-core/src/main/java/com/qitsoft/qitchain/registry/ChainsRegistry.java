@@ -20,12 +20,20 @@ import com.qitsoft.qitchain.ChainStorage;
 import com.qitsoft.qitchain.ChainWorker;
 import com.qitsoft.qitchain.annotation.*;
 import com.qitsoft.qitchain.listeners.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.lang.annotation.Annotation;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import org.reflections.ReflectionUtils;
 import org.reflections.Reflections;
 import org.reflections.util.ClasspathHelper;
@@ -39,37 +47,508 @@ import org.slf4j.LoggerFactory;
  */
 public class ChainsRegistry {
     
+    /**
+     * The index of the chain classes generated at compile time by the
+     * qitchain-processor. Each line holds the binary names of the chain
+     * annotation and of the annotated class separated by a space.
+     */
+    public static final String INDEX_RESOURCE = "META-INF/qitchain/chains";
+    
+    /**
+     * The system property with the path of the {@link #setCacheFile(File) cache file}.
+     */
+    public static final String CACHE_FILE_PROPERTY = "qitchain.registry.cache";
+    
     private static final ChainsRegistry INSTANCE = new ChainsRegistry();
             
     private static final Logger logger = LoggerFactory.getLogger(ChainsRegistry.class);
             
-    private final Map<String, ChainInfo> chainsByName = new ConcurrentHashMap<String, ChainInfo>();
+    /**
+     * The chains found by the last scan. The map is replaced as a whole
+     * after each scan, so it is read without locking.
+     */
+    private volatile Map<String, ChainInfo> chainsByName = Collections.emptyMap();
+    
+    private final Lock scanLock = new ReentrantLock();
+    
+    /**
+     * Whether the classpath was scanned, so a name missing from the chains
+     * is unknown until {@link #invalidate()}.
+     */
+    private volatile boolean scanned;
+    
+    private volatile ChainsRegistryCache cache;
+    
+    private final List<Consumer<ChainInfo>> reloadListeners = new CopyOnWriteArrayList<Consumer<ChainInfo>>();
+    
+    /**
+     * The chains collected by the running scan, guarded by the scan lock.
+     */
+    private Map<String, ChainInfo> scannedChains;
+    
+    /**
+     * The class loaders registered by {@link #scan(ClassLoader)} in the
+     * order of their last scan, guarded by the scan lock. They are scanned
+     * again after the classpath, so the plugin chains survive
+     * {@link #invalidate()}, and are not kept from being collected.
+     */
+    private final List<WeakReference<ClassLoader>> scannedLoaders = new ArrayList<WeakReference<ClassLoader>>();
+    
+    public ChainsRegistry() {
+        String cacheFile = System.getProperty(CACHE_FILE_PROPERTY);
+        if (cacheFile != null && !cacheFile.trim().isEmpty()) {
+            cache = new ChainsRegistryCache(new File(cacheFile.trim()));
+        }
+    }
     
     public static ChainsRegistry getInstance() {
         return INSTANCE;
     }
     
-    public synchronized ChainInfo getChainInfo(String name) {
+    /**
+     * Returns the chain of the name. The classpath is scanned on the first
+     * miss only, the concurrent misses wait for the same scan and the names
+     * which are still unknown are not scanned for again until
+     * {@link #invalidate()}.
+     */
+    public ChainInfo getChainInfo(String name) {
         ChainInfo result = chainsByName.get(name);
-        if (result == null) {
-            scan();
+        if (result != null || scanned) {
+            return result;
+        }
+        
+        List<ChainInfo> changed = Collections.emptyList();
+        scanLock.lock();
+        try {
+            if (!scanned) {
+                changed = scanAll();
+            }
             result = chainsByName.get(name);
+        } finally {
+            scanLock.unlock();
         }
         
+        fireReloaded(changed);
         return result;
     }
     
-    public synchronized ChainInfo getChainInfo(Class<? extends Annotation> chainAnnotation) {
+    /**
+     * Registers the chains of the classes loaded by the class loader, e.g.
+     * of a plugin. The index resources of its own jars and directories are
+     * read, or its classes are scanned if there are none. The chains found
+     * before are not changed: the extended chains are copied and published
+     * at once with the new ones, so the readers never see a partially
+     * updated chain. The classes of the same names or of the same class
+     * loader found before, e.g. of the previous version of the plugin, are
+     * replaced. Returns the names of the changed chains.
+     */
+    public Set<String> scan(ClassLoader classLoader) {
+        if (classLoader == null) {
+            throw new IllegalArgumentException("The class loader cannot be null.");
+        }
+        
+        List<ChainInfo> changed = new ArrayList<ChainInfo>();
+        scanLock.lock();
+        try {
+            if (!scanned) {
+                changed.addAll(scanAll());
+            }
+            
+            Map<String, ChainInfo> previous = chainsByName;
+            scannedChains = new HashMap<String, ChainInfo>(previous);
+            try {
+                removeClassLoader(classLoader);
+                scanClassLoader(classLoader, previous);
+                changed.addAll(publish(previous));
+            } finally {
+                scannedChains = null;
+            }
+            addScannedLoader(classLoader);
+        } finally {
+            scanLock.unlock();
+        }
+        
+        fireReloaded(changed);
+        Set<String> result = new LinkedHashSet<String>();
+        for(ChainInfo chainInfo : changed) {
+            result.add(chainInfo.getName());
+        }
+        return result;
+    }
+    
+    /**
+     * Adds the listener called with each chain which is found or changed by
+     * a scan after it is published.
+     */
+    public void addReloadListener(Consumer<ChainInfo> listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("The listener cannot be null.");
+        }
+        reloadListeners.add(listener);
+    }
+    
+    public void removeReloadListener(Consumer<ChainInfo> listener) {
+        reloadListeners.remove(listener);
+    }
+    
+    public ChainInfo getChainInfo(Class<? extends Annotation> chainAnnotation) {
         return getChainInfo(chainAnnotation.getName());
     }
 
+    /**
+     * Marks the scan as stale, so the next miss scans the classpath and the
+     * {@link #scan(ClassLoader) registered class loaders} again. The chains
+     * found before stay available until the scan is completed.
+     */
+    public void invalidate() {
+        scanLock.lock();
+        try {
+            scanned = false;
+        } finally {
+            scanLock.unlock();
+        }
+    }
+
+    public File getCacheFile() {
+        ChainsRegistryCache currentCache = cache;
+        return currentCache == null ? null : currentCache.getFile();
+    }
+    
+    /**
+     * Sets the file where the result of the classpath scan is saved. The
+     * file is reloaded instead of scanning while the classpath entries stay
+     * the same. The null file disables the cache.
+     */
+    public void setCacheFile(File file) {
+        cache = file == null ? null : new ChainsRegistryCache(file);
+    }
+    
+    /**
+     * Registers the chains listed by the {@link #INDEX_RESOURCE index} and
+     * scans the classpath entries which have no index, e.g. the jars built
+     * without the processor. The result of the scan is taken from the
+     * {@link #setCacheFile(File) cache file} while the classpath is the same.
+     */
     protected void scan() {
-        ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
-        configurationBuilder.addUrls(ClasspathHelper.forPackage(""));
+        ClassLoader classLoader = classLoader();
+        Set<String> entries = new LinkedHashSet<String>();
+        Set<String> indexedRoots = readIndex(INDEX_RESOURCE, classLoader, entries);
+        
+        Set<URL> urls = ClasspathHelper.forPackage("");
+        Set<URL> notIndexed = notIndexed(urls, indexedRoots);
+        if (!notIndexed.isEmpty()) {
+            ChainsRegistryCache currentCache = cache;
+            long fingerprint = 0;
+            Map<String, ChainInfo> cached = null;
+            if (currentCache != null) {
+                fingerprint = ChainsRegistryCache.fingerprint(urls);
+                cached = currentCache.load(fingerprint, classLoader);
+            }
+            
+            if (cached != null) {
+                scannedChains.putAll(cached);
+            } else {
+                scanClasses(notIndexed, null, indexedAnnotations(entries, classLoader));
+                if (currentCache != null) {
+                    currentCache.save(fingerprint, scannedChains);
+                }
+            }
+        }
         
+        registerIndexed(entries, classLoader);
+    }
+    
+    /**
+     * Registers the chains listed by all the index resources with the name.
+     * Returns false if there is none.
+     */
+    protected boolean scanIndex(String resource) {
+        ClassLoader classLoader = classLoader();
+        Set<String> entries = new LinkedHashSet<String>();
+        if (readIndex(resource, classLoader, entries).isEmpty()) {
+            return false;
+        }
+        registerIndexed(entries, classLoader);
+        return true;
+    }
+    
+    private List<ChainInfo> scanAll() {
+        Map<String, ChainInfo> previous = chainsByName;
+        scannedChains = new HashMap<String, ChainInfo>();
+        try {
+            scan();
+            for(ClassLoader classLoader : scannedLoaders()) {
+                scanClassLoader(classLoader, new HashMap<String, ChainInfo>(scannedChains));
+            }
+            List<ChainInfo> changed = publish(previous);
+            scanned = true;
+            return changed;
+        } finally {
+            scannedChains = null;
+        }
+    }
+    
+    /**
+     * Replaces the published chains with the scanned ones and returns the
+     * chains which are new or changed. The previous chain is kept if the
+     * scanned one has the same definition.
+     */
+    private List<ChainInfo> publish(Map<String, ChainInfo> previous) {
+        List<ChainInfo> changed = new ArrayList<ChainInfo>();
+        for(Map.Entry<String, ChainInfo> entry : scannedChains.entrySet()) {
+            ChainInfo chainInfo = entry.getValue();
+            ChainInfo previousInfo = previous.get(entry.getKey());
+            if (previousInfo == chainInfo) {
+                continue;
+            }
+            if (previousInfo != null && previousInfo.hasSameDefinition(chainInfo)) {
+                entry.setValue(previousInfo);
+            } else {
+                changed.add(chainInfo);
+            }
+        }
+        chainsByName = Collections.unmodifiableMap(scannedChains);
+        return changed;
+    }
+    
+    /**
+     * Returns the registered class loaders which are not collected yet.
+     */
+    private List<ClassLoader> scannedLoaders() {
+        List<ClassLoader> result = new ArrayList<ClassLoader>();
+        for(Iterator<WeakReference<ClassLoader>> iterator = scannedLoaders.iterator(); iterator.hasNext();) {
+            ClassLoader classLoader = iterator.next().get();
+            if (classLoader == null) {
+                iterator.remove();
+            } else {
+                result.add(classLoader);
+            }
+        }
+        return result;
+    }
+    
+    private void addScannedLoader(ClassLoader classLoader) {
+        for(Iterator<WeakReference<ClassLoader>> iterator = scannedLoaders.iterator(); iterator.hasNext();) {
+            ClassLoader scannedLoader = iterator.next().get();
+            if (scannedLoader == null || scannedLoader == classLoader) {
+                iterator.remove();
+            }
+        }
+        scannedLoaders.add(new WeakReference<ClassLoader>(classLoader));
+    }
+    
+    /**
+     * Removes the classes of the class loader from the scanned chains before
+     * it is scanned again, the chains left without classes are removed.
+     */
+    private void removeClassLoader(ClassLoader classLoader) {
+        for(Iterator<Map.Entry<String, ChainInfo>> iterator = scannedChains.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry<String, ChainInfo> entry = iterator.next();
+            boolean found = false;
+            for(Class type : entry.getValue().getTypes()) {
+                found |= type.getClassLoader() == classLoader;
+            }
+            if (found) {
+                ChainInfo rebuilt = rebuild(entry.getValue(), null, classLoader);
+                if (rebuilt.getTypes().isEmpty()) {
+                    iterator.remove();
+                } else {
+                    entry.setValue(rebuilt);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Returns the new chain of the types of the chain except the ones of the
+     * class name and the ones loaded by the class loader, the null name or
+     * class loader matches none. The steps and listeners of the kept types
+     * are scanned again.
+     */
+    private ChainInfo rebuild(ChainInfo chainInfo, String typeName, ClassLoader classLoader) {
+        ChainInfo result = new ChainInfo();
+        result.setName(chainInfo.getName());
+        result.setAnnotationType(chainInfo.getAnnotationType());
+        for(Class type : chainInfo.getTypes()) {
+            if (type.getName().equals(typeName) || (classLoader != null && type.getClassLoader() == classLoader)) {
+                continue;
+            }
+            result.addType(type);
+            result.addSteps(scanClassSteps(type));
+            result.addListeners(scanClassListeners(type));
+        }
+        return result;
+    }
+    
+    private void fireReloaded(List<ChainInfo> changed) {
+        for(ChainInfo chainInfo : changed) {
+            for(Consumer<ChainInfo> listener : reloadListeners) {
+                try {
+                    listener.accept(chainInfo);
+                } catch (RuntimeException ex) {
+                    logger.warn("The reload listener failed for the chain [" + chainInfo.getName() + "].", ex);
+                }
+            }
+        }
+    }
+    
+    private void scanClassLoader(ClassLoader classLoader, Map<String, ChainInfo> previous) {
+        Set<String> entries = new LinkedHashSet<String>();
+        if (!(classLoader instanceof URLClassLoader)) {
+            readIndex(INDEX_RESOURCE, classLoader, entries);
+            registerIndexed(entries, classLoader);
+            return;
+        }
+        
+        URL[] urls = ((URLClassLoader) classLoader).getURLs();
+        Set<String> indexedRoots;
+        URLClassLoader resourceLoader = new URLClassLoader(urls, null);
+        try {
+            indexedRoots = readIndex(INDEX_RESOURCE, resourceLoader, entries);
+        } finally {
+            try {
+                resourceLoader.close();
+            } catch (IOException ex) {
+                logger.debug("Cannot close the class loader of the chains index.", ex);
+            }
+        }
+        
+        Set<URL> notIndexed = notIndexed(new LinkedHashSet<URL>(Arrays.asList(urls)), indexedRoots);
+        if (!notIndexed.isEmpty()) {
+            Set<Class<? extends Annotation>> annotations = indexedAnnotations(entries, classLoader);
+            for(ChainInfo chainInfo : previous.values()) {
+                annotations.add(chainInfo.getAnnotationType());
+            }
+            scanClasses(notIndexed, classLoader, annotations);
+        }
+        registerIndexed(entries, classLoader);
+    }
+    
+    /**
+     * Scans the classes of the URLs annotated with {@link Chain} or with the
+     * given chain annotations, which may be declared outside of the URLs.
+     */
+    private void scanClasses(Set<URL> urls, ClassLoader classLoader, Set<Class<? extends Annotation>> annotations) {
+        ConfigurationBuilder configurationBuilder = new ConfigurationBuilder();
+        configurationBuilder.addUrls(urls);
+        if (classLoader != null) {
+            configurationBuilder.addClassLoader(classLoader);
+        }
         Reflections reflections = new Reflections(configurationBuilder);
         
         scanChainsByAnnotation(reflections, Chain.class);
+        for(Class<? extends Annotation> annotation : annotations) {
+            if (annotation != Chain.class) {
+                scanChainsByAnnotation(reflections, annotation);
+            }
+        }
+    }
+    
+    /**
+     * Reads the entries of the index resources found by the resource loader
+     * and returns the classpath roots which have them. If the index cannot
+     * be read, no root is returned, so the whole classpath is scanned.
+     */
+    private Set<String> readIndex(String resource, ClassLoader resourceLoader, Set<String> entries) {
+        Set<String> roots = new HashSet<String>();
+        try {
+            Enumeration<URL> urls = resourceLoader.getResources(resource);
+            while(urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                readIndex(url, entries);
+                roots.add(rootOf(url, resource));
+            }
+        } catch (IOException ex) {
+            logger.warn("Cannot read the chains index, scanning the classpath.", ex);
+            entries.clear();
+            roots.clear();
+        }
+        return roots;
+    }
+    
+    private static String rootOf(URL url, String resource) {
+        String result = url.toExternalForm();
+        if (result.endsWith(resource)) {
+            result = result.substring(0, result.length() - resource.length());
+        }
+        if (result.startsWith("jar:") && result.endsWith("!/")) {
+            result = result.substring("jar:".length(), result.length() - "!/".length());
+        }
+        return result.endsWith("/") ? result.substring(0, result.length() - 1) : result;
+    }
+    
+    private static Set<URL> notIndexed(Set<URL> urls, Set<String> indexedRoots) {
+        Set<URL> result = new LinkedHashSet<URL>();
+        for(URL url : urls) {
+            if (!indexedRoots.contains(rootOf(url, INDEX_RESOURCE))) {
+                result.add(url);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Returns the chain annotations of the index entries, the classes
+     * annotated with them are scanned in the entries without the index too.
+     */
+    private Set<Class<? extends Annotation>> indexedAnnotations(Set<String> entries, ClassLoader classLoader) {
+        Set<Class<? extends Annotation>> result = new LinkedHashSet<Class<? extends Annotation>>();
+        for(String entry : entries) {
+            String name = entry.split("\\s+")[0];
+            try {
+                Class type = Class.forName(name, false, classLoader);
+                if (type.isAnnotation()) {
+                    result.add(type);
+                }
+            } catch (ClassNotFoundException ex) {
+                logger.debug("Cannot load the indexed chain annotation [" + name + "].", ex);
+            } catch (LinkageError ex) {
+                logger.debug("Cannot load the indexed chain annotation [" + name + "].", ex);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Registers the chains of the index entries, loading the classes with
+     * the class loader.
+     */
+    private void registerIndexed(Set<String> entries, ClassLoader classLoader) {
+        for(String entry : entries) {
+            String[] names = entry.split("\\s+");
+            try {
+                Class annotation = Class.forName(names[0], false, classLoader);
+                Class type = Class.forName(names[1], false, classLoader);
+                if (type.isAnnotationPresent(annotation)) {
+                    ChainInfo chainInfo = getChainByClass(type, annotation);
+                    scannedChains.put(chainInfo.getName(), chainInfo);
+                }
+            } catch (ClassNotFoundException ex) {
+                logger.warn("Cannot load the indexed chain class [" + entry + "].", ex);
+            } catch (LinkageError ex) {
+                logger.warn("Cannot load the indexed chain class [" + entry + "].", ex);
+            }
+        }
+    }
+    
+    private ClassLoader classLoader() {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : ChainsRegistry.class.getClassLoader();
+    }
+    
+    private void readIndex(URL url, Set<String> entries) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), "UTF-8"));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#") && line.split("\\s+").length == 2) {
+                    entries.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
     }
     
     private void scanChainsByAnnotation(Reflections reflections, Class<? extends Annotation> annotation) {
@@ -80,7 +559,7 @@ public class ChainsRegistry {
                 scanChainsByAnnotation(reflections, type);
             } else {
                 ChainInfo chainInfo = getChainByClass(type, annotation);
-                chainsByName.put(chainInfo.getName(), chainInfo);
+                scannedChains.put(chainInfo.getName(), chainInfo);
             }
         }
     }
@@ -91,16 +570,16 @@ public class ChainsRegistry {
         for(Method method : methods) {
             ChainListener annotation = ((ChainListener) method.getAnnotation(ChainListener.class));
             if (annotation.type() != ChainListenerType.UNKNOWN) {
-                result.add(new ChainListenerInfo(type, method, annotation.type()));
+                result.add(new ChainListenerInfo(type, method, annotation.type(), annotation.async()));
             }
         }
     }
 
     private void addChainStepAsWholeObject(List<ChainStepInfo> result, Class type) {
         try {
-            result.add(new ChainStepInfo(type, 
+            result.add(createChainStepInfo(type, 
                     type.getMethod("execute", ChainStorage.class), 
-                    ((ChainStep)type.getAnnotation(ChainStep.class)).order()));
+                    (ChainStep)type.getAnnotation(ChainStep.class)));
         } catch (NoSuchMethodException ex) {
             logger.warn("Cannot find the [execute] method in %s class.", type.getName(), ex);
         } catch (SecurityException ex) {
@@ -112,11 +591,16 @@ public class ChainsRegistry {
         Set<Method> methods = ReflectionUtils.getAllMethods(type, ReflectionUtils.withAnnotation(ChainStep.class));
 
         for(Method method : methods) {
-            result.add(new ChainStepInfo(type, method, 
-                    ((ChainStep)method.getAnnotation(ChainStep.class)).order()));
+            result.add(createChainStepInfo(type, method, 
+                    (ChainStep)method.getAnnotation(ChainStep.class)));
         }
     }
     
+    private ChainStepInfo createChainStepInfo(Class type, Method method, ChainStep annotation) {
+        return new ChainStepInfo(type, method, annotation.order(), annotation.after(), annotation.requires(), 
+                annotation.produces(), annotation.timeoutMillis(), annotation.scope());
+    }
+    
     private ChainInfo getChainByClass(Class type, Class<? extends Annotation> annotation) {
         Annotation chainAnnotation = type.getAnnotation(annotation);
         String chainName;
@@ -127,10 +611,16 @@ public class ChainsRegistry {
             chainName = annotation.getName();
         }
         
-        ChainInfo chainInfo = chainsByName.get(chainName);
+        ChainInfo chainInfo = scannedChains.get(chainName);
         if (chainInfo == null) {
             logger.info("Found chain with name [%s].", chainName);
             chainInfo = new ChainInfo();
+        } else if (chainInfo.getTypes().contains(type)) {
+            return chainInfo;
+        } else if (hasTypeNamed(chainInfo, type.getName())) {
+            chainInfo = rebuild(chainInfo, type.getName(), null);
+        } else if (chainInfo == chainsByName.get(chainName)) {
+            chainInfo = chainInfo.copy();
         }
         
         chainInfo.setName(chainName);
@@ -141,6 +631,15 @@ public class ChainsRegistry {
         return chainInfo;
     }
     
+    private static boolean hasTypeNamed(ChainInfo chainInfo, String typeName) {
+        for(Class type : chainInfo.getTypes()) {
+            if (type.getName().equals(typeName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
     private List<ChainStepInfo> scanClassSteps(Class type) {
         List<ChainStepInfo> result = new ArrayList<ChainStepInfo>();
 
@@ -165,7 +664,10 @@ public class ChainsRegistry {
         int index = chainSteps.order();
         for(Class<? extends ChainStepExecutor> step : chainSteps.steps()) {
             try {
-                result.add(new ChainStepInfo(step, step.getMethod("execute", ChainStorage.class), index));
+                ChainStep annotation = step.getAnnotation(ChainStep.class);
+                result.add(new ChainStepInfo(step, step.getMethod("execute", ChainStorage.class), index, 
+                        new Class[0], new String[0], new String[0], 0, 
+                        annotation == null ? ChainStepScope.SINGLETON : annotation.scope()));
             } catch (NoSuchMethodException ex) {
                 logger.warn("Cannot find the method [execute] in chain step [%s]", step.getName(), ex);
             } catch (SecurityException ex) {
@@ -201,7 +703,7 @@ public class ChainsRegistry {
             try {
                 result.add(new ChainListenerInfo(type, 
                         type.getMethod("onBefore", ChainWorker.class, ChainStorage.class), 
-                        ChainListenerType.BEFORE));
+                        ChainListenerType.BEFORE, isAsyncListener(type)));
                 
             } catch (NoSuchMethodException ex) {
                 logger.warn("Cannot find the [onBefore(%s, %s)] method in %s class.", new Object[] {type.getName(), ChainWorker.class.getName(), ChainStorage.class.getName(), ex});
@@ -213,7 +715,7 @@ public class ChainsRegistry {
             try {
                 result.add(new ChainListenerInfo(type, 
                         type.getMethod("onAfter", ChainWorker.class, ChainStorage.class), 
-                        ChainListenerType.AFTER));
+                        ChainListenerType.AFTER, isAsyncListener(type)));
                 
             } catch (NoSuchMethodException ex) {
                 logger.warn("Cannot find the [onAfter(%s, %s)] method in %s class.", new Object[] {type.getName(), ChainWorker.class.getName(), ChainStorage.class.getName(), ex});
@@ -225,7 +727,7 @@ public class ChainsRegistry {
             try {
                 result.add(new ChainListenerInfo(type, 
                         type.getMethod("onBeforeStep", ChainWorker.class, ChainStepExecutor.class, ChainStorage.class), 
-                        ChainListenerType.BEFORE_STEP));
+                        ChainListenerType.BEFORE_STEP, isAsyncListener(type)));
                 
             } catch (NoSuchMethodException ex) {
                 logger.warn("Cannot find the [onBeforeStep(%s, %s, %s)] method in %s class.", new Object[] {type.getName(), ChainWorker.class.getName(), ChainStepExecutor.class, ChainStorage.class.getName(), ex});
@@ -237,7 +739,7 @@ public class ChainsRegistry {
             try {
                 result.add(new ChainListenerInfo(type, 
                         type.getMethod("onAfterStep", ChainWorker.class, ChainStepExecutor.class, ChainStorage.class, ChainStepExecutor.Status.class), 
-                        ChainListenerType.AFTER_STEP));
+                        ChainListenerType.AFTER_STEP, isAsyncListener(type)));
                 
             } catch (NoSuchMethodException ex) {
                 logger.warn("Cannot find the [onAfterStep(%s, %s, %s, %s)] method in %s class.", 
@@ -261,6 +763,11 @@ public class ChainsRegistry {
         }        
     }
 
+    private boolean isAsyncListener(Class type) {
+        ChainListener annotation = (ChainListener) type.getAnnotation(ChainListener.class);
+        return annotation != null && annotation.async();
+    }
+
     private void addChainListenersByTypeAnnotation(Class type, List<ChainListenerInfo> result) {
         ChainListeners chainListeners = (ChainListeners) type.getAnnotation(ChainListeners.class);
         
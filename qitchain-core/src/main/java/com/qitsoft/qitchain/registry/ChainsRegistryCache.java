@@ -0,0 +1,323 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.registry;
+
+import com.qitsoft.qitchain.annotation.ChainListenerType;
+import com.qitsoft.qitchain.annotation.ChainStepScope;
+import java.io.*;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The binary file with the chains found by the classpath scan. The file is
+ * valid while the fingerprint of the scanned classpath entries, i.e. their
+ * names, sizes and modification times, is the same, so the registry reloads
+ * it instead of scanning again after a restart.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+class ChainsRegistryCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChainsRegistryCache.class);
+
+    private static final int MAGIC = 0x51434331;
+
+    private static final int VERSION = 2;
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final Map<String, Class> PRIMITIVES = new HashMap<String, Class>();
+
+    static {
+        for(Class type : new Class[] {boolean.class, byte.class, char.class, short.class,
+                int.class, long.class, float.class, double.class, void.class}) {
+            PRIMITIVES.put(type.getName(), type);
+        }
+    }
+
+    private final File file;
+
+    public ChainsRegistryCache(File file) {
+        if (file == null) {
+            throw new IllegalArgumentException("The cache file cannot be null.");
+        }
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Computes the fingerprint of the classpath entries. The directories
+     * are walked, so a changed class file changes the fingerprint too.
+     */
+    public static long fingerprint(Collection<URL> urls) {
+        List<String> entries = new ArrayList<String>();
+        for(URL url : urls) {
+            entries.add(url.toExternalForm());
+        }
+        Collections.sort(entries);
+
+        long hash = FNV_OFFSET;
+        for(String entry : entries) {
+            hash = hash(hash, entry);
+            try {
+                File entryFile = new File(new URL(entry).toURI());
+                hash = hash(hash, entryFile);
+            } catch (URISyntaxException ex) {
+                hash = hash(hash, -1);
+            } catch (IllegalArgumentException ex) {
+                hash = hash(hash, -1);
+            } catch (IOException ex) {
+                hash = hash(hash, -1);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the chains saved with the fingerprint, or null if the file is
+     * missing, stale, corrupted or refers to the classes which cannot be
+     * loaded.
+     */
+    public Map<String, ChainInfo> load(long fingerprint, ClassLoader classLoader) {
+        if (!file.isFile()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != fingerprint) {
+                    return null;
+                }
+
+                Map<String, ChainInfo> result = new HashMap<String, ChainInfo>();
+                int chainsCount = in.readInt();
+                for(int i = 0; i < chainsCount; i++) {
+                    ChainInfo chainInfo = readChain(in, classLoader);
+                    result.put(chainInfo.getName(), chainInfo);
+                }
+                return result;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            logger.warn("Cannot read the chains cache " + file + ".", ex);
+        } catch (ClassNotFoundException ex) {
+            logger.info("The chains cache " + file + " refers to a missing class, scanning the classpath.", ex);
+        } catch (NoSuchMethodException ex) {
+            logger.info("The chains cache " + file + " refers to a missing method, scanning the classpath.", ex);
+        } catch (LinkageError ex) {
+            logger.warn("Cannot load a class of the chains cache " + file + ".", ex);
+        } catch (RuntimeException ex) {
+            logger.warn("The chains cache " + file + " is corrupted, scanning the classpath.", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the chains to a temporary file and moves it over the cache
+     * file, so the concurrent readers never see a partial file.
+     */
+    public void save(long fingerprint, Map<String, ChainInfo> chains) {
+        File tempFile = null;
+        try {
+            File directory = file.getAbsoluteFile().getParentFile();
+            if (directory != null && !directory.isDirectory()) {
+                directory.mkdirs();
+            }
+            tempFile = File.createTempFile(file.getName(), ".tmp", directory);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(fingerprint);
+                out.writeInt(chains.size());
+                for(ChainInfo chainInfo : chains.values()) {
+                    writeChain(out, chainInfo);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            tempFile = null;
+        } catch (IOException ex) {
+            logger.warn("Cannot write the chains cache " + file + ".", ex);
+        } finally {
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+        }
+    }
+
+    private void writeChain(DataOutputStream out, ChainInfo chainInfo) throws IOException {
+        out.writeUTF(chainInfo.getName());
+        out.writeUTF(chainInfo.getAnnotationType().getName());
+
+        out.writeInt(chainInfo.getTypes().size());
+        for(Class type : chainInfo.getTypes()) {
+            out.writeUTF(type.getName());
+        }
+
+        List<ChainStepInfo> steps = chainInfo.getSteps();
+        out.writeInt(steps.size());
+        for(ChainStepInfo step : steps) {
+            out.writeUTF(step.getStepClass().getName());
+            writeMethod(out, step.getMethod());
+            out.writeInt(step.getOrder());
+            writeClasses(out, step.getAfter());
+            writeStrings(out, step.getRequires());
+            writeStrings(out, step.getProduces());
+            out.writeLong(step.getTimeoutMillis());
+            out.writeUTF(step.getScope().name());
+        }
+
+        List<ChainListenerInfo> listeners = chainInfo.getListeners();
+        out.writeInt(listeners.size());
+        for(ChainListenerInfo listener : listeners) {
+            out.writeUTF(listener.getListenerClass().getName());
+            writeMethod(out, listener.getMethod());
+            out.writeUTF(listener.getType().name());
+            out.writeBoolean(listener.isAsync());
+        }
+    }
+
+    private ChainInfo readChain(DataInputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException, NoSuchMethodException {
+        ChainInfo chainInfo = new ChainInfo();
+        chainInfo.setName(in.readUTF());
+        chainInfo.setAnnotationType((Class<? extends Annotation>) load(in.readUTF(), classLoader));
+
+        int typesCount = in.readInt();
+        for(int i = 0; i < typesCount; i++) {
+            chainInfo.addType(load(in.readUTF(), classLoader));
+        }
+
+        int stepsCount = in.readInt();
+        for(int i = 0; i < stepsCount; i++) {
+            Class stepClass = load(in.readUTF(), classLoader);
+            Method method = readMethod(in, classLoader);
+            int order = in.readInt();
+            Class[] after = readClasses(in, classLoader);
+            String[] requires = readStrings(in);
+            String[] produces = readStrings(in);
+            long timeoutMillis = in.readLong();
+            ChainStepScope scope = ChainStepScope.valueOf(in.readUTF());
+            chainInfo.addSteps(Collections.singletonList(
+                    new ChainStepInfo(stepClass, method, order, after, requires, produces, timeoutMillis, scope)));
+        }
+
+        int listenersCount = in.readInt();
+        List<ChainListenerInfo> listeners = new ArrayList<ChainListenerInfo>(listenersCount);
+        for(int i = 0; i < listenersCount; i++) {
+            Class listenerClass = load(in.readUTF(), classLoader);
+            Method method = readMethod(in, classLoader);
+            ChainListenerType type = ChainListenerType.valueOf(in.readUTF());
+            listeners.add(new ChainListenerInfo(listenerClass, method, type, in.readBoolean()));
+        }
+        chainInfo.addListeners(listeners);
+        return chainInfo;
+    }
+
+    private void writeMethod(DataOutputStream out, Method method) throws IOException {
+        out.writeUTF(method.getDeclaringClass().getName());
+        out.writeUTF(method.getName());
+        writeClasses(out, method.getParameterTypes());
+    }
+
+    private Method readMethod(DataInputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException, NoSuchMethodException {
+        Class declaringClass = load(in.readUTF(), classLoader);
+        String name = in.readUTF();
+        return declaringClass.getDeclaredMethod(name, readClasses(in, classLoader));
+    }
+
+    private void writeClasses(DataOutputStream out, Class[] classes) throws IOException {
+        out.writeInt(classes.length);
+        for(Class type : classes) {
+            out.writeUTF(type.getName());
+        }
+    }
+
+    private Class[] readClasses(DataInputStream in, ClassLoader classLoader) throws IOException, ClassNotFoundException {
+        Class[] result = new Class[in.readInt()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = load(in.readUTF(), classLoader);
+        }
+        return result;
+    }
+
+    private void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for(String string : strings) {
+            out.writeUTF(string);
+        }
+    }
+
+    private String[] readStrings(DataInputStream in) throws IOException {
+        String[] result = new String[in.readInt()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = in.readUTF();
+        }
+        return result;
+    }
+
+    private static Class load(String name, ClassLoader classLoader) throws ClassNotFoundException {
+        Class primitive = PRIMITIVES.get(name);
+        return primitive != null ? primitive : Class.forName(name, false, classLoader);
+    }
+
+    private static long hash(long hash, String value) {
+        for(int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, long value) {
+        for(int i = 0; i < 8; i++) {
+            hash = (hash ^ (value & 0xff)) * FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, File entry) {
+        if (entry.isDirectory()) {
+            File[] children = entry.listFiles();
+            if (children == null) {
+                return hash(hash, -1);
+            }
+            Arrays.sort(children);
+            for(File child : children) {
+                hash = hash(hash, child.getName());
+                hash = hash(hash, child);
+            }
+            return hash;
+        }
+        hash = hash(hash, entry.length());
+        return hash(hash, entry.lastModified());
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.registry;
+
+import com.qitsoft.qitchain.ChainStepExecutor;
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import com.qitsoft.qitchain.ChainStorage;
+import com.qitsoft.qitchain.ChainWorker;
+import com.qitsoft.qitchain.annotation.ChainListenerType;
+import com.qitsoft.qitchain.listeners.*;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds the {@link ChainStepExecutor step executors} and the listeners which
+ * call the annotated methods. The calls are bound with
+ * {@link LambdaMetafactory}, so they cost as much as the direct calls. The
+ * methods which cannot be bound that way, e.g. the non-public ones, are
+ * called through a {@link MethodHandle}.
+ *
+ * <p>A step method takes no parameters or the {@link ChainStorage} and
+ * returns nothing, which means {@link Status#DONE}, or the status. A
+ * listener method takes no parameters or the ones of the listener
+ * interface method.</p>
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+final class MethodAdapters {
+
+    private static final Logger logger = LoggerFactory.getLogger(MethodAdapters.class);
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private MethodAdapters() {
+    }
+
+    /**
+     * Returns the function creating the step executor for the target
+     * object, which is ignored for the static methods.
+     */
+    public static Function<Object, ChainStepExecutor> stepFactory(final Method method) {
+        Class[] params = method.getParameterTypes();
+        final boolean withStorage = params.length == 1 && params[0] == ChainStorage.class;
+        final boolean withStatus = method.getReturnType() == Status.class;
+        if (params.length > 0 && !withStorage || !withStatus && method.getReturnType() != void.class) {
+            throw new IllegalArgumentException(String.format("The step method [%s.%s] should take no parameters "
+                    + "or the ChainStorage and return nothing or the Status.",
+                    method.getDeclaringClass().getName(), method.getName()));
+        }
+
+        try {
+            if (withStorage && withStatus) {
+                final MethodHandle factory = spin(method, ChainStepExecutor.class, "execute",
+                        MethodType.methodType(Status.class, ChainStorage.class));
+                return target -> (ChainStepExecutor) create(factory, method, target);
+            } else if (withStorage) {
+                final MethodHandle factory = spin(method, Consumer.class, "accept",
+                        MethodType.methodType(void.class, ChainStorage.class));
+                return target -> {
+                    final Consumer<ChainStorage> consumer = (Consumer<ChainStorage>) create(factory, method, target);
+                    return storage -> {
+                        consumer.accept(storage);
+                        return Status.DONE;
+                    };
+                };
+            } else if (withStatus) {
+                final MethodHandle factory = spin(method, Supplier.class, "get",
+                        MethodType.methodType(Status.class));
+                return target -> {
+                    final Supplier<Status> supplier = (Supplier<Status>) create(factory, method, target);
+                    return storage -> supplier.get();
+                };
+            } else {
+                final MethodHandle factory = spin(method, Runnable.class, "run",
+                        MethodType.methodType(void.class));
+                return target -> {
+                    final Runnable runnable = (Runnable) create(factory, method, target);
+                    return storage -> {
+                        runnable.run();
+                        return Status.DONE;
+                    };
+                };
+            }
+        } catch (Throwable ex) {
+            logger.debug("Cannot bind the step method [" + method + "], calling it through a method handle.", ex);
+        }
+
+        final MethodHandle handle = normalize(method, ChainStorage.class).asType(
+                MethodType.methodType(Object.class, Object.class, ChainStorage.class));
+        return target -> {
+            final Object receiver = receiver(method, target);
+            return storage -> {
+                try {
+                    Object result = (Object) handle.invokeExact(receiver, storage);
+                    return result == null ? Status.DONE : (Status) result;
+                } catch (Throwable ex) {
+                    throw rethrow(ex);
+                }
+            };
+        };
+    }
+
+    /**
+     * Returns the function creating the listener of the type for the target
+     * object, which is ignored for the static methods.
+     */
+    public static Function<Object, BaseChainListener> listenerFactory(final Method method, ChainListenerType type) {
+        final Class listenerType = listenerInterface(type);
+        if (listenerType == null) {
+            throw new IllegalArgumentException("The listener type " + type + " is not supported.");
+        }
+        Method interfaceMethod = listenerType.getMethods()[0];
+        final String name = interfaceMethod.getName();
+        final MethodType methodType = MethodType.methodType(void.class, interfaceMethod.getParameterTypes());
+
+        Class[] params = method.getParameterTypes();
+        final boolean withParams = params.length > 0;
+        if (withParams && !Arrays.equals(params, methodType.parameterArray())) {
+            throw new IllegalArgumentException(String.format("The listener method [%s.%s] should take no parameters "
+                    + "or the ones of %s.%s.",
+                    method.getDeclaringClass().getName(), method.getName(), listenerType.getName(), name));
+        }
+
+        try {
+            if (withParams) {
+                final MethodHandle factory = spin(method, listenerType, name, methodType);
+                return target -> (BaseChainListener) create(factory, method, target);
+            } else {
+                final MethodHandle factory = spin(method, Runnable.class, "run", MethodType.methodType(void.class));
+                return target -> listener(type, (Runnable) create(factory, method, target));
+            }
+        } catch (Throwable ex) {
+            logger.debug("Cannot bind the listener method [" + method + "], calling it through a method handle.", ex);
+        }
+
+        final MethodHandle handle = normalize(method, methodType.parameterArray());
+        return target -> listener(type, handle.bindTo(receiver(method, target)));
+    }
+
+    /**
+     * Returns the listener interface of the type, or null for the unknown type.
+     */
+    public static Class listenerInterface(ChainListenerType type) {
+        switch (type) {
+            case BEFORE:
+                return ChainBeforeListener.class;
+            case AFTER:
+                return ChainAfterListener.class;
+            case BEFORE_STEP:
+                return ChainBeforeStepListener.class;
+            case AFTER_STEP:
+                return ChainAfterStepListener.class;
+            default:
+                return null;
+        }
+    }
+
+    private static BaseChainListener listener(ChainListenerType type, final Runnable runnable) {
+        switch (type) {
+            case BEFORE:
+                return (ChainBeforeListener) (worker, storage) -> runnable.run();
+            case AFTER:
+                return (ChainAfterListener) (worker, storage) -> runnable.run();
+            case BEFORE_STEP:
+                return (ChainBeforeStepListener) (worker, step, storage) -> runnable.run();
+            default:
+                return (ChainAfterStepListener) (worker, step, storage, status) -> runnable.run();
+        }
+    }
+
+    /**
+     * Creates the listener calling the method handle which takes all the
+     * parameters of the listener method.
+     */
+    private static BaseChainListener listener(ChainListenerType type, final MethodHandle handle) {
+        switch (type) {
+            case BEFORE:
+                return (ChainBeforeListener) (worker, storage) -> {
+                    try {
+                        handle.invoke(worker, storage);
+                    } catch (Throwable ex) {
+                        throw rethrow(ex);
+                    }
+                };
+            case AFTER:
+                return (ChainAfterListener) (worker, storage) -> {
+                    try {
+                        handle.invoke(worker, storage);
+                    } catch (Throwable ex) {
+                        throw rethrow(ex);
+                    }
+                };
+            case BEFORE_STEP:
+                return (ChainBeforeStepListener) (worker, step, storage) -> {
+                    try {
+                        handle.invoke(worker, step, storage);
+                    } catch (Throwable ex) {
+                        throw rethrow(ex);
+                    }
+                };
+            default:
+                return (ChainAfterStepListener) (worker, step, storage, status) -> {
+                    try {
+                        handle.invoke(worker, step, storage, status);
+                    } catch (Throwable ex) {
+                        throw rethrow(ex);
+                    }
+                };
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable ex) {
+        if (ex instanceof RuntimeException) {
+            throw (RuntimeException) ex;
+        } else if (ex instanceof Error) {
+            throw (Error) ex;
+        }
+        return new UndeclaredThrowableException(ex);
+    }
+
+    /**
+     * Spins the class implementing the interface method by calling the
+     * method and returns its factory, which takes the receiver unless the
+     * method is static.
+     */
+    private static MethodHandle spin(Method method, Class samType, String samName, MethodType instantiatedType) throws Throwable {
+        MethodHandle implementation = LOOKUP.unreflect(method);
+        boolean isStatic = Modifier.isStatic(method.getModifiers());
+        MethodType factoryType = isStatic
+                ? MethodType.methodType(samType)
+                : MethodType.methodType(samType, method.getDeclaringClass());
+        MethodType samMethodType = null;
+        for(Method samMethod : samType.getMethods()) {
+            if (samMethod.getName().equals(samName) && Modifier.isAbstract(samMethod.getModifiers())) {
+                samMethodType = MethodType.methodType(samMethod.getReturnType(), samMethod.getParameterTypes());
+            }
+        }
+        return LambdaMetafactory.metafactory(LOOKUP, samName, factoryType,
+                samMethodType, implementation, instantiatedType).getTarget();
+    }
+
+    private static Object create(MethodHandle factory, Method method, Object target) {
+        try {
+            return Modifier.isStatic(method.getModifiers()) ? factory.invoke() : factory.invoke(receiver(method, target));
+        } catch (Throwable ex) {
+            throw rethrow(ex);
+        }
+    }
+
+    private static Object receiver(Method method, Object target) {
+        if (Modifier.isStatic(method.getModifiers())) {
+            return null;
+        }
+        if (!method.getDeclaringClass().isInstance(target)) {
+            throw new IllegalArgumentException(String.format("The target of [%s.%s] should be an instance of %s.",
+                    method.getDeclaringClass().getName(), method.getName(), method.getDeclaringClass().getName()));
+        }
+        return target;
+    }
+
+    /**
+     * Returns the handle of the method which takes the receiver, ignored for
+     * the static methods, and all the given parameters, the method declares
+     * either all or none of them.
+     */
+    private static MethodHandle normalize(Method method, Class... params) {
+        MethodHandle handle;
+        try {
+            method.setAccessible(true);
+            handle = LOOKUP.unreflect(method);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalArgumentException("Cannot access the method [" + method + "].", ex);
+        }
+        if (Modifier.isStatic(method.getModifiers())) {
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        }
+        if (method.getParameterTypes().length == 0) {
+            handle = MethodHandles.dropArguments(handle, 1, params);
+        }
+        return handle.asType(handle.type().changeParameterType(0, Object.class));
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.ChainEventDispatcher.WaitStrategy;
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import com.qitsoft.qitchain.listeners.ChainAfterStepListener;
+import com.qitsoft.qitchain.listeners.ChainBatchListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainEventDispatcherTest {
+    
+    private ChainEventDispatcher dispatcher;
+    
+    private final ChainWorker worker = new ChainWorker("test", new ChainStepExecutor[]{new Step(), new Step()});
+    
+    @After
+    public void tearDown() {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+    }
+    
+    @Test
+    public void testDeliverOnDispatcherThread() throws InterruptedException {
+        dispatcher = new ChainEventDispatcher();
+        final CountDownLatch latch = new CountDownLatch(2);
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        worker.addListener(new ChainAfterStepListener() {
+
+            public void onAfterStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage, Status status) {
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+        }, dispatcher);
+        
+        worker.execute();
+        
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), threads.get(0));
+        assertSame(threads.get(0), threads.get(1));
+    }
+    
+    @Test
+    public void testDeliverInOrderWithEachWaitStrategy() {
+        for(WaitStrategy waitStrategy : WaitStrategy.values()) {
+            dispatcher = new ChainEventDispatcher(4, 3, waitStrategy);
+            RecordingListener listener = new RecordingListener();
+            worker.addListener(listener, dispatcher);
+            
+            for(int i = 0; i < 50; i++) {
+                worker.execute(i);
+            }
+            dispatcher.flush();
+            worker.removeListener(listener);
+            dispatcher.close();
+            
+            assertEquals(waitStrategy.name(), 100, listener.parameters.size());
+            for(int i = 0; i < 100; i++) {
+                assertEquals(i / 2, listener.parameters.get(i));
+            }
+            assertTrue(listener.batches > 0);
+            assertTrue(listener.batches <= 100);
+        }
+    }
+    
+    @Test
+    public void testCloseDeliversPublished() {
+        dispatcher = new ChainEventDispatcher(1024, 64, WaitStrategy.BLOCKING);
+        RecordingListener listener = new RecordingListener();
+        worker.addListener(listener, dispatcher);
+        for(int i = 0; i < 10; i++) {
+            worker.execute(i);
+        }
+        dispatcher.close();
+        
+        assertEquals(20, listener.parameters.size());
+        
+        worker.execute(10);
+        assertEquals(22, listener.parameters.size());
+    }
+    
+    @Test
+    public void testCloseWhilePublishing() throws InterruptedException {
+        dispatcher = new ChainEventDispatcher(4, 2, WaitStrategy.SLEEPING);
+        final AtomicInteger delivered = new AtomicInteger();
+        worker.addListener(new ChainAfterStepListener() {
+
+            public void onAfterStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage, Status status) {
+                delivered.incrementAndGet();
+            }
+        }, dispatcher);
+        
+        Thread[] publishers = new Thread[4];
+        for(int i = 0; i < publishers.length; i++) {
+            publishers[i] = new Thread(new Runnable() {
+
+                public void run() {
+                    for(int j = 0; j < 500; j++) {
+                        worker.execute(j);
+                    }
+                }
+            });
+            publishers[i].start();
+        }
+        Thread.sleep(5);
+        dispatcher.close();
+        for(Thread publisher : publishers) {
+            publisher.join(5000);
+            assertFalse(publisher.isAlive());
+        }
+        
+        assertEquals(publishers.length * 500 * 2, delivered.get());
+    }
+    
+    @Test
+    public void testFailedListenerDoesNotStopDelivery() {
+        dispatcher = new ChainEventDispatcher();
+        RecordingListener listener = new RecordingListener();
+        worker.addListener(new ChainAfterStepListener() {
+
+            public void onAfterStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage, Status status) {
+                throw new IllegalStateException("failure");
+            }
+        }, dispatcher);
+        worker.addListener(listener, dispatcher);
+        
+        worker.execute(1);
+        dispatcher.flush();
+        
+        assertEquals(2, listener.parameters.size());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new ChainEventDispatcher(0, 1, WaitStrategy.SLEEPING);
+    }
+    
+    private static class RecordingListener implements ChainAfterStepListener, ChainBatchListener {
+        
+        private final List<Object> parameters = new ArrayList<Object>();
+        
+        private int batches;
+
+        public void onAfterStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage, Status status) {
+            parameters.add(storage.getParameters()[0]);
+        }
+
+        public void onEndOfBatch() {
+            batches++;
+        }
+    }
+    
+    private static class Step implements ChainStepExecutor {
+
+        public Status execute(ChainStorage storage) {
+            return Status.DONE;
+        }
+    }
+    
+}
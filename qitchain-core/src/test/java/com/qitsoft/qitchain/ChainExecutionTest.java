@@ -0,0 +1,601 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import org.hamcrest.Matchers;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ChainExecutionTest {
+
+    private ChainWorker worker;
+
+    private ChainExecution execution;
+
+    @Mock
+    private ChainStepExecutor executor1;
+
+    @Mock
+    private ChainStepExecutor executor2;
+
+    @Mock
+    private ChainStepExecutor executor3;
+
+    @Before
+    public void setUp() {
+        worker = new ChainWorker("test", new ChainStepExecutor[]{executor1, executor2, executor3});
+        execution = worker.createExecution();
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testConstructWithNullWorker() {
+        new ChainExecution(null);
+    }
+
+    @Test
+    public void testGenerateId() {
+        assertNotNull(execution.getId());
+        assertThat(execution.getId(), Matchers.startsWith("test-"));
+    }
+
+    @Test
+    public void testStorageBoundToExecution() {
+        assertNotNull(execution.getStorage());
+        assertSame(execution, execution.getStorage().getExecution());
+        assertSame(worker, execution.getStorage().getChainWorker());
+    }
+
+    @Test
+    public void testIsInProgress() {
+        when(executor1.execute(any(ChainStorage.class))).thenAnswer(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                assertTrue(execution.isInProgress());
+                return Status.DONE;
+            }
+        });
+        assertFalse(execution.isInProgress());
+        execution.execute();
+        assertFalse(execution.isInProgress());
+        assertTrue(execution.isFinished());
+    }
+
+    @Test
+    public void testGetExecutedSteps() {
+        when(executor2.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                assertThat(execution.getExecutedSteps(), Matchers.hasItem(executor1));
+                assertTrue(execution.getSkippedSteps().isEmpty());
+
+                return Status.DONE;
+            }
+        });
+        execution.execute();
+        assertEquals(3, execution.getExecutedSteps().size());
+        assertEquals(3, execution.getProcessedSteps().size());
+        assertTrue(execution.getNotExecutedSteps().isEmpty());
+    }
+
+    @Test
+    public void testFirstExecuteNextStep() {
+        execution.executeNextStep();
+
+        assertTrue(execution.isInProgress());
+        assertEquals(1, execution.getExecutedSteps().size());
+        assertEquals(executor1, execution.getExecutedSteps().get(0));
+        assertEquals(0, execution.getSkippedSteps().size());
+    }
+
+    @Test
+    public void testExecuteNextStep() {
+        execution.executeNextStep();
+        execution.executeNextStep();
+
+        assertEquals(2, execution.getExecutedSteps().size());
+        assertEquals(executor2, execution.getExecutedSteps().get(1));
+        assertEquals(0, execution.getSkippedSteps().size());
+    }
+
+    @Test
+    public void testExecuteNextPostponedStep() {
+        when(executor2.execute(any(ChainStorage.class))).thenReturn(Status.POSTPONE);
+
+        execution.executeNextStep();
+        execution.executeNextStep();
+
+        assertEquals(2, execution.getExecutedSteps().size());
+        assertEquals(executor3, execution.getExecutedSteps().get(1));
+        assertEquals(0, execution.getSkippedSteps().size());
+
+        verify(executor2, only()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testExecuteLastStep() {
+        execution.executeNextStep();
+        execution.executeNextStep();
+        execution.executeNextStep();
+
+        assertFalse(execution.isInProgress());
+        assertTrue(execution.isFinished());
+        assertEquals(3, execution.getExecutedSteps().size());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testExecuteNextStepAfterFinish() {
+        execution.execute();
+        execution.executeNextStep();
+    }
+
+    @Test
+    public void testExecuteRemainingSteps() {
+        execution.executeNextStep();
+        execution.execute();
+
+        verify(executor1, times(1)).execute(any(ChainStorage.class));
+        verify(executor2, times(1)).execute(any(ChainStorage.class));
+        verify(executor3, times(1)).execute(any(ChainStorage.class));
+        assertTrue(execution.isFinished());
+    }
+
+    @Test
+    public void testExecuteStepWithArguments() {
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>(){
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                assertNotNull(execution.getStorage().getStepParameters());
+                assertArrayEquals(new Object[]{"arg0", 4, 3.14}, execution.getStorage().getStepParameters());
+                assertEquals(0, execution.getStorage().getParameters().length);
+
+                return Status.DONE;
+            }
+        });
+
+        execution.executeNextStep("arg0", 4, 3.14);
+    }
+
+    @Test
+    public void testExecuteStepReturnsResult() {
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>(){
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                execution.getStorage().setResult("the result");
+
+                return Status.DONE;
+            }
+        });
+
+        assertEquals("the result", execution.executeNextStep());
+    }
+
+    @Test
+    public void testExecuteStepWithSkipped() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
+
+        execution.executeNextStep();
+        execution.executeNextStep();
+        assertFalse(execution.isInProgress());
+        assertThat(execution.getSkippedSteps(), Matchers.hasItem(executor1));
+    }
+
+    @Test
+    public void testExecuteWithSkipped() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
+
+        execution.execute();
+        assertFalse(execution.isInProgress());
+    }
+
+    @Test
+    public void testExecuteAsync() throws Exception {
+        when(executor3.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>(){
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                execution.getStorage().setResult("the result");
+                return Status.DONE;
+            }
+        });
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.POSTPONE).thenReturn(Status.DONE);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals("the result", execution.executeAsync(executor).get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+
+        InOrder executions = inOrder(executor1, executor2, executor3);
+        executions.verify(executor1).execute(any(ChainStorage.class));
+        executions.verify(executor2).execute(any(ChainStorage.class));
+        executions.verify(executor3).execute(any(ChainStorage.class));
+        executions.verify(executor1).execute(any(ChainStorage.class));
+        assertTrue(execution.isFinished());
+    }
+
+    @Test
+    public void testAsyncStepDoesNotHoldThread() throws Exception {
+        final CompletableFuture<Status> pending = new CompletableFuture<Status>();
+        AsyncChainStepExecutor asyncStep = new AsyncChainStepExecutor() {
+
+            public CompletionStage<Status> executeAsync(ChainStorage storage) {
+                return pending;
+            }
+        };
+        worker = new ChainWorker("test", new ChainStepExecutor[]{asyncStep, executor1});
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<Object> result1 = worker.executeAsync(executor);
+            CompletableFuture<Object> result2 = worker.executeAsync(executor);
+            
+            executor.submit(new Runnable() {
+
+                public void run() {
+                }
+            }).get(5, TimeUnit.SECONDS);
+            assertFalse(result1.isDone());
+            assertFalse(result2.isDone());
+            verify(executor1, never()).execute(any(ChainStorage.class));
+            
+            pending.complete(Status.DONE);
+            result1.get(5, TimeUnit.SECONDS);
+            result2.get(5, TimeUnit.SECONDS);
+            verify(executor1, times(2)).execute(any(ChainStorage.class));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncFailure() throws Exception {
+        when(executor2.execute(any(ChainStorage.class))).thenThrow(new IllegalStateException("failure"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            execution.executeAsync(executor).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), Matchers.instanceOf(IllegalStateException.class));
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(executor3, never()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testAwaitingStepParkedUntilPut() {
+        AwaitingStep awaitingStep = new AwaitingStep(new String[]{"key"}, new Class[0]);
+        when(executor2.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                assertEquals(1, awaitingStep.calls);
+                execution.getStorage().put("key", "value");
+                return Status.DONE;
+            }
+        });
+        worker = new ChainWorker("test", new ChainStepExecutor[]{awaitingStep, executor1, executor3, executor2});
+        execution = worker.createExecution();
+        execution.execute();
+
+        assertEquals(2, awaitingStep.calls);
+        assertEquals(Arrays.asList(executor1, executor3, executor2, awaitingStep), execution.getExecutedSteps());
+    }
+
+    @Test
+    public void testAwaitingStepWokenByAssignableType() {
+        AwaitingStep awaitingStep = new AwaitingStep(new String[0], new Class[]{CharSequence.class});
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                execution.getStorage().put(Integer.valueOf(1));
+                return Status.DONE;
+            }
+        });
+        when(executor2.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                execution.getStorage().put("value");
+                return Status.DONE;
+            }
+        });
+        worker = new ChainWorker("test", new ChainStepExecutor[]{awaitingStep, executor1, executor2});
+        execution = worker.createExecution();
+        execution.execute();
+
+        assertEquals(2, awaitingStep.calls);
+        assertTrue(execution.getNotExecutedSteps().isEmpty());
+    }
+
+    @Test
+    public void testAwaitingStepNeverWoken() {
+        AwaitingStep awaitingStep = new AwaitingStep(new String[]{"key"}, new Class[0]);
+        worker = new ChainWorker("test", new ChainStepExecutor[]{awaitingStep, executor1, executor2});
+        execution = worker.createExecution();
+        execution.execute();
+
+        assertEquals(1, awaitingStep.calls);
+        assertTrue(execution.isFinished());
+        assertEquals(Arrays.asList(awaitingStep), execution.getNotExecutedSteps());
+    }
+
+    @Test
+    public void testAwaitingStepNotParkedAfterPut() {
+        AwaitingStep awaitingStep = new AwaitingStep(new String[]{"key"}, new Class[0]) {
+
+            @Override
+            public Status execute(ChainStorage storage) {
+                if (calls == 0) {
+                    storage.put("other", 1);
+                }
+                return super.execute(storage);
+            }
+        };
+        worker = new ChainWorker("test", new ChainStepExecutor[]{awaitingStep, executor1});
+        execution = worker.createExecution();
+        execution.execute();
+
+        assertEquals(2, awaitingStep.calls);
+    }
+
+    @Test
+    public void testReset() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
+        execution.getStorage().put("key", "value");
+        execution.execute();
+        String id = execution.getId();
+
+        execution.reset("arg0");
+
+        assertFalse(execution.isStarted());
+        assertFalse(execution.isFinished());
+        assertTrue(execution.getProcessedSteps().isEmpty());
+        assertEquals(Arrays.asList(executor1, executor2, executor3), execution.getNotExecutedSteps());
+        assertNull(execution.getStorage().get("key"));
+        assertArrayEquals(new Object[]{"arg0"}, execution.getStorage().getParameters());
+        assertThat(execution.getId(), Matchers.not(Matchers.equalTo(id)));
+
+        execution.execute();
+        assertEquals(Arrays.asList(executor2, executor3), execution.getExecutedSteps());
+        assertEquals(Arrays.asList(executor1), execution.getSkippedSteps());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testResetInProgress() {
+        execution.executeNextStep();
+        execution.reset();
+    }
+
+    @Test
+    public void testDeadlineCancelsRemainingSteps() {
+        when(executor2.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                long start = System.currentTimeMillis();
+                while(!storage.isCancelled()) {
+                    assertTrue(System.currentTimeMillis() - start < 5000);
+                    Thread.sleep(1);
+                }
+                return Status.DONE;
+            }
+        });
+        execution.setTimeout(50, TimeUnit.MILLISECONDS);
+        try {
+            execution.execute();
+            fail();
+        } catch (ChainTimeoutException ex) {
+            assertThat(ex.getMessage(), Matchers.containsString(execution.getId()));
+        }
+
+        assertTrue(execution.isCancelled());
+        assertEquals(Arrays.asList(executor1, executor2), execution.getExecutedSteps());
+        assertEquals(Arrays.asList(executor3), execution.getNotExecutedSteps());
+        verify(executor3, never()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testCancelledStepStaysNotExecuted() {
+        execution.executeNextStep();
+        execution.cancel();
+        try {
+            execution.executeNextStep();
+            fail();
+        } catch (CancellationException ex) {
+            assertThat(ex.getCause(), Matchers.instanceOf(CancellationException.class));
+            assertThat(ex.getCause().getMessage(), Matchers.containsString(execution.getId()));
+        }
+
+        assertEquals(Arrays.asList(executor1), execution.getExecutedSteps());
+        assertEquals(Arrays.asList(executor2, executor3), execution.getNotExecutedSteps());
+        verify(executor2, never()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testDeadlineDisarmedOnFinish() throws InterruptedException {
+        execution.setTimeout(50, TimeUnit.MILLISECONDS);
+        execution.execute();
+        execution.reset();
+        Thread.sleep(100);
+
+        assertFalse(execution.isCancelled());
+        execution.execute();
+        assertEquals(Arrays.asList(executor1, executor2, executor3), execution.getExecutedSteps());
+    }
+
+    @Test
+    public void testStepTimeout() {
+        TimedStep timedStep = new TimedStep(50);
+        worker = new ChainWorker("test", new ChainStepExecutor[]{executor1, timedStep, executor2});
+        execution = worker.createExecution();
+        try {
+            execution.execute();
+            fail();
+        } catch (ChainTimeoutException ex) {
+            assertThat(ex.getMessage(), Matchers.containsString("50 ms"));
+            assertThat(ex.getCause(), Matchers.instanceOf(ChainTimeoutException.class));
+        }
+        verify(executor2, never()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testStepInTime() {
+        TimedStep timedStep = new TimedStep(5000);
+        worker = new ChainWorker("test", new ChainStepExecutor[]{timedStep, executor1});
+        worker.setTimeoutMillis(5000);
+        execution = worker.createExecution();
+        execution.execute();
+
+        assertFalse(execution.isCancelled());
+        assertEquals(Arrays.asList(timedStep, executor1), execution.getExecutedSteps());
+    }
+
+    @Test
+    public void testCancelAsync() throws Exception {
+        final CompletableFuture<Status> pending = new CompletableFuture<Status>();
+        AsyncChainStepExecutor asyncStep = new AsyncChainStepExecutor() {
+
+            public CompletionStage<Status> executeAsync(ChainStorage storage) {
+                return pending;
+            }
+        };
+        worker = new ChainWorker("test", new ChainStepExecutor[]{asyncStep, executor1});
+        execution = worker.createExecution();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            CompletableFuture<Object> result = execution.executeAsync(executor);
+            execution.cancel();
+            assertTrue(result.isCancelled());
+            
+            pending.complete(Status.DONE);
+            executor.submit(new Runnable() {
+
+                public void run() {
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        verify(executor1, never()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testSerializationInWork() throws IOException, ClassNotFoundException {
+        worker = new ChainWorker("chainName", Arrays.asList(new ChainStepExecutor[]{new ChainStepExecutorImpl(), new ChainStepExecutorImpl1()}));
+        execution = worker.createExecution();
+        execution.executeNextStep();
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(execution);
+        out.close();
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray()));
+        ChainExecution execution1 = (ChainExecution) in.readObject();
+        in.close();
+
+        assertEquals(execution.getId(), execution1.getId());
+        assertEquals(2, execution1.getChainWorker().getSteps().size());
+        assertEquals(1, execution1.getExecutedSteps().size());
+        assertTrue(execution1.isInProgress());
+        assertSame(execution1, execution1.getStorage().getExecution());
+
+        execution1.executeNextStep();
+        assertFalse(execution1.isInProgress());
+    }
+
+    private static class TimedStep implements TimedChainStepExecutor {
+
+        private final long timeoutMillis;
+
+        public TimedStep(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
+        }
+
+        public long getTimeoutMillis() {
+            return timeoutMillis;
+        }
+
+        public Status execute(ChainStorage storage) {
+            long start = System.currentTimeMillis();
+            while(!storage.isCancelled() && System.currentTimeMillis() - start < 200) {
+                Thread.yield();
+            }
+            return Status.DONE;
+        }
+    }
+
+    private static class AwaitingStep implements AwaitingChainStepExecutor {
+
+        private final String[] names;
+
+        private final Class[] types;
+
+        protected int calls;
+
+        public AwaitingStep(String[] names, Class[] types) {
+            this.names = names;
+            this.types = types;
+        }
+
+        public String[] getAwaitedNames() {
+            return names;
+        }
+
+        public Class[] getAwaitedTypes() {
+            return types;
+        }
+
+        public Status execute(ChainStorage storage) {
+            calls++;
+            return storage.get("key") != null || storage.get(String.class) != null ? Status.DONE : Status.POSTPONE;
+        }
+    }
+
+    private static class ChainStepExecutorImpl implements ChainStepExecutor {
+
+        public ChainStepExecutorImpl() {
+        }
+
+        public Status execute(ChainStorage storage) {
+            return Status.DONE;
+        }
+    }
+
+    private static class ChainStepExecutorImpl1 implements ChainStepExecutor {
+
+        public ChainStepExecutorImpl1() {
+        }
+
+        public Status execute(ChainStorage storage) {
+            return Status.DONE;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainExecutorsTest {
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testVirtualThreadsNotSupported() {
+        Assume.assumeTrue(!ChainExecutors.isVirtualThreadSupported());
+        ChainExecutors.newVirtualThreadExecutor();
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testSharedVirtualThreadsNotSupported() {
+        Assume.assumeTrue(!ChainExecutors.isVirtualThreadSupported());
+        ChainExecutors.virtualThreadExecutor();
+    }
+
+    @Test
+    public void testSubmitOnVirtualThread() throws Exception {
+        Assume.assumeTrue(ChainExecutors.isVirtualThreadSupported());
+
+        ChainWorker worker = new ChainWorker("test", new ChainStepExecutor[]{new ChainStepExecutor() {
+
+            public Status execute(ChainStorage storage) {
+                try {
+                    storage.setResult(Thread.class.getMethod("isVirtual").invoke(Thread.currentThread()));
+                } catch (Exception ex) {
+                    throw new IllegalStateException(ex);
+                }
+                return Status.DONE;
+            }
+        }});
+
+        assertEquals(Boolean.TRUE, worker.submit(ChainExecutors.virtualThreadExecutor()).get(5, TimeUnit.SECONDS));
+        assertSame(ChainExecutors.virtualThreadExecutor(), ChainExecutors.virtualThreadExecutor());
+    }
+}
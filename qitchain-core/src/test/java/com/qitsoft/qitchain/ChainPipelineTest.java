@@ -0,0 +1,227 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ChainPipelineTest {
+
+    private ChainPipeline pipeline;
+
+    @Mock
+    private ChainStepExecutor executor1;
+
+    @Mock
+    private ChainStepExecutor executor2;
+
+    @Mock
+    private ChainStepExecutor executor3;
+
+    @Before
+    public void setUp() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.DONE);
+        when(executor2.execute(any(ChainStorage.class))).thenReturn(Status.DONE);
+        when(executor3.execute(any(ChainStorage.class))).then(new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                storage.setResult(storage.getParameters()[0]);
+                return Status.DONE;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        if (pipeline != null) {
+            pipeline.close();
+        }
+    }
+
+    @Test
+    public void testSubmit() throws Exception {
+        pipeline = createPipeline(2);
+        List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+        for(int i = 0; i < 100; i++) {
+            results.add(pipeline.submit(i));
+        }
+
+        for(int i = 0; i < 100; i++) {
+            assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        verify(executor2, times(100)).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testStagesOverlap() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                if (storage.getParameters()[0].equals(1)) {
+                    latch.countDown();
+                }
+                return Status.DONE;
+            }
+        });
+        when(executor2.execute(any(ChainStorage.class))).then(new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                if (storage.getParameters()[0].equals(0)) {
+                    assertTrue(latch.await(5, TimeUnit.SECONDS));
+                }
+                return Status.DONE;
+            }
+        });
+        pipeline = createPipeline(4);
+
+        CompletableFuture<Object> result0 = pipeline.submit(0);
+        CompletableFuture<Object> result1 = pipeline.submit(1);
+
+        assertEquals(0, result0.get(5, TimeUnit.SECONDS));
+        assertEquals(1, result1.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPostponedStepRetriedAtTail() throws Exception {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.POSTPONE).thenReturn(Status.DONE);
+        pipeline = createPipeline(4);
+
+        assertEquals("arg0", pipeline.submit("arg0").get(5, TimeUnit.SECONDS));
+
+        verify(executor1, times(2)).execute(any(ChainStorage.class));
+        verify(executor3, times(1)).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testStepFailure() throws Exception {
+        when(executor2.execute(any(ChainStorage.class))).thenThrow(new IllegalStateException("failure")).thenReturn(Status.DONE);
+        pipeline = createPipeline(4);
+
+        try {
+            pipeline.submit("arg0").get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), Matchers.instanceOf(IllegalStateException.class));
+        }
+        verify(executor3, never()).execute(any(ChainStorage.class));
+        assertEquals("arg1", pipeline.submit("arg1").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCloseCompletesSubmitted() throws Exception {
+        pipeline = createPipeline(1);
+        CompletableFuture<Object> result = pipeline.submit("arg0");
+        pipeline.close();
+
+        assertTrue(pipeline.isClosed());
+        assertTrue(result.isDone());
+        assertEquals("arg0", result.get());
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testSubmitAfterClose() {
+        pipeline = createPipeline(1);
+        pipeline.close();
+        pipeline.submit("arg0");
+    }
+
+    @Test
+    public void testStagesRunStepRanges() throws Exception {
+        RecordingThreadFactory threadFactory = new RecordingThreadFactory();
+        pipeline = new ChainPipeline(new ChainWorker("test", new ChainStepExecutor[]{executor1, executor2, executor3}), 
+                4, 2, threadFactory);
+        List<CompletableFuture<Object>> results = new ArrayList<CompletableFuture<Object>>();
+        for(int i = 0; i < 10; i++) {
+            results.add(pipeline.submit(i));
+        }
+
+        for(int i = 0; i < 10; i++) {
+            assertEquals(i, results.get(i).get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(2, threadFactory.threads.size());
+        verify(executor2, times(10)).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testIdleStagesPark() throws Exception {
+        RecordingThreadFactory threadFactory = new RecordingThreadFactory();
+        pipeline = new ChainPipeline(new ChainWorker("test", new ChainStepExecutor[]{executor1, executor2, executor3}), 
+                4, threadFactory);
+        assertEquals("arg0", pipeline.submit("arg0").get(5, TimeUnit.SECONDS));
+
+        long start = System.currentTimeMillis();
+        for(Thread thread : threadFactory.threads) {
+            while(thread.getState() != Thread.State.WAITING) {
+                assertTrue(System.currentTimeMillis() - start < 5000);
+                Thread.sleep(1);
+            }
+        }
+        assertEquals("arg1", pipeline.submit("arg1").get(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        createPipeline(0);
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidStageCount() {
+        new ChainPipeline(new ChainWorker("test", new ChainStepExecutor[]{executor1}), 1, 0, null);
+    }
+
+    private ChainPipeline createPipeline(int capacity) {
+        return new ChainPipeline(new ChainWorker("test", new ChainStepExecutor[]{executor1, executor2, executor3}), capacity);
+    }
+
+    private static class RecordingThreadFactory implements ThreadFactory {
+
+        private final List<Thread> threads = new ArrayList<Thread>();
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable);
+            thread.setDaemon(true);
+            threads.add(thread);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ChainStorageLayerTest {
+    
+    @Mock
+    private ChainWorker chainWorker;
+    
+    @After
+    public void tearDown() {
+        ChainStorageLayer.setGlobal(null);
+    }
+    
+    @Test
+    public void testGetByTypeAndName() {
+        ChainStorageLayer layer = ChainStorageLayer.builder()
+                .put("first")
+                .put("second")
+                .put("number", 42)
+                .build();
+        
+        assertEquals("second", layer.get(String.class));
+        assertEquals("second", layer.get(CharSequence.class));
+        assertEquals(Arrays.asList("second", "first"), layer.list(String.class));
+        assertEquals(42, layer.get("number"));
+        assertNull(layer.get("unknown"));
+    }
+    
+    @Test
+    public void testReplaceNamed() {
+        ChainStorageLayer layer = ChainStorageLayer.builder()
+                .put("data", "first")
+                .put("data", new StringBuilder("second"))
+                .build();
+        
+        assertNull(layer.get(String.class));
+        assertEquals(1, layer.list(CharSequence.class).size());
+    }
+    
+    @Test
+    public void testBuildOnParent() {
+        ChainStorageLayer parent = ChainStorageLayer.builder().put("data", "parent").put(1).build();
+        ChainStorageLayer layer = ChainStorageLayer.builder(parent).put("data", "child").build();
+        
+        assertEquals("child", layer.get("data"));
+        assertEquals(Integer.valueOf(1), layer.get(Integer.class));
+        assertEquals("parent", parent.get("data"));
+    }
+    
+    @Test
+    public void testBuildOnParentKeepsOrder() {
+        ChainStorageLayer parent = ChainStorageLayer.builder().put("first").put("second").build();
+        ChainStorageLayer layer = ChainStorageLayer.builder(parent).put("third").build();
+        
+        assertEquals(Arrays.asList("third", "second", "first"), layer.list(String.class));
+        assertEquals(Arrays.asList("second", "first"), parent.list(String.class));
+    }
+    
+    @Test(timeout=10000)
+    public void testManyObjects() {
+        ChainStorageLayer.Builder builder = ChainStorageLayer.builder();
+        for(int i = 0; i < 200000; i++) {
+            builder.put(i);
+        }
+        ChainStorageLayer layer = builder.build();
+        
+        assertEquals(Integer.valueOf(199999), layer.get(Integer.class));
+        assertEquals(200000, layer.list(Integer.class).size());
+        assertEquals(Integer.valueOf(0), layer.list(Integer.class).get(199999));
+    }
+    
+    @Test
+    public void testStorageReadsWorkerLayer() {
+        when(chainWorker.getSharedStorage()).thenReturn(ChainStorageLayer.builder()
+                .put("config", "shared")
+                .put("reference")
+                .build());
+        ChainStorage storage = new ChainStorage(chainWorker, new Object[0]);
+        
+        assertEquals("shared", storage.get("config"));
+        assertEquals("reference", storage.get(String.class));
+        
+        storage.put("config", "own");
+        storage.put("overlay");
+        
+        assertEquals("own", storage.get("config"));
+        assertEquals("overlay", storage.get(String.class));
+        assertEquals(Arrays.asList("overlay", "own", "reference", "shared"), storage.list(String.class));
+    }
+    
+    @Test
+    public void testStorageReadsGlobalLayer() {
+        ChainStorageLayer.setGlobal(ChainStorageLayer.builder().put(42).build());
+        ChainStorage storage = new ChainStorage(chainWorker, new Object[0]);
+        
+        assertEquals(Integer.valueOf(42), storage.get(Integer.class));
+        assertSame(ChainStorageLayer.getGlobal(), storage.getSharedLayer());
+    }
+    
+    @Test
+    public void testDrainKeepsLayer() {
+        when(chainWorker.getSharedStorage()).thenReturn(ChainStorageLayer.builder().put("reference").build());
+        ChainStorage storage = new ChainStorage(chainWorker, new Object[0]);
+        storage.put("own");
+        
+        assertEquals(1, storage.drain(String.class, item -> { }));
+        assertEquals("reference", storage.get(String.class));
+    }
+    
+    @Test
+    public void testStorageKeyFromLayer() {
+        StorageKey<String> key = StorageKey.of("layer-test-key", String.class);
+        when(chainWorker.getSharedStorage()).thenReturn(ChainStorageLayer.builder().put(key, "shared").build());
+        ChainStorage storage = new ChainStorage(chainWorker, new Object[0]);
+        
+        assertEquals("shared", storage.get(key));
+        storage.set(key, "own");
+        assertEquals("own", storage.get(key));
+    }
+    
+    @Test
+    public void testKeyWithOtherType() {
+        StorageKey<Integer> key = StorageKey.of("layer-test-number", Integer.class);
+        when(chainWorker.getSharedStorage()).thenReturn(ChainStorageLayer.builder().put("layer-test-number", "text").build());
+        ChainStorage storage = new ChainStorage(chainWorker, new Object[0]);
+        
+        assertNull(storage.get(key));
+        assertEquals("text", storage.get("layer-test-number"));
+    }
+}
@@ -17,9 +17,20 @@ package com.qitsoft.qitchain;
 
 import com.qitsoft.qitchain.ChainStepExecutor.Status;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.hamcrest.Matchers;
+import org.junit.Assume;
 import org.junit.Before;
 
 import static org.junit.Assert.*;
@@ -36,6 +47,10 @@ import org.mockito.runners.MockitoJUnitRunner;
 @RunWith(MockitoJUnitRunner.class)
 public class ChainStorageTest {
     
+    private static final StorageKey<String> TEXT = StorageKey.of("storage-test-text", String.class);
+    
+    private static final StorageKey<Integer> NUMBER = StorageKey.of("storage-test-number", Integer.class);
+    
     private ChainStorage storage;
     
     @Mock
@@ -156,6 +171,148 @@ public class ChainStorageTest {
         assertThat(storage.list(Number.class), Matchers.hasItem((Number)3.4));
     }
     
+    @Test
+    public void testGetByInterface() {
+        storage.put(2);
+        storage.put("Some text");
+        assertEquals("Some text", storage.get(CharSequence.class));
+        assertEquals(2, storage.get(Comparable.class));
+        assertNull(storage.get(Runnable.class));
+    }
+    
+    @Test
+    public void testGetByInterfaceAfterReset() {
+        storage.put(2);
+        storage.put("Some text");
+        storage.reset(parameters);
+        
+        storage.put("Other text");
+        storage.put(3);
+        assertEquals("Other text", storage.get(Comparable.class));
+    }
+    
+    @Test
+    public void testListByInterfaceAfterNewClassStored() {
+        storage.put("Some text");
+        assertEquals(1, storage.list(CharSequence.class).size());
+        
+        StringBuilder builder = new StringBuilder("Other text");
+        storage.put(builder);
+        storage.put(5);
+        
+        assertEquals(2, storage.list(CharSequence.class).size());
+        assertThat(storage.list(CharSequence.class), Matchers.hasItem((CharSequence)builder));
+        assertEquals(3, storage.list(java.io.Serializable.class).size());
+    }
+    
+    @Test
+    public void testGetByKey() {
+        assertNull(storage.get(TEXT));
+        storage.set(TEXT, "Some text");
+        storage.set(NUMBER, 5);
+        
+        assertEquals("Some text", storage.get(TEXT));
+        assertEquals(Integer.valueOf(5), storage.get(NUMBER));
+        assertEquals("Some text", storage.get("storage-test-text"));
+        
+        storage.set(TEXT, null);
+        assertNull(storage.get(TEXT));
+    }
+    
+    @Test
+    public void testPutByKeyName() {
+        storage.put("storage-test-text", "Some text");
+        assertEquals("Some text", storage.get(TEXT));
+    }
+    
+    @Test
+    public void testPutByKeyNameWithOtherType() {
+        storage.set(NUMBER, 5);
+        storage.put("storage-test-number", "Some text");
+        
+        assertNull(storage.get(NUMBER));
+        assertEquals("Some text", storage.get("storage-test-number"));
+        assertEquals("Some text", storage.get(String.class));
+    }
+    
+    @Test
+    public void testSetByKeyReplacesNamedObject() {
+        storage.put("storage-test-text", "Named text");
+        storage.set(TEXT, "Some text");
+        
+        assertEquals("Some text", storage.get("storage-test-text"));
+        assertNull(storage.get(String.class));
+    }
+    
+    @Test
+    public void testKeyCreatedAfterStorage() {
+        StorageKey<Double> key = StorageKey.of("storage-test-late-" + System.nanoTime(), Double.class);
+        storage.set(key, 3.14);
+        assertEquals(Double.valueOf(3.14), storage.get(key));
+    }
+    
+    @Test
+    public void testSameKeyByName() {
+        assertEquals(TEXT, StorageKey.of("storage-test-text", String.class));
+        assertFalse(TEXT.equals(StorageKey.of("storage-test-text", Integer.class)));
+    }
+    
+    @Test
+    public void testSameKeyNameWithOtherType() {
+        StorageKey<Integer> number = StorageKey.of("storage-test-text", Integer.class);
+        storage.set(TEXT, "Some text");
+        assertNull(storage.get(number));
+        
+        storage.set(number, 5);
+        assertEquals(Integer.valueOf(5), storage.get(number));
+        assertNull(storage.get(TEXT));
+    }
+    
+    @Test
+    public void testKeySlotsArePerWorker() {
+        ChainStorage storage1 = new ChainStorage(new ChainWorker("test1", new ChainStepExecutor[0]), parameters);
+        ChainStorage storage2 = new ChainStorage(new ChainWorker("test2", new ChainStepExecutor[0]), parameters);
+        storage1.set(TEXT, "first");
+        storage2.set(NUMBER, 2);
+        storage2.set(TEXT, "second");
+        
+        assertEquals("first", storage1.get(TEXT));
+        assertEquals("second", storage2.get(TEXT));
+        assertEquals(Integer.valueOf(2), storage2.get(NUMBER));
+        assertNull(storage1.get(NUMBER));
+    }
+    
+    @Test
+    public void testKeySharedByWorkersDoesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        
+        ChainStorage storage1 = new ChainStorage(new ChainWorker("test1", new ChainStepExecutor[0]), parameters);
+        ChainStorage storage2 = new ChainStorage(new ChainWorker("test2", new ChainStepExecutor[0]), parameters);
+        storage2.set(NUMBER, 2);
+        storage1.set(TEXT, "first");
+        storage2.set(TEXT, "second");
+        for(int i = 0; i < 20000; i++) {
+            storage1.get(TEXT);
+            storage2.get(TEXT);
+        }
+        
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < 10000; i++) {
+            assertNotNull(storage1.get(TEXT));
+            assertNotNull(storage2.get(TEXT));
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+        
+        assertThat(allocated / 10000, Matchers.lessThan(16L));
+        assertEquals("first", storage1.get(TEXT));
+        assertEquals("second", storage2.get(TEXT));
+    }
+    
     @Test(expected=IllegalArgumentException.class)
     public void testConstructWithNullWorker() {
         storage = new ChainStorage(null, parameters);
@@ -176,6 +333,7 @@ public class ChainStorageTest {
         
         storage.put("The unnamed text");
         storage.put("data", "The named text");
+        storage.set(NUMBER, 42);
         storage.setResult("The result");
         storage.setStepParameters(new String[]{"stepArg0", "stepArg1"});
         
@@ -195,12 +353,317 @@ public class ChainStorageTest {
         
         assertArrayEquals(storage.list(String.class).toArray(), storage1.list(String.class).toArray());
         assertEquals(storage.get("data"), storage1.get("data"));
+        assertEquals(Integer.valueOf(42), storage1.get(NUMBER));
         assertEquals(storage.getResult(), storage1.getResult());
         assertArrayEquals(storage.getStepParameters(), storage1.getStepParameters());
         assertArrayEquals(storage.getParameters(), storage1.getParameters());
         assertNotNull(storage1.getChainWorker());
     }
 
+    @Test
+    public void testListByInterfaceAfterRemove() {
+        storage.put("data", "Some text");
+        storage.put("data", new StringBuilder("Other text"));
+        
+        assertEquals(1, storage.list(CharSequence.class).size());
+        assertThat(storage.get(CharSequence.class), Matchers.instanceOf(StringBuilder.class));
+        assertTrue(storage.list(String.class).isEmpty());
+    }
+    
+    @Test
+    public void testRemoveByHandle() {
+        storage.put("first");
+        ChainStorage.Handle handle = storage.add("second");
+        storage.put("third");
+        
+        assertEquals("second", handle.get());
+        handle.remove();
+        
+        assertTrue(handle.isRemoved());
+        assertEquals(Arrays.asList("third", "first"), storage.list(String.class));
+        handle.remove();
+        assertEquals(2, storage.list(String.class).size());
+    }
+    
+    @Test
+    public void testDrain() {
+        storage.put("first");
+        storage.put("data", "second");
+        storage.put(new StringBuilder("third"));
+        
+        final List<Object> drained = new ArrayList<Object>();
+        int count = storage.drain(CharSequence.class, item -> drained.add(item.toString()));
+        
+        assertEquals(3, count);
+        assertThat(drained, Matchers.<Object>hasItems("first", "second", "third"));
+        assertTrue(storage.list(CharSequence.class).isEmpty());
+        assertNull(storage.get("data"));
+    }
+    
+    @Test
+    public void testForEach() {
+        storage.put("first");
+        storage.put("second");
+        
+        final List<String> items = new ArrayList<String>();
+        storage.forEach(String.class, item -> items.add(item));
+        
+        assertEquals(Arrays.asList("second", "first"), items);
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testPutWhileForEach() {
+        storage.put("first");
+        storage.forEach(String.class, item -> storage.put("second"));
+    }
+    
+    @Test
+    public void testHighVolumeAccumulation() {
+        ChainStorage.Handle[] handles = new ChainStorage.Handle[100000];
+        for(int i = 0; i < handles.length; i++) {
+            handles[i] = storage.add(Integer.valueOf(i));
+        }
+        for(int i = 0; i < handles.length; i += 2) {
+            handles[i].remove();
+        }
+        
+        assertEquals(Integer.valueOf(handles.length - 1), storage.get(Integer.class));
+        final int[] count = new int[1];
+        storage.forEach(Integer.class, item -> count[0]++);
+        assertEquals(handles.length / 2, count[0]);
+    }
+
+    @Test
+    public void testLazyValueComputedOnFirstGet() {
+        final AtomicInteger calls = new AtomicInteger();
+        storage.putLazy("data", () -> {
+            calls.incrementAndGet();
+            return "computed";
+        });
+        
+        assertEquals(0, calls.get());
+        assertEquals("computed", storage.get("data"));
+        assertEquals("computed", storage.get("data", String.class));
+        assertEquals(1, calls.get());
+    }
+    
+    @Test
+    public void testLazyValueByType() {
+        storage.putLazy(CharSequence.class, () -> "computed");
+        
+        assertEquals("computed", storage.get(CharSequence.class));
+        assertEquals(Arrays.asList("computed"), storage.list(CharSequence.class));
+    }
+    
+    @Test
+    public void testNamedLazyValueByType() {
+        storage.putLazy("data", CharSequence.class, () -> "computed");
+        storage.putFuture("future", String.class, CompletableFuture.completedFuture("done"));
+        
+        assertEquals("computed", storage.get("data"));
+        assertEquals("computed", storage.get(CharSequence.class));
+        assertEquals("done", storage.get(String.class));
+        assertEquals(Arrays.asList("computed"), storage.list(CharSequence.class));
+    }
+    
+    @Test
+    public void testLazyValueComputedOutsideOfLock() {
+        storage.put("first");
+        storage.putLazy(String.class, () -> {
+            storage.put("computed-" + storage.list(Integer.class).size(), 1);
+            return "computed";
+        });
+        storage.put("last");
+        
+        assertEquals(Arrays.asList("last", "computed", "first"), storage.list(String.class));
+        assertEquals(Integer.valueOf(1), storage.get("computed-0"));
+    }
+    
+    @Test
+    public void testLazyValueComputedOnceConcurrently() throws Exception {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        storage.putLazy("data", () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return "computed";
+        });
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Object>> results = new ArrayList<Future<Object>>();
+            for(int i = 0; i < 4; i++) {
+                results.add(executor.submit(() -> storage.get("data")));
+            }
+            for(Future<Object> result : results) {
+                assertEquals("computed", result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+    }
+    
+    @Test
+    public void testFutureValue() {
+        CompletableFuture<String> future = new CompletableFuture<String>();
+        storage.putFuture(String.class, future);
+        future.complete("done");
+        
+        assertEquals("done", storage.get(String.class));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testFailedLazyValue() {
+        storage.putLazy("data", () -> {
+            throw new IllegalArgumentException("failure");
+        });
+        storage.get("data");
+    }
+
+    @Test
+    public void testPrimitiveValues() {
+        storage.putInt("storage-test-int", 7);
+        storage.putLong("storage-test-long", 1L << 40);
+        storage.putDouble("storage-test-double", 0.5);
+        
+        assertEquals(7, storage.getInt("storage-test-int"));
+        assertEquals(1L << 40, storage.getLong("storage-test-long"));
+        assertEquals(0.5, storage.getDouble("storage-test-double"), 0);
+        assertEquals(Integer.valueOf(7), storage.get("storage-test-int"));
+        assertEquals(0, storage.getInt("storage-test-missing"));
+    }
+    
+    @Test
+    public void testPrimitiveValueReplacesObject() {
+        StorageKey<Integer> key = StorageKey.of("storage-test-replaced", Integer.class);
+        storage.set(key, 3);
+        assertEquals(3, storage.getInt(key));
+        
+        storage.putInt(key, 4);
+        assertEquals(Integer.valueOf(4), storage.get(key));
+        
+        storage.set(key, 5);
+        assertEquals(5, storage.getInt(key));
+    }
+    
+    @Test
+    public void testIncrement() {
+        assertEquals(1, storage.increment("storage-test-counter"));
+        assertEquals(2, storage.increment("storage-test-counter"));
+        assertEquals(12, storage.add(StorageKey.of("storage-test-counter", Long.class), 10));
+        assertEquals(12L, storage.getLong("storage-test-counter"));
+        
+        storage.reset(parameters);
+        assertEquals(0L, storage.getLong("storage-test-counter"));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testIncrementNotCounter() {
+        storage.set(TEXT, "Some text");
+        storage.increment(TEXT.getName());
+    }
+    
+    @Test
+    public void testPutIntReplacesNamedObject() {
+        storage.put(TEXT.getName(), "Some text");
+        storage.putInt(TEXT.getName(), 1);
+        
+        assertEquals(1, storage.getInt(TEXT.getName()));
+        assertEquals(Integer.valueOf(1), storage.get(TEXT.getName()));
+        assertNull(storage.get(TEXT));
+        assertNull(storage.get(String.class));
+        
+        storage.put(TEXT.getName(), "Other text");
+        assertEquals("Other text", storage.get(TEXT));
+    }
+    
+    @Test
+    public void testSameNameWithOtherTypesInTwoChains() {
+        ChainStorage storage1 = new ChainStorage(new ChainWorker("test1", new ChainStepExecutor[0]), parameters);
+        ChainStorage storage2 = new ChainStorage(new ChainWorker("test2", new ChainStepExecutor[0]), parameters);
+        ChainStorage storage3 = new ChainStorage(new ChainWorker("test3", new ChainStepExecutor[0]), parameters);
+        storage1.putInt("storage-test-shared-name", 3);
+        storage2.putDouble("storage-test-shared-name", 2.5);
+        storage3.put("storage-test-shared-name", "text");
+        
+        assertEquals(3, storage1.getInt("storage-test-shared-name"));
+        assertEquals(Integer.valueOf(3), storage1.get("storage-test-shared-name"));
+        assertEquals(2.5, storage2.getDouble("storage-test-shared-name"), 0);
+        assertEquals("text", storage3.get("storage-test-shared-name"));
+    }
+    
+    @Test
+    public void testPrimitiveValueOfOtherType() {
+        storage.putInt("storage-test-retyped", 3);
+        storage.putDouble("storage-test-retyped", 2.5);
+        assertEquals(2.5, storage.getDouble("storage-test-retyped"), 0);
+        assertEquals(3, storage.increment("storage-test-retyped"));
+        assertEquals(Long.valueOf(3), storage.get("storage-test-retyped"));
+        
+        storage.put("storage-test-retyped", 7);
+        assertEquals(8, storage.increment("storage-test-retyped"));
+        assertEquals(Integer.valueOf(8), storage.get("storage-test-retyped"));
+    }
+    
+    @Test
+    public void testPrimitiveNamesDoNotGrowLayout() {
+        ChainWorker worker = new ChainWorker("test", new ChainStepExecutor[0]);
+        storage = new ChainStorage(worker, parameters);
+        for(int i = 0; i < 100; i++) {
+            storage.putInt("storage-test-ad-hoc-" + i, i);
+            storage.putDouble("storage-test-ad-hoc-double-" + i, i / 2.0);
+            storage.increment("storage-test-ad-hoc-counter-" + i);
+        }
+        
+        assertEquals(0, worker.getStorageLayout().size());
+        assertEquals(42, storage.getInt("storage-test-ad-hoc-42"));
+        assertEquals(Integer.valueOf(42), storage.get("storage-test-ad-hoc-42"));
+        assertEquals(21.5, storage.getDouble("storage-test-ad-hoc-double-43"), 0);
+        assertEquals(2, storage.increment("storage-test-ad-hoc-counter-7"));
+        assertEquals(0, new ChainStorage(worker, parameters).getInt("storage-test-ad-hoc-42"));
+        
+        storage.reset(parameters);
+        assertEquals(0, storage.getInt("storage-test-ad-hoc-42"));
+        assertNull(storage.get("storage-test-ad-hoc-42"));
+    }
+    
+    @Test
+    public void testKeyTakesPrimitiveOfName() {
+        storage.putInt(NUMBER.getName(), 5);
+        assertEquals(5, storage.getInt(NUMBER));
+        assertEquals(Integer.valueOf(5), storage.get(NUMBER));
+        
+        storage.putInt(NUMBER, 6);
+        assertEquals(6, storage.getInt(NUMBER.getName()));
+        assertEquals(7, storage.increment(NUMBER.getName()));
+        
+        storage.put(NUMBER.getName(), "text");
+        assertEquals("text", storage.get(NUMBER.getName()));
+        assertNull(storage.get(NUMBER));
+    }
+    
+    @Test
+    public void testPrimitiveValuesSerialization() throws IOException, ClassNotFoundException {
+        storage = new ChainStorage(new ChainWorker("test", Arrays.asList(new ChainStepExecutor[]{new ChainStepExecutorImpl()})), parameters);
+        storage.putInt("storage-test-serialized", 42);
+        storage.putDouble("storage-test-serialized-double", 2.5);
+        
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bout);
+        out.writeObject(storage);
+        out.close();
+        ChainStorage storage1 = (ChainStorage) new ObjectInputStream(new ByteArrayInputStream(bout.toByteArray())).readObject();
+        
+        assertEquals(42, storage1.getInt("storage-test-serialized"));
+        assertEquals(2.5, storage1.getDouble("storage-test-serialized-double"), 0);
+    }
+
     private static class ChainStepExecutorImpl implements ChainStepExecutor {
 
         public ChainStepExecutorImpl() {
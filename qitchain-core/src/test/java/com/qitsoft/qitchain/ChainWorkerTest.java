@@ -16,14 +16,30 @@
 package com.qitsoft.qitchain;
 
 import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import com.qitsoft.qitchain.annotation.ChainListener;
 import com.qitsoft.qitchain.listeners.ChainAfterListener;
 import com.qitsoft.qitchain.listeners.ChainAfterStepListener;
 import com.qitsoft.qitchain.listeners.ChainBeforeListener;
 import com.qitsoft.qitchain.listeners.ChainBeforeStepListener;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.hamcrest.Matchers;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -133,7 +149,7 @@ public class ChainWorkerTest {
 
             public Status answer(InvocationOnMock invocation) throws Throwable {
                 ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
-                id.push(storage.getChainWorker().getId());
+                id.push(storage.getExecution().getId());
                 return Status.DONE;
             }
             
@@ -147,32 +163,6 @@ public class ChainWorkerTest {
         assertThat(id1, Matchers.not(Matchers.equalTo(id2)));
     }
     
-    @Test
-    public void testExecuteCleanupStorage() {
-        worker.execute();
-        assertNull(worker.getStorage());
-    }
-    
-    @Test
-    public void testExecuteCleanupId() {
-        worker.execute();
-        assertNull(worker.getId());
-    }
-    
-    @Test
-    public void testIsActive() {
-        when(executor1.execute(any(ChainStorage.class))).thenAnswer(new Answer<ChainStepExecutor.Status>() {
-
-            public Status answer(InvocationOnMock invocation) throws Throwable {
-                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
-                assertTrue(storage.getChainWorker().isInProgress());
-                return Status.DONE;
-            }
-        });
-        assertFalse(worker.isInProgress());
-    } 
-    
-    
     @Test
     public void testExecuteNullStepParameters() {
         final Object[] params = new Object[] {"arg0", 2, 6.28};
@@ -202,43 +192,6 @@ public class ChainWorkerTest {
         assertEquals("the method result", worker.execute());
     }
     
-    @Test
-    public void testSetupExecutedAndSkippedSteps() {
-        when(executor2.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
-
-            public Status answer(InvocationOnMock invocation) throws Throwable {
-                assertNotNull(worker.getExecutedSteps());
-                assertNotNull(worker.getSkippedSteps());
-                assertNotNull(worker.getProcessedSteps());
-                
-                return Status.DONE;
-            }
-        });
-        worker.execute();        
-    }
-    
-    @Test
-    public void testClearExecutedAndSkippedSteps() {
-        worker.execute();        
-        assertNull(worker.getExecutedSteps());
-        assertNull(worker.getSkippedSteps());
-        assertNull(worker.getProcessedSteps());
-    }
-    
-    @Test
-    public void testGetExecutedSteps() {
-        when(executor2.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
-
-            public Status answer(InvocationOnMock invocation) throws Throwable {
-                assertThat(worker.getExecutedSteps(), Matchers.hasItem(executor1));
-                assertTrue(worker.getSkippedSteps().isEmpty());
-                
-                return Status.DONE;
-            }
-        });
-        worker.execute();
-    }
-    
     @Test
     public void testGetSkippedSteps() {
         when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
@@ -247,7 +200,8 @@ public class ChainWorkerTest {
         Answer<Status> answer = new Answer<ChainStepExecutor.Status>() {
 
             public Status answer(InvocationOnMock invocation) throws Throwable {
-                assertThat(worker.getSkippedSteps(), Matchers.hasItem(executor1));
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                assertThat(storage.getExecution().getSkippedSteps(), Matchers.hasItem(executor1));
                 stackExecutions.push("1");
                 
                 return Status.DONE;
@@ -290,6 +244,31 @@ public class ChainWorkerTest {
         executions.verifyNoMoreInteractions();
     }
     
+    @Test
+    public void testSetSteps() {
+        ChainExecution execution = worker.createExecution();
+        worker.setSteps(Arrays.asList(executor3, executor1));
+        
+        assertArrayEquals(new ChainStepExecutor[]{executor3, executor1}, worker.getSteps().toArray());
+        execution.execute();
+        assertEquals(Arrays.asList(executor1, executor2, executor3), execution.getExecutedSteps());
+        
+        execution = worker.createExecution();
+        execution.execute();
+        assertEquals(Arrays.asList(executor3, executor1), execution.getExecutedSteps());
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void testSetStepsReturnsUnmodifiableList() {
+        worker.setSteps(new ArrayList<ChainStepExecutor>(Arrays.asList(executor1)));
+        worker.getSteps().add(executor2);
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testSetNullSteps() {
+        worker.setSteps(null);
+    }
+    
     @Test
     public void testListenBeforeAndAfter() {
         worker.addListener(beforeListener);
@@ -345,133 +324,214 @@ public class ChainWorkerTest {
     
     
     @Test
-    public void testFirstExecuteNextStep() {
-        worker.executeNextStep();
+    public void testListenerWithSeveralInterfaces() {
+        CompositeListener listener = mock(CompositeListener.class);
+        worker.addListener(listener);
+        worker.execute();
+        
+        verify(listener).onBefore(same(worker), any(ChainStorage.class));
+        verify(listener).onAfter(same(worker), any(ChainStorage.class));
         
-        assertNotNull(worker.getId());
-        assertNotNull(worker.getStorage());
-        assertEquals(1, worker.getExecutedSteps().size());
-        assertEquals(executor1, worker.getExecutedSteps().get(0));
-        assertEquals(0, worker.getSkippedSteps().size());
+        worker.removeListener(listener);
+        worker.execute();
+        
+        verifyNoMoreInteractions(listener);
     }
     
     @Test
-    public void testExecuteNextStep() {
-        worker.executeNextStep();
-        worker.executeNextStep();
+    public void testAddListenerDuringExecution() {
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                worker.addListener(afterStepListener);
+                return Status.DONE;
+            }
+        });
+        worker.execute();
         
-        assertEquals(2, worker.getExecutedSteps().size());
-        assertEquals(executor2, worker.getExecutedSteps().get(1));
-        assertEquals(0, worker.getSkippedSteps().size());
+        verify(afterStepListener).onAfterStep(same(worker), same(executor1), any(ChainStorage.class), eq(Status.DONE));
+        verify(afterStepListener).onAfterStep(same(worker), same(executor3), any(ChainStorage.class), any(Status.class));
     }
     
     @Test
-    public void testExecuteNextPostponedStep() {
-        when(executor2.execute(any(ChainStorage.class))).thenReturn(Status.POSTPONE);
-        
-        worker.executeNextStep();
-        worker.executeNextStep();
+    public void testAsyncListenerByAnnotation() throws Exception {
+        AsyncListener listener = new AsyncListener();
+        worker.addListener(listener);
+        worker.execute();
         
-        assertEquals(2, worker.getExecutedSteps().size());
-        assertEquals(executor3, worker.getExecutedSteps().get(1));
-        assertEquals(0, worker.getSkippedSteps().size());
+        assertTrue(listener.latch.await(5, TimeUnit.SECONDS));
+        assertNotSame(Thread.currentThread(), listener.thread);
         
-        verify(executor2, only()).execute(any(ChainStorage.class));
+        worker.removeListener(listener);
+        assertEquals(0, worker.getAfterListeners().length);
     }
     
     @Test
-    public void testExecuteLastStep() {
-        worker.executeNextStep();
-        worker.executeNextStep();
-        worker.executeNextStep();
-        
-        assertFalse(worker.isInProgress());
-        assertNull(worker.getExecutedSteps());
-        assertNull(worker.getSkippedSteps());
-        assertNull(worker.getProcessedSteps());
-        assertNull(worker.getStorage());
-        assertNull(worker.getId());
-    }
-
-    @Test
-    public void testExecuteStepWithArguments() {
-        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>(){
+    public void testPooledExecution() {
+        final List<ChainStorage> storages = new ArrayList<ChainStorage>();
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
 
             public Status answer(InvocationOnMock invocation) throws Throwable {
-                assertNotNull(worker.getStorage().getStepParameters());
-                assertArrayEquals(new Object[]{"arg0", 4, 3.14}, worker.getStorage().getStepParameters());
-                assertNull(worker.getStorage().getParameters());
-                
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                assertNull(storage.get("key"));
+                storage.put("key", "value");
+                storages.add(storage);
                 return Status.DONE;
             }
         });
+        worker.execute();
+        worker.execute();
+        assertSame(storages.get(0), storages.get(1));
         
-        worker.executeNextStep("arg0", 4, 3.14);
+        worker.setExecutionPoolSize(0);
+        worker.execute();
+        worker.execute();
+        assertNotSame(storages.get(2), storages.get(3));
     }
-
+    
     @Test
-    public void testExecuteStepReturnsResult() {
-        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>(){
+    public void testConcurrentReleasesShareThePool() throws Exception {
+        final int threads = 4;
+        final CyclicBarrier barrier = new CyclicBarrier(threads);
+        final Set<ChainStorage> storages = Collections.newSetFromMap(new IdentityHashMap<ChainStorage, Boolean>());
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
 
             public Status answer(InvocationOnMock invocation) throws Throwable {
-                worker.getStorage().setResult("the result");
-                
+                synchronized (storages) {
+                    storages.add((ChainStorage) invocation.getArguments()[0]);
+                }
+                barrier.await(5, TimeUnit.SECONDS);
                 return Status.DONE;
             }
         });
+        worker.setExecutionPoolSize(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(int round = 0; round < 2; round++) {
+                List<Future<Object>> results = new ArrayList<Future<Object>>();
+                for(int i = 0; i < threads; i++) {
+                    results.add(executor.submit(new Callable<Object>() {
+
+                        public Object call() {
+                            return worker.execute();
+                        }
+                    }));
+                }
+                for(Future<Object> result : results) {
+                    result.get(5, TimeUnit.SECONDS);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
         
-        assertEquals("the result", worker.executeNextStep());
+        assertEquals(threads, storages.size());
     }
     
     @Test
-    public void testExecuteStepWithSkipped() {
-        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
+    public void testSteadyStateExecutionDoesNotAllocate() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) threadBean;
+        Assume.assumeTrue(allocationBean.isThreadAllocatedMemorySupported());
+        allocationBean.setThreadAllocatedMemoryEnabled(true);
+        
+        worker = new ChainWorker("test", new ChainStepExecutor[]{new ChainStepExecutorImpl(), new ChainStepExecutorImpl1()});
+        Object[] params = new Object[]{"arg0"};
+        for(int i = 0; i < 20000; i++) {
+            worker.execute(params);
+        }
         
-        worker.executeNextStep();
-        worker.executeNextStep();
-        assertFalse(worker.isInProgress());
+        long threadId = Thread.currentThread().getId();
+        long before = allocationBean.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < 10000; i++) {
+            worker.execute(params);
+        }
+        long allocated = allocationBean.getThreadAllocatedBytes(threadId) - before;
+        
+        assertThat(allocated / 10000, Matchers.lessThan(16L));
     }
     
     @Test
-    public void testExecuteWithSkipped() {
-        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
+    public void testIndependentExecutions() {
+        ChainExecution execution1 = worker.createExecution();
+        ChainExecution execution2 = worker.createExecution();
         
-        worker.execute();
-        assertFalse(worker.isInProgress());
+        execution1.executeNextStep();
+        execution1.executeNextStep();
+        execution2.executeNextStep();
+        
+        assertThat(execution1.getId(), Matchers.not(Matchers.equalTo(execution2.getId())));
+        assertNotSame(execution1.getStorage(), execution2.getStorage());
+        assertEquals(2, execution1.getExecutedSteps().size());
+        assertEquals(1, execution2.getExecutedSteps().size());
     }
     
     @Test
-    public void testSerializationNotInWork() throws IOException, ClassNotFoundException {
-        worker = new ChainWorker("chainName", Arrays.asList(new ChainStepExecutor[]{new ChainStepExecutorImpl()}));
-        ChainWorker worker1 = serializeDeserialize();
-        
-        assertNotNull(worker1.getSteps());
-        assertEquals(1, worker1.getSteps().size());
-        assertEquals(worker.getSteps().get(0).getClass(), worker1.getSteps().get(0).getClass());
-        assertFalse(worker1.isInProgress());
-        assertEquals(worker.getName(), worker1.getName());
+    public void testSubmit() throws Exception {
+        when(executor3.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                storage.setResult(storage.getParameters()[0]);
+                return Status.DONE;
+            }
+        });
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertEquals("arg0", worker.submit(executor, "arg0").get(5, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
     }
     
     @Test
-    public void testSerializationInWork() throws IOException, ClassNotFoundException {
-        worker = new ChainWorker("chainName", Arrays.asList(new ChainStepExecutor[]{new ChainStepExecutorImpl(), new ChainStepExecutorImpl1()}));
-        worker.executeNextStep();
+    public void testExecuteBatch() {
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                assertNull(storage.get("key"));
+                assertNull(storage.getResult());
+                storage.put("key", storage.getParameters()[0]);
+                return Status.DONE;
+            }
+        });
+        when(executor3.execute(any(ChainStorage.class))).then(new Answer<ChainStepExecutor.Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ChainStorage storage = (ChainStorage) invocation.getArguments()[0];
+                storage.setResult(storage.get("key"));
+                return Status.DONE;
+            }
+        });
+        worker.addListener(beforeListener);
+        worker.addListener(afterListener);
+        
+        List<Object> results = worker.executeBatch(Arrays.asList(new Object[]{"a"}, new Object[]{"b"}, new Object[]{"c"}));
         
+        assertEquals(Arrays.asList("a", "b", "c"), results);
+        verify(executor2, times(3)).execute(any(ChainStorage.class));
+        verify(beforeListener, times(3)).onBefore(same(worker), any(ChainStorage.class));
+        verify(afterListener, times(3)).onAfter(same(worker), any(ChainStorage.class));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testExecuteBatchWithNull() {
+        worker.executeBatch(null);
+    }
+    
+    @Test
+    public void testSerializationNotInWork() throws IOException, ClassNotFoundException {
+        worker = new ChainWorker("chainName", Arrays.asList(new ChainStepExecutor[]{new ChainStepExecutorImpl()}));
         ChainWorker worker1 = serializeDeserialize();
         
         assertNotNull(worker1.getSteps());
-        assertEquals(2, worker1.getSteps().size());
+        assertEquals(1, worker1.getSteps().size());
         assertEquals(worker.getSteps().get(0).getClass(), worker1.getSteps().get(0).getClass());
-        assertEquals(worker.getSteps().get(1).getClass(), worker1.getSteps().get(1).getClass());
-        assertTrue(worker1.isInProgress());
         assertEquals(worker.getName(), worker1.getName());
-        
-        worker1.executeNextStep();
-        assertFalse(worker1.isInProgress());
     }
     
-    
-
     private ChainWorker serializeDeserialize() throws IOException, ClassNotFoundException {
         ByteArrayOutputStream bout = new ByteArrayOutputStream();
         ObjectOutputStream out = new ObjectOutputStream(bout);
@@ -486,6 +546,22 @@ public class ChainWorkerTest {
         return worker1;
     }
 
+    @ChainListener(async=true)
+    private static class AsyncListener implements ChainAfterListener {
+        
+        private final CountDownLatch latch = new CountDownLatch(1);
+        
+        private volatile Thread thread;
+
+        public void onAfter(ChainWorker worker, ChainStorage storage) {
+            thread = Thread.currentThread();
+            latch.countDown();
+        }
+    }
+    
+    private interface CompositeListener extends ChainBeforeListener, ChainAfterListener {
+    }
+    
     private static class ChainStepExecutorImpl implements ChainStepExecutor {
 
         public ChainStepExecutorImpl() {
@@ -0,0 +1,368 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.mockito.Mockito.*;
+import static org.junit.Assert.*;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ParallelChainWorkerTest {
+
+    private ForkJoinPool pool;
+
+    @Mock
+    private ChainStepExecutor executor1;
+
+    @Mock
+    private ChainStepExecutor executor2;
+
+    @Mock
+    private ChainStepExecutor executor3;
+
+    @Before
+    public void setUp() {
+        pool = new ForkJoinPool(4);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testTopologicalOrder() {
+        ParallelChainWorker worker = createWorker(new int[][]{{1}, {2}, {}});
+
+        assertArrayEquals(new ChainStepExecutor[]{executor3, executor2, executor1}, worker.getSteps().toArray());
+        assertArrayEquals(new int[][]{{}, {0}, {1}}, worker.getDependencies());
+    }
+
+    @Test
+    public void testExecuteDependentAfterDependency() {
+        ParallelChainWorker worker = createWorker(new int[][]{{1}, {2}, {}});
+        worker.execute();
+
+        InOrder executions = inOrder(executor1, executor2, executor3);
+        executions.verify(executor3).execute(any(ChainStorage.class));
+        executions.verify(executor2).execute(any(ChainStorage.class));
+        executions.verify(executor1).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testExecuteIndependentStepsInParallel() {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Answer<Status> answer = new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                latch.countDown();
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                return Status.DONE;
+            }
+        };
+        when(executor1.execute(any(ChainStorage.class))).then(answer);
+        when(executor2.execute(any(ChainStorage.class))).then(answer);
+
+        ParallelChainWorker worker = createWorker(new int[][]{{}, {}, {0, 1}});
+        ChainExecution execution = worker.createExecution();
+        execution.execute();
+
+        assertEquals(3, execution.getExecutedSteps().size());
+        assertEquals(executor3, execution.getExecutedSteps().get(2));
+    }
+
+    @Test
+    public void testExecuteIndependentStepsOnExecutor() {
+        final CountDownLatch latch = new CountDownLatch(2);
+        Answer<Status> answer = new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                latch.countDown();
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                return Status.DONE;
+            }
+        };
+        when(executor1.execute(any(ChainStorage.class))).then(answer);
+        when(executor2.execute(any(ChainStorage.class))).then(answer);
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            ParallelChainWorker worker = new ParallelChainWorker("test", 
+                    Arrays.asList(executor1, executor2, executor3), new int[][]{{}, {}, {0, 1}}, executor);
+            ChainExecution execution = worker.createExecution();
+            execution.execute();
+
+            assertEquals(3, execution.getExecutedSteps().size());
+            assertEquals(executor3, execution.getExecutedSteps().get(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected=IllegalStateException.class)
+    public void testStepFailureOnExecutor() {
+        when(executor2.execute(any(ChainStorage.class))).thenThrow(new IllegalStateException("failure"));
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            new ParallelChainWorker("test", Arrays.asList(executor1, executor2, executor3), 
+                    new int[][]{{}, {}, {0, 1}}, executor).execute();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncDoesNotBlockExecutorThread() throws Exception {
+        when(executor3.execute(any(ChainStorage.class))).then(new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ((ChainStorage) invocation.getArguments()[0]).setResult("result");
+                return Status.DONE;
+            }
+        });
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ParallelChainWorker worker = new ParallelChainWorker("test", 
+                    Arrays.asList(executor1, executor2, executor3), new int[][]{{}, {}, {0, 1}}, executor);
+            ChainExecution execution = worker.createExecution();
+
+            assertEquals("result", execution.executeAsync(executor).get(5, TimeUnit.SECONDS));
+            assertTrue(execution.isFinished());
+            assertEquals(executor3, execution.getExecutedSteps().get(2));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testExecuteAsyncStepFailure() throws Exception {
+        when(executor2.execute(any(ChainStorage.class))).thenThrow(new IllegalStateException("failure"));
+
+        try {
+            createWorker(new int[][]{{}, {0}, {1}}).createExecution().executeAsync(pool).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException ex) {
+            assertThat(ex.getCause(), Matchers.instanceOf(IllegalStateException.class));
+        }
+        verify(executor3, never()).execute(any(ChainStorage.class));
+    }
+
+    @Test
+    public void testPostponedStepRetried() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.POSTPONE).thenReturn(Status.DONE);
+
+        ParallelChainWorker worker = createWorker(new int[][]{{}, {}, {0}});
+        ChainExecution execution = worker.createExecution();
+        execution.execute();
+
+        verify(executor1, times(2)).execute(any(ChainStorage.class));
+        verify(executor3, times(1)).execute(any(ChainStorage.class));
+        assertTrue(execution.getNotExecutedSteps().isEmpty());
+    }
+
+    @Test
+    public void testInfinitePostponeStopsDependents() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.POSTPONE);
+
+        ParallelChainWorker worker = createWorker(new int[][]{{}, {}, {0}});
+        ChainExecution execution = worker.createExecution();
+        execution.execute();
+
+        verify(executor1, times(2)).execute(any(ChainStorage.class));
+        verify(executor3, never()).execute(any(ChainStorage.class));
+        assertEquals(Arrays.asList(executor1, executor3), execution.getNotExecutedSteps());
+        assertTrue(execution.isFinished());
+    }
+
+    @Test
+    public void testAwaitingStepWokenByPut() {
+        final AtomicInteger calls = new AtomicInteger();
+        AwaitingChainStepExecutor awaitingStep = new AwaitingChainStepExecutor() {
+
+            public String[] getAwaitedNames() {
+                return new String[]{"key"};
+            }
+
+            public Class[] getAwaitedTypes() {
+                return new Class[0];
+            }
+
+            public Status execute(ChainStorage storage) {
+                calls.incrementAndGet();
+                return storage.get("key") != null ? Status.DONE : Status.POSTPONE;
+            }
+        };
+        when(executor1.execute(any(ChainStorage.class))).then(new Answer<Status>() {
+
+            public Status answer(InvocationOnMock invocation) throws Throwable {
+                ((ChainStorage) invocation.getArguments()[0]).put("key", "value");
+                return Status.DONE;
+            }
+        });
+
+        ParallelChainWorker worker = new ParallelChainWorker("test", 
+                Arrays.asList(awaitingStep, executor1, executor2), new int[][]{{}, {}, {0}}, pool);
+        ChainExecution execution = worker.createExecution();
+        execution.execute();
+
+        assertThat(calls.get(), Matchers.lessThanOrEqualTo(2));
+        verify(executor2, times(1)).execute(any(ChainStorage.class));
+        assertTrue(execution.getNotExecutedSteps().isEmpty());
+    }
+
+    @Test
+    public void testAwaitingStepWokenByConcurrentPut() {
+        AwaitingChainStepExecutor awaitingStep = new AwaitingChainStepExecutor() {
+
+            public String[] getAwaitedNames() {
+                return new String[]{"key"};
+            }
+
+            public Class[] getAwaitedTypes() {
+                return new Class[0];
+            }
+
+            public Status execute(ChainStorage storage) {
+                return storage.get("key") != null ? Status.DONE : Status.POSTPONE;
+            }
+        };
+        ChainStepExecutor putStep = new ChainStepExecutor() {
+
+            public Status execute(ChainStorage storage) {
+                storage.put("key", "value");
+                return Status.DONE;
+            }
+        };
+        final AtomicInteger dependentCalls = new AtomicInteger();
+        ChainStepExecutor dependentStep = new ChainStepExecutor() {
+
+            public Status execute(ChainStorage storage) {
+                dependentCalls.incrementAndGet();
+                return Status.DONE;
+            }
+        };
+
+        ParallelChainWorker worker = new ParallelChainWorker("test", 
+                Arrays.asList(awaitingStep, putStep, dependentStep), new int[][]{{}, {}, {0}}, pool);
+        for(int i = 0; i < 500; i++) {
+            ChainExecution execution = worker.createExecution();
+            execution.execute();
+
+            assertEquals(i + 1, dependentCalls.get());
+            assertTrue(execution.getNotExecutedSteps().isEmpty());
+        }
+    }
+
+    @Test
+    public void testSkippedStepReleasesDependents() {
+        when(executor1.execute(any(ChainStorage.class))).thenReturn(Status.SKIP);
+
+        ParallelChainWorker worker = createWorker(new int[][]{{}, {0}, {1}});
+        ChainExecution execution = worker.createExecution();
+        execution.execute();
+
+        assertEquals(Arrays.asList(executor1), execution.getSkippedSteps());
+        assertEquals(Arrays.asList(executor2, executor3), execution.getExecutedSteps());
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testCyclicDependencies() {
+        createWorker(new int[][]{{2}, {}, {0}});
+    }
+
+    @Test(timeout=5000)
+    public void testSortLongChain() {
+        int size = 100000;
+        List<ChainStepExecutor> steps = new ArrayList<ChainStepExecutor>(size);
+        int[][] dependencies = new int[size][];
+        for(int i = 0; i < size; i++) {
+            steps.add(i == size - 1 ? executor1 : executor2);
+            dependencies[i] = i == size - 1 ? new int[0] : new int[]{i + 1};
+        }
+
+        ParallelChainWorker worker = new ParallelChainWorker("test", steps, dependencies, pool);
+
+        assertSame(executor1, worker.getSteps().get(0));
+        int[][] sorted = worker.getDependencies();
+        for(int i = 1; i < size; i++) {
+            assertArrayEquals(new int[]{i - 1}, sorted[i]);
+        }
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDependencyOutOfRange() {
+        createWorker(new int[][]{{}, {3}, {}});
+    }
+
+    @Test(expected=IllegalArgumentException.class)
+    public void testDependenciesSizeMismatch() {
+        createWorker(new int[][]{{}, {}});
+    }
+
+    @Test(expected=UnsupportedOperationException.class)
+    public void testSetSteps() {
+        createWorker(new int[][]{{}, {}, {}}).setSteps(Arrays.asList(executor1));
+    }
+
+    @Test
+    public void testSetStepsWithDependencies() {
+        ParallelChainWorker worker = createWorker(new int[][]{{}, {}, {}});
+        ChainExecution execution = worker.createExecution();
+        worker.setSteps(Arrays.asList(executor2, executor1), new int[][]{{1}, {}});
+
+        assertEquals(Arrays.asList(executor1, executor2), worker.getSteps());
+        assertArrayEquals(new int[][]{{}, {0}}, worker.getDependencies());
+        execution.execute();
+        verify(executor3).execute(any(ChainStorage.class));
+        
+        execution = worker.createExecution();
+        execution.execute();
+        assertEquals(Arrays.asList(executor1, executor2), execution.getExecutedSteps());
+        assertTrue(execution.getNotExecutedSteps().isEmpty());
+    }
+
+    private ParallelChainWorker createWorker(int[][] dependencies) {
+        List<ChainStepExecutor> steps = Arrays.asList(executor1, executor2, executor3);
+        return new ParallelChainWorker("test", steps, dependencies, pool);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class SpscQueueTest {
+    
+    @Test
+    public void testOfferAndPoll() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(3);
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertTrue(queue.offer(3));
+        assertFalse(queue.offer(4));
+        assertEquals(3, queue.size());
+        
+        assertEquals(Integer.valueOf(1), queue.poll());
+        assertTrue(queue.offer(4));
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+    
+    @Test
+    public void testWrapAround() {
+        SpscQueue<Integer> queue = new SpscQueue<Integer>(2);
+        for(int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertTrue(queue.isEmpty());
+    }
+    
+    @Test
+    public void testConcurrentProducerAndConsumer() throws InterruptedException {
+        final SpscQueue<Integer> queue = new SpscQueue<Integer>(16);
+        final int count = 100000;
+        Thread producer = new Thread(new Runnable() {
+
+            public void run() {
+                for(int i = 0; i < count; i++) {
+                    while(!queue.offer(i)) {
+                        Thread.yield();
+                    }
+                }
+            }
+        });
+        producer.start();
+        
+        for(int i = 0; i < count; i++) {
+            Integer item;
+            while((item = queue.poll()) == null) {
+                Thread.yield();
+            }
+            assertEquals(i, item.intValue());
+        }
+        producer.join();
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testInvalidCapacity() {
+        new SpscQueue<Integer>(0);
+    }
+    
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.factories;
+
+import com.qitsoft.qitchain.ChainExecution;
+import com.qitsoft.qitchain.ChainStepExecutor;
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import com.qitsoft.qitchain.ChainStorage;
+import com.qitsoft.qitchain.ChainWorker;
+import com.qitsoft.qitchain.ParallelChainWorker;
+import com.qitsoft.qitchain.TimedChainStepExecutor;
+import com.qitsoft.qitchain.annotation.Chain;
+import com.qitsoft.qitchain.annotation.ChainListener;
+import com.qitsoft.qitchain.annotation.ChainListenerType;
+import com.qitsoft.qitchain.annotation.ChainStep;
+import com.qitsoft.qitchain.annotation.ChainStepScope;
+import com.qitsoft.qitchain.registry.ChainInfo;
+import com.qitsoft.qitchain.registry.ChainListenerInfo;
+import com.qitsoft.qitchain.registry.ChainStepInfo;
+import com.qitsoft.qitchain.registry.ChainsRegistry;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class SimpleChainFactoryTest {
+    
+    private static final String CHAIN_NAME = "simple-chain-factory-test";
+    
+    private static final String PARALLEL_CHAIN_NAME = "simple-chain-factory-parallel-test";
+    
+    private final SimpleChainFactory factory = new SimpleChainFactory(CHAIN_NAME);
+    
+    @Test
+    public void testCreate() {
+        ChainWorker worker = factory.create();
+        
+        assertEquals(CHAIN_NAME, worker.getName());
+        assertEquals(6, worker.getSteps().size());
+        ChainStorage storage = execute(worker);
+        assertNotNull(storage.get("first"));
+        assertSame(storage.get("first"), storage.get("second"));
+        assertSame(storage.get("first"), storage.get("listener"));
+        assertEquals(Boolean.TRUE, storage.get("static"));
+    }
+    
+    @Test
+    public void testSingletonsAreSharedByWorkers() {
+        assertSame(execute(factory.create()).get("first"), execute(factory.create()).get("first"));
+    }
+    
+    @Test
+    public void testExecutionScope() {
+        ChainWorker worker = factory.create();
+        
+        Object instance = execute(worker).get("execution");
+        assertNotNull(instance);
+        assertNotSame(instance, execute(worker).get("execution"));
+    }
+    
+    @Test
+    public void testThreadScope() throws InterruptedException {
+        final ChainWorker worker = factory.create();
+        
+        Object instance = execute(worker).get("thread");
+        assertNotNull(instance);
+        assertSame(instance, execute(worker).get("thread"));
+        
+        final AtomicReference<Object> otherInstance = new AtomicReference<Object>();
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                otherInstance.set(execute(worker).get("thread"));
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNotNull(otherInstance.get());
+        assertNotSame(instance, otherInstance.get());
+    }
+    
+    @Test
+    public void testPooledScope() {
+        ChainWorker worker = factory.create();
+        
+        Object instance = execute(worker).get("pooled");
+        assertNotNull(instance);
+        assertSame(instance, execute(worker).get("pooled"));
+    }
+    
+    @Test
+    public void testTimedStep() {
+        ChainWorker worker = factory.create();
+        
+        ChainStepExecutor step = worker.getSteps().get(worker.getSteps().size() - 1);
+        assertTrue(step instanceof TimedChainStepExecutor);
+        assertEquals(1000, ((TimedChainStepExecutor) step).getTimeoutMillis());
+    }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testClose() {
+        ChainsRegistry registry = spy(new ChainsRegistry());
+        SimpleChainFactory closedFactory = new SimpleChainFactory(registry, CHAIN_NAME);
+        closedFactory.create();
+        closedFactory.create();
+        ArgumentCaptor<Consumer> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(registry).addReloadListener(listener.capture());
+        
+        closedFactory.close();
+        closedFactory.close();
+        
+        verify(registry).removeReloadListener(listener.getValue());
+    }
+    
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRegistryDoesNotKeepFactory() throws InterruptedException {
+        ChainsRegistry registry = spy(new ChainsRegistry());
+        SimpleChainFactory collectedFactory = new SimpleChainFactory(registry, CHAIN_NAME);
+        collectedFactory.create();
+        ArgumentCaptor<Consumer> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(registry).addReloadListener(listener.capture());
+        
+        WeakReference<SimpleChainFactory> reference = new WeakReference<SimpleChainFactory>(collectedFactory);
+        collectedFactory = null;
+        for(int i = 0; i < 50 && reference.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(reference.get());
+        
+        listener.getValue().accept(registry.getChainInfo(CHAIN_NAME));
+        verify(registry).removeReloadListener(listener.getValue());
+    }
+    
+    @Test
+    public void testRefreshAfterReload() {
+        ChainsRegistry registry = spy(new ChainsRegistry());
+        SimpleChainFactory reloadingFactory = new SimpleChainFactory(registry, CHAIN_NAME);
+        ChainWorker worker = reloadingFactory.create();
+        List<ChainStepExecutor> steps = worker.getSteps();
+        ChainExecution execution = worker.createExecution();
+        
+        registry.invalidate();
+        registry.getChainInfo("simple-chain-factory-test-unknown");
+        assertSame(steps, worker.getSteps());
+        
+        doReturn(copyOf(registry.getChainInfo(CHAIN_NAME))).when(registry).getChainInfo(CHAIN_NAME);
+        reloadingFactory.refresh();
+        
+        assertNotSame(steps, worker.getSteps());
+        assertEquals(steps.size(), worker.getSteps().size());
+        execution.execute();
+        assertEquals(steps, execution.getExecutedSteps());
+        assertNotNull(execute(worker).get("listener"));
+    }
+    
+    @Test
+    public void testCreateWithDependencies() {
+        ChainWorker worker = new SimpleChainFactory(PARALLEL_CHAIN_NAME).create();
+        
+        assertTrue(worker instanceof ParallelChainWorker);
+        assertArrayEquals(new int[][]{{}, {0}, {0, 1}}, ((ParallelChainWorker) worker).getDependencies());
+        ChainStorage storage = execute(worker);
+        assertEquals("data", storage.get("consumed"));
+        assertEquals("data", storage.get("after"));
+    }
+    
+    @Test
+    public void testRefreshWithDependencies() {
+        ChainsRegistry registry = spy(new ChainsRegistry());
+        SimpleChainFactory reloadingFactory = new SimpleChainFactory(registry, PARALLEL_CHAIN_NAME);
+        ChainWorker worker = reloadingFactory.create();
+        List<ChainStepExecutor> steps = worker.getSteps();
+        
+        doReturn(copyOf(registry.getChainInfo(PARALLEL_CHAIN_NAME))).when(registry).getChainInfo(PARALLEL_CHAIN_NAME);
+        reloadingFactory.refresh();
+        
+        assertNotSame(steps, worker.getSteps());
+        assertArrayEquals(new int[][]{{}, {0}, {0, 1}}, ((ParallelChainWorker) worker).getDependencies());
+        assertEquals("data", execute(worker).get("consumed"));
+    }
+    
+    @Test
+    public void testRefreshRemovesListeners() throws NoSuchMethodException {
+        ChainsRegistry registry = mock(ChainsRegistry.class);
+        ChainStepInfo stepInfo = new ChainStepInfo(ScopedSteps.class, ScopedSteps.class.getMethod("thread", ChainStorage.class), 
+                0, new Class[0], new String[0], new String[0], 0, ChainStepScope.THREAD);
+        ChainListenerInfo listenerInfo = new ChainListenerInfo(FactoryChain.class, 
+                FactoryChain.class.getMethod("before", ChainWorker.class, ChainStorage.class), ChainListenerType.BEFORE);
+        ChainInfo chainInfo = chainInfo(stepInfo);
+        chainInfo.addListeners(Arrays.asList(listenerInfo));
+        when(registry.getChainInfo("mocked-chain")).thenReturn(chainInfo);
+        SimpleChainFactory mockedFactory = new SimpleChainFactory(registry, "mocked-chain");
+        ChainWorker worker = mockedFactory.create();
+        ChainStorage storage = execute(worker);
+        assertNotNull(storage.get("listener"));
+        
+        when(registry.getChainInfo("mocked-chain")).thenReturn(chainInfo(stepInfo));
+        mockedFactory.refresh();
+        
+        ChainStorage refreshedStorage = execute(worker);
+        assertNull(refreshedStorage.get("listener"));
+        assertSame(storage.get("thread"), refreshedStorage.get("thread"));
+    }
+    
+    @Test
+    public void testDefaultChain() {
+        ChainWorker worker = new SimpleChainFactory().create();
+        
+        assertEquals("#DEFAULT#", worker.getName());
+        assertNotNull(execute(worker).get("default"));
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testUnknownChain() {
+        new SimpleChainFactory("simple-chain-factory-test-unknown").create();
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testWrongPoolSize() {
+        factory.setPoolSize(0);
+    }
+    
+    private static ChainInfo copyOf(ChainInfo chainInfo) {
+        ChainInfo result = new ChainInfo();
+        result.setName(chainInfo.getName());
+        result.setAnnotationType(chainInfo.getAnnotationType());
+        for(Class type : chainInfo.getTypes()) {
+            result.addType(type);
+        }
+        result.addSteps(chainInfo.getSteps());
+        result.addListeners(chainInfo.getListeners());
+        return result;
+    }
+    
+    private static ChainInfo chainInfo(ChainStepInfo stepInfo) {
+        ChainInfo chainInfo = new ChainInfo();
+        chainInfo.setName("mocked-chain");
+        chainInfo.addSteps(Arrays.asList(stepInfo));
+        return chainInfo;
+    }
+    
+    private static ChainStorage execute(ChainWorker worker) {
+        ChainExecution execution = worker.createExecution();
+        execution.execute();
+        return execution.getStorage();
+    }
+    
+    @Chain(CHAIN_NAME)
+    public static class FactoryChain {
+        
+        @ChainStep(order=0)
+        public void first(ChainStorage storage) {
+            storage.put("first", this);
+        }
+        
+        @ChainStep(order=1)
+        public Status second(ChainStorage storage) {
+            storage.put("second", this);
+            return Status.DONE;
+        }
+        
+        @ChainStep(order=5, timeoutMillis=1000)
+        public static void staticStep(ChainStorage storage) {
+            storage.put("static", true);
+        }
+        
+        @ChainListener(type=ChainListenerType.BEFORE)
+        public void before(ChainWorker worker, ChainStorage storage) {
+            storage.put("listener", this);
+        }
+    }
+    
+    @Chain(CHAIN_NAME)
+    @ChainStep(order=2, scope=ChainStepScope.EXECUTION)
+    public static class ExecutionStep implements ChainStepExecutor {
+
+        public Status execute(ChainStorage storage) {
+            storage.put("execution", this);
+            return Status.DONE;
+        }
+    }
+    
+    @Chain(CHAIN_NAME)
+    public static class ScopedSteps {
+        
+        @ChainStep(order=3, scope=ChainStepScope.THREAD)
+        public void thread(ChainStorage storage) {
+            storage.put("thread", this);
+        }
+        
+        @ChainStep(order=4, scope=ChainStepScope.POOLED)
+        public void pooled(ChainStorage storage) {
+            storage.put("pooled", this);
+        }
+    }
+    
+    @Chain
+    @ChainStep(order=0)
+    public static class DefaultChainStep implements ChainStepExecutor {
+
+        public Status execute(ChainStorage storage) {
+            storage.put("default", this);
+            return Status.DONE;
+        }
+    }
+    
+    @Chain(PARALLEL_CHAIN_NAME)
+    public static class ParallelChain {
+        
+        @ChainStep(order=2, requires="data")
+        public void consume(ChainStorage storage) {
+            storage.put("consumed", storage.get("data"));
+        }
+        
+        @ChainStep(order=0, produces="data")
+        public void produce(ChainStorage storage) {
+            storage.put("data", "data");
+        }
+    }
+    
+    @Chain(PARALLEL_CHAIN_NAME)
+    @ChainStep(order=1, after=ParallelChain.class)
+    public static class AfterStep implements ChainStepExecutor {
+
+        public Status execute(ChainStorage storage) {
+            storage.put("after", storage.get("data"));
+            return Status.DONE;
+        }
+    }
+}
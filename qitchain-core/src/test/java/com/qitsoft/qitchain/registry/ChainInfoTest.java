@@ -19,9 +19,17 @@ import com.qitsoft.qitchain.annotation.ChainListenerType;
 import fixtures.SampleChain;
 import fixtures.SampleChain1;
 import fixtures.UnnamedBeforeListener;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
 import org.hamcrest.Matchers;
 import org.junit.Test;
 
@@ -132,6 +140,27 @@ public class ChainInfoTest {
     }
     
     
+    @Test
+    public void testComparatorWithClassesOfSameName() throws Exception {
+        URL location = SampleChain.class.getProtectionDomain().getCodeSource().getLocation();
+        URLClassLoader classLoader = new URLClassLoader(new URL[] {location}, getClass().getClassLoader().getParent());
+        try {
+            Class otherClass = classLoader.loadClass(SampleChain.class.getName());
+            assertNotSame(SampleChain.class, otherClass);
+            ChainStepInfo step = new ChainStepInfo(SampleChain.class, method1, 1);
+            ChainStepInfo otherStep = new ChainStepInfo(otherClass, otherClass.getMethod("step1"), 1);
+            
+            assertFalse(step.equals(otherStep));
+            assertEquals(-comparator.compare(step, otherStep), comparator.compare(otherStep, step));
+            assertFalse(comparator.compare(step, otherStep) == 0);
+            
+            chainInfo.addSteps(Arrays.asList(step, otherStep));
+            assertEquals(2, chainInfo.getSteps().size());
+        } finally {
+            classLoader.close();
+        }
+    }
+    
     @Test
     public void testChainStepInfoEquality() {
         assertFalse(new ChainStepInfo(SampleChain.class, method1, 0).equals(new ChainStepInfo(SampleChain1.class, method2, -1)));
@@ -186,6 +215,23 @@ public class ChainInfoTest {
         assertArrayEquals(new Object[]{step1, step2}, chainInfo.getSteps().toArray());
     }
     
+    /**
+     * The unordered steps used to be compared with the ordered ones by their
+     * class names, or to go last, depending on which step was added first,
+     * so the same steps added in other order were sorted otherwise.
+     */
+    @Test
+    public void testOrderedStepsBeforeUnordered() {
+        ChainStepInfo unordered = new ChainStepInfo(SampleChain.class, method1, -1);
+        ChainStepInfo ordered = new ChainStepInfo(SampleChain1.class, method2, 5);
+        chainInfo.addSteps(Arrays.asList(unordered, ordered));
+        assertArrayEquals(new Object[]{ordered, unordered}, chainInfo.getSteps().toArray());
+        
+        ChainInfo otherInfo = new ChainInfo();
+        otherInfo.addSteps(Arrays.asList(ordered, unordered));
+        assertArrayEquals(new Object[]{ordered, unordered}, otherInfo.getSteps().toArray());
+    }
+    
     @Test
     public void testAvoidStepsDuplication() {
         ChainStepInfo step1 = new ChainStepInfo(SampleChain.class, method1, 0);
@@ -197,6 +243,97 @@ public class ChainInfoTest {
         assertEquals(step1, chainInfo.getSteps().get(0));
     }
     
+    @Test
+    public void testAddStepsAfterDuplicate() {
+        ChainStepInfo step1 = new ChainStepInfo(SampleChain.class, method1, 0);
+        ChainStepInfo step2 = new ChainStepInfo(SampleChain1.class, method2, 1);
+        chainInfo.addSteps(Arrays.asList(step1));
+        chainInfo.addSteps(Arrays.asList(new ChainStepInfo(SampleChain.class, method1_dup, 2), step2));
+        
+        assertArrayEquals(new Object[]{step1, step2}, chainInfo.getSteps().toArray());
+    }
+    
+    @Test
+    public void testStepsListIsCached() {
+        chainInfo.addSteps(Arrays.asList(new ChainStepInfo(SampleChain.class, method1, 0)));
+        List<ChainStepInfo> steps = chainInfo.getSteps();
+        assertSame(steps, chainInfo.getSteps());
+        
+        chainInfo.addSteps(Arrays.asList(new ChainStepInfo(SampleChain.class, method1_dup, 1)));
+        assertSame(steps, chainInfo.getSteps());
+        
+        chainInfo.addSteps(Arrays.asList(new ChainStepInfo(SampleChain1.class, method2, 1)));
+        assertNotSame(steps, chainInfo.getSteps());
+        assertEquals(1, steps.size());
+        assertEquals(2, chainInfo.getSteps().size());
+    }
+    
+    @Test(expected=UnsupportedOperationException.class)
+    public void testStepsListIsImmutable() {
+        chainInfo.getSteps().add(new ChainStepInfo(SampleChain.class, method1, 0));
+    }
+    
+    @Test(timeout=10000)
+    public void testManySteps() {
+        List<Class> classes = new ArrayList<Class>();
+        Class type = SampleChain.class;
+        for(int i = 0; i < 250; i++) {
+            type = Array.newInstance(type, 0).getClass();
+            classes.add(type);
+        }
+        Map<String, Method> methods = new TreeMap<String, Method>();
+        for(Method method : String.class.getMethods()) {
+            methods.put(method.getName(), method);
+        }
+        List<Method> methodsList = new ArrayList<Method>(methods.values()).subList(0, 40);
+        
+        List<ChainStepInfo> steps = new ArrayList<ChainStepInfo>();
+        for(Class stepClass : classes) {
+            for(Method method : methodsList) {
+                int order = steps.size();
+                steps.add(new ChainStepInfo(stepClass, method, order, new Class[0], 
+                        new String[]{"data" + (order - 1)}, new String[]{"data" + order}));
+            }
+        }
+        Collections.shuffle(steps, new Random(1));
+        for(ChainStepInfo step : steps) {
+            chainInfo.addSteps(Collections.singletonList(step));
+            chainInfo.addSteps(Collections.singletonList(new ChainStepInfo(step.getStepClass(), step.getMethod(), -1)));
+        }
+        
+        List<ChainStepInfo> result = chainInfo.getSteps();
+        assertEquals(10000, result.size());
+        for(int i = 0; i < result.size(); i++) {
+            assertEquals(i, result.get(i).getOrder());
+            assertSame(result, chainInfo.getSteps());
+        }
+        
+        int[][] dependencies = chainInfo.getStepDependencies();
+        assertEquals(0, dependencies[0].length);
+        for(int i = 1; i < dependencies.length; i++) {
+            assertArrayEquals(new int[]{i - 1}, dependencies[i]);
+        }
+    }
+    
+    @Test
+    public void testStepDependencies() {
+        ChainStepInfo step1 = new ChainStepInfo(SampleChain.class, method1, 0, new Class[0], new String[0], new String[]{"data"});
+        ChainStepInfo step2 = new ChainStepInfo(SampleChain1.class, method2, 1, new Class[]{SampleChain.class}, new String[0], new String[0]);
+        ChainStepInfo step3 = new ChainStepInfo(UnnamedBeforeListener.class, method2, 2, new Class[0], new String[]{"data"}, new String[0]);
+        chainInfo.addSteps(Arrays.asList(step1, step2, step3));
+        
+        assertArrayEquals(new int[][]{{}, {0}, {0}}, chainInfo.getStepDependencies());
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testCyclicStepDependencies() {
+        ChainStepInfo step1 = new ChainStepInfo(SampleChain.class, method1, 0, new Class[]{SampleChain1.class}, new String[0], new String[0]);
+        ChainStepInfo step2 = new ChainStepInfo(SampleChain1.class, method2, 1, new Class[]{SampleChain.class}, new String[0], new String[0]);
+        chainInfo.addSteps(Arrays.asList(step1, step2));
+        
+        chainInfo.getStepDependencies();
+    }
+    
     @Test
     public void testAvoidListenersDuplication() {
         ChainListenerInfo listener1 = new ChainListenerInfo(SampleChain.class, method1, ChainListenerType.AFTER);
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.registry;
+
+import fixtures.TestChain;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainsRegistryCacheTest {
+    
+    private static final String CHAIN_NAME = "sample-chain";
+    
+    private File file;
+    
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("qitchain-registry", ".cache");
+        file.delete();
+    }
+    
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+    
+    @Test
+    public void testSaveAndLoad() {
+        ChainsRegistry registry = new ChainsRegistry();
+        Map<String, ChainInfo> chains = new HashMap<String, ChainInfo>();
+        chains.put(CHAIN_NAME, registry.getChainInfo(CHAIN_NAME));
+        chains.put(TestChain.class.getName(), registry.getChainInfo(TestChain.class));
+        
+        ChainsRegistryCache cache = new ChainsRegistryCache(file);
+        cache.save(42, chains);
+        Map<String, ChainInfo> loaded = cache.load(42, getClass().getClassLoader());
+        
+        assertEquals(chains.keySet(), loaded.keySet());
+        for(ChainInfo chainInfo : chains.values()) {
+            ChainInfo loadedInfo = loaded.get(chainInfo.getName());
+            assertEquals(chainInfo.getAnnotationType(), loadedInfo.getAnnotationType());
+            assertEquals(chainInfo.getTypes(), loadedInfo.getTypes());
+            assertEquals(chainInfo.getSteps(), loadedInfo.getSteps());
+            assertEquals(chainInfo.getListeners().size(), loadedInfo.getListeners().size());
+            assertTrue(loadedInfo.getListeners().containsAll(chainInfo.getListeners()));
+            for(int i = 0; i < chainInfo.getSteps().size(); i++) {
+                ChainStepInfo step = chainInfo.getSteps().get(i);
+                ChainStepInfo loadedStep = loadedInfo.getSteps().get(i);
+                assertEquals(step.getMethod(), loadedStep.getMethod());
+                assertEquals(step.getOrder(), loadedStep.getOrder());
+                assertEquals(step.getTimeoutMillis(), loadedStep.getTimeoutMillis());
+                assertEquals(step.getScope(), loadedStep.getScope());
+                assertArrayEquals(step.getAfter(), loadedStep.getAfter());
+                assertArrayEquals(step.getRequires(), loadedStep.getRequires());
+            }
+        }
+    }
+    
+    @Test
+    public void testLoadWithOtherFingerprint() {
+        ChainsRegistryCache cache = new ChainsRegistryCache(file);
+        cache.save(42, Collections.<String, ChainInfo>emptyMap());
+        
+        assertNotNull(cache.load(42, getClass().getClassLoader()));
+        assertNull(cache.load(43, getClass().getClassLoader()));
+    }
+    
+    @Test
+    public void testLoadCorruptedFile() throws IOException {
+        Files.write(file.toPath(), new byte[] {1, 2, 3});
+        
+        assertNull(new ChainsRegistryCache(file).load(42, getClass().getClassLoader()));
+    }
+    
+    @Test
+    public void testLoadForeignFile() throws IOException {
+        ChainsRegistryCache cache = new ChainsRegistryCache(file);
+        cache.save(42, Collections.<String, ChainInfo>emptyMap());
+        byte[] header = Arrays.copyOf(Files.readAllBytes(file.toPath()), 16);
+        
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.write(header);
+            out.writeInt(1);
+            out.writeUTF(CHAIN_NAME);
+            out.writeUTF(TestChain.class.getName());
+            out.writeInt(0);
+            out.writeInt(1);
+            out.writeUTF(Object.class.getName());
+            out.writeUTF(Object.class.getName());
+            out.writeUTF("toString");
+            out.writeInt(-1);
+        } finally {
+            out.close();
+        }
+        
+        assertNull(cache.load(42, getClass().getClassLoader()));
+    }
+    
+    @Test
+    public void testLoadMissingFile() {
+        assertNull(new ChainsRegistryCache(file).load(42, getClass().getClassLoader()));
+    }
+    
+    @Test
+    public void testFingerprintChangesWithEntry() throws IOException {
+        File entry = File.createTempFile("qitchain-entry", ".jar");
+        try {
+            URL url = entry.toURI().toURL();
+            long fingerprint = ChainsRegistryCache.fingerprint(Arrays.asList(url));
+            assertEquals(fingerprint, ChainsRegistryCache.fingerprint(Arrays.asList(url)));
+            
+            Files.write(entry.toPath(), new byte[] {1});
+            assertFalse(fingerprint == ChainsRegistryCache.fingerprint(Arrays.asList(url)));
+        } finally {
+            entry.delete();
+        }
+    }
+    
+    @Test
+    public void testRegistryReloadsCache() {
+        ChainsRegistry registry = new ChainsRegistry();
+        registry.setCacheFile(file);
+        ChainInfo chainInfo = registry.getChainInfo(CHAIN_NAME);
+        assertTrue(file.isFile());
+        
+        ChainsRegistry otherRegistry = new ChainsRegistry();
+        otherRegistry.setCacheFile(file);
+        ChainInfo cachedInfo = otherRegistry.getChainInfo(CHAIN_NAME);
+        
+        assertNotSame(chainInfo, cachedInfo);
+        assertEquals(chainInfo.getTypes(), cachedInfo.getTypes());
+        assertEquals(chainInfo.getSteps(), cachedInfo.getSteps());
+    }
+}
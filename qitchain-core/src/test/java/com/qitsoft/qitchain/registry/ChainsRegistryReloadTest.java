@@ -0,0 +1,270 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.registry;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Consumer;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainsRegistryReloadTest {
+    
+    private static final String PLUGIN_STEP = "package plugin;\n"
+            + "@com.qitsoft.qitchain.annotation.Chain(\"chain2\")\n"
+            + "@com.qitsoft.qitchain.annotation.ChainStep(order = 1)\n"
+            + "public class PluginStep implements com.qitsoft.qitchain.ChainStepExecutor {\n"
+            + "    public Status execute(com.qitsoft.qitchain.ChainStorage storage) {\n"
+            + "        return Status.DONE;\n"
+            + "    }\n"
+            + "}\n";
+    
+    private static final String PLUGIN_CHAIN = "package plugin;\n"
+            + "@com.qitsoft.qitchain.annotation.Chain(\"plugin-chain\")\n"
+            + "public class PluginChain {\n"
+            + "    @com.qitsoft.qitchain.annotation.ChainStep\n"
+            + "    public void step() {\n"
+            + "    }\n"
+            + "}\n";
+    
+    private final ChainsRegistry registry = new ChainsRegistry();
+    
+    private File directory;
+    
+    private URLClassLoader pluginClassLoader;
+    
+    @Before
+    public void setUp() throws IOException {
+        Assume.assumeNotNull(ToolProvider.getSystemJavaCompiler());
+        directory = Files.createTempDirectory("qitchain-plugin").toFile();
+    }
+    
+    @After
+    public void tearDown() throws IOException {
+        if (pluginClassLoader != null) {
+            pluginClassLoader.close();
+        }
+        if (directory != null) {
+            delete(directory);
+        }
+    }
+    
+    @Test
+    public void testScanClassLoader() throws IOException {
+        ChainInfo chain2 = registry.getChainInfo("chain2");
+        assertNull(registry.getChainInfo("plugin-chain"));
+        final List<String> reloaded = new ArrayList<String>();
+        registry.addReloadListener(new Consumer<ChainInfo>() {
+
+            public void accept(ChainInfo chainInfo) {
+                reloaded.add(chainInfo.getName());
+            }
+        });
+        
+        assertEquals(new HashSet<String>(Arrays.asList("chain2", "plugin-chain")), 
+                registry.scan(createPlugin(false)));
+        
+        assertEquals(1, chain2.getSteps().size());
+        assertEquals(1, chain2.getTypes().size());
+        ChainInfo reloadedChain2 = registry.getChainInfo("chain2");
+        assertNotSame(chain2, reloadedChain2);
+        assertEquals(2, reloadedChain2.getSteps().size());
+        assertEquals(2, reloadedChain2.getTypes().size());
+        assertNotNull(registry.getChainInfo("plugin-chain"));
+        assertEquals(new HashSet<String>(Arrays.asList("chain2", "plugin-chain")), new HashSet<String>(reloaded));
+    }
+    
+    @Test
+    public void testScanClassLoaderWithIndex() throws IOException {
+        ChainInfo sampleChain = registry.getChainInfo("sample-chain");
+        
+        assertEquals(new HashSet<String>(Arrays.asList("chain2")), registry.scan(createPlugin(true)));
+        
+        assertSame(sampleChain, registry.getChainInfo("sample-chain"));
+        assertEquals(2, registry.getChainInfo("chain2").getSteps().size());
+        assertNull(registry.getChainInfo("plugin-chain"));
+    }
+    
+    @Test
+    public void testScanClassLoaderWithPartialIndex() throws IOException {
+        assertEquals(1, registry.getChainInfo("chain2").getSteps().size());
+        URLClassLoader indexed = createPlugin(true);
+        File notIndexed = new File(directory, "not-indexed");
+        new File(notIndexed, "plugin").mkdirs();
+        Files.move(new File(directory, "classes/plugin/PluginChain.class").toPath(), 
+                new File(notIndexed, "plugin/PluginChain.class").toPath());
+        pluginClassLoader = new URLClassLoader(new URL[] {indexed.getURLs()[0], notIndexed.toURI().toURL()}, 
+                getClass().getClassLoader());
+        indexed.close();
+        
+        assertEquals(new HashSet<String>(Arrays.asList("chain2", "plugin-chain")), registry.scan(pluginClassLoader));
+        assertEquals(2, registry.getChainInfo("chain2").getSteps().size());
+        assertNotNull(registry.getChainInfo("plugin-chain"));
+    }
+    
+    @Test
+    public void testRescanIsIdempotent() throws IOException {
+        URLClassLoader classLoader = createPlugin(false);
+        registry.scan(classLoader);
+        ChainInfo chain2 = registry.getChainInfo("chain2");
+        
+        assertTrue(registry.scan(classLoader).isEmpty());
+        assertSame(chain2, registry.getChainInfo("chain2"));
+    }
+    
+    @Test
+    public void testInvalidateRescansClassLoaders() throws IOException {
+        registry.scan(createPlugin(false));
+        ChainInfo chain2 = registry.getChainInfo("chain2");
+        final List<String> reloaded = new ArrayList<String>();
+        registry.addReloadListener(new Consumer<ChainInfo>() {
+
+            public void accept(ChainInfo chainInfo) {
+                reloaded.add(chainInfo.getName());
+            }
+        });
+        
+        registry.invalidate();
+        assertNull(registry.getChainInfo("unknown-chain"));
+        
+        assertSame(chain2, registry.getChainInfo("chain2"));
+        assertEquals(2, chain2.getSteps().size());
+        assertNotNull(registry.getChainInfo("plugin-chain"));
+        assertTrue(reloaded.isEmpty());
+    }
+    
+    @Test
+    public void testScanReloadedPlugin() throws IOException {
+        URLClassLoader classLoader = createPlugin(false);
+        registry.scan(classLoader);
+        URLClassLoader reloadedLoader = new URLClassLoader(classLoader.getURLs(), getClass().getClassLoader());
+        try {
+            assertEquals(new HashSet<String>(Arrays.asList("chain2", "plugin-chain")), registry.scan(reloadedLoader));
+            
+            ChainInfo chain2 = registry.getChainInfo("chain2");
+            assertEquals(2, chain2.getSteps().size());
+            assertEquals(2, chain2.getTypes().size());
+            for(ChainStepInfo step : chain2.getSteps()) {
+                if (step.getStepClass().getName().equals("plugin.PluginStep")) {
+                    assertSame(reloadedLoader, step.getStepClass().getClassLoader());
+                }
+            }
+            assertEquals(1, registry.getChainInfo("plugin-chain").getSteps().size());
+            assertSame(reloadedLoader, registry.getChainInfo("plugin-chain").getSteps().get(0).getStepClass().getClassLoader());
+        } finally {
+            reloadedLoader.close();
+        }
+    }
+    
+    @Test
+    public void testRescanRemovesMissingClasses() throws IOException {
+        URLClassLoader classLoader = createPlugin(false);
+        registry.scan(classLoader);
+        assertNotNull(registry.getChainInfo("plugin-chain"));
+        
+        assertTrue(new File(directory, "classes/plugin/PluginChain.class").delete());
+        assertTrue(registry.scan(classLoader).isEmpty());
+        
+        assertNull(registry.getChainInfo("plugin-chain"));
+        assertEquals(2, registry.getChainInfo("chain2").getSteps().size());
+    }
+    
+    @Test
+    public void testRemoveReloadListener() throws IOException {
+        final List<String> reloaded = new ArrayList<String>();
+        Consumer<ChainInfo> listener = new Consumer<ChainInfo>() {
+
+            public void accept(ChainInfo chainInfo) {
+                reloaded.add(chainInfo.getName());
+            }
+        };
+        registry.addReloadListener(listener);
+        registry.removeReloadListener(listener);
+        
+        registry.scan(createPlugin(false));
+        assertTrue(reloaded.isEmpty());
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testScanNullClassLoader() {
+        registry.scan(null);
+    }
+    
+    /**
+     * Compiles the plugin classes and returns their class loader. The index
+     * lists only the step extending the existing chain.
+     */
+    private URLClassLoader createPlugin(boolean withIndex) throws IOException {
+        File sources = new File(directory, "sources");
+        File classes = new File(directory, "classes");
+        classes.mkdirs();
+        write(new File(sources, "plugin/PluginStep.java"), PLUGIN_STEP);
+        write(new File(sources, "plugin/PluginChain.java"), PLUGIN_CHAIN);
+        if (withIndex) {
+            write(new File(classes, ChainsRegistry.INDEX_RESOURCE), 
+                    "com.qitsoft.qitchain.annotation.Chain plugin.PluginStep\n");
+        }
+        
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        try {
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(Arrays.asList(
+                    new File(sources, "plugin/PluginStep.java"), new File(sources, "plugin/PluginChain.java")));
+            List<String> options = Arrays.asList("-d", classes.getPath(), "-proc:none",
+                    "-classpath", System.getProperty("java.class.path"));
+            assertTrue(compiler.getTask(null, fileManager, null, options, null, units).call());
+        } finally {
+            fileManager.close();
+        }
+        
+        pluginClassLoader = new URLClassLoader(new URL[] {classes.toURI().toURL()}, getClass().getClassLoader());
+        return pluginClassLoader;
+    }
+    
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+    }
+    
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -20,14 +20,24 @@ import com.google.common.collect.Collections2;
 import com.qitsoft.qitchain.annotation.Chain;
 import com.qitsoft.qitchain.annotation.ChainListenerType;
 import fixtures.*;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.hamcrest.*;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
 import org.junit.Before;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  *
@@ -188,6 +198,26 @@ public class ChainsRegistryTest {
         assertThat(chainInfo.getSteps(), Matchers.hasItem(chainStep(Chain3Step1.class, "execute")));
     }
     
+    @Test
+    public void testStepTimeout() {
+        ChainInfo chainInfo = registry.getChainInfo("timed-chain");
+        assertEquals(2, chainInfo.getSteps().size());
+        for(ChainStepInfo info : chainInfo.getSteps()) {
+            boolean timed = info.getMethod().getName().equals("timedStep");
+            assertEquals(info.getMethod().getName(), timed ? 500 : 0, info.getTimeoutMillis());
+        }
+    }
+    
+    @Test
+    public void testAsyncListeners() {
+        ChainInfo chainInfo = registry.getChainInfo("timed-chain");
+        assertEquals(2, chainInfo.getListeners().size());
+        for(ChainListenerInfo info : chainInfo.getListeners()) {
+            boolean async = info.getMethod().getName().equals("afterStepListener");
+            assertEquals(info.getMethod().getName(), async, info.isAsync());
+        }
+    }
+    
     @Test
     public void testAddListenersByMethodsInNamedChain() {
         ChainInfo chainInfo = registry.getChainInfo(CHAIN_NAME);
@@ -238,6 +268,76 @@ public class ChainsRegistryTest {
         assertThat(chainInfo.getListeners(), Matchers.not(Matchers.hasItem(chainListener(UnnamedAbstractListener.class, null, null))));
     }
     
+    @Test
+    public void testScanIndex() {
+        registry = Mockito.spy(registry);
+        Mockito.doAnswer(new Answer<Void>() {
+
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                registry.scanIndex("META-INF/qitchain/test-chains");
+                return null;
+            }
+        }).when(registry).scan();
+        
+        assertThat(registry.getChainInfo("chain2").getTypes(), Matchers.hasItem((Class) Chain2Step1.class));
+        assertThat(registry.getChainInfo(TestChain.class).getTypes(), Matchers.hasItem((Class) TestChainObject.class));
+        assertThat(registry.getChainInfo(TestChain.class).getTypes(), Matchers.not(Matchers.hasItem((Class) TestChainObject1.class)));
+        assertNull(registry.getChainInfo(CHAIN_NAME));
+    }
+    
+    @Test
+    public void testScanWithoutIndex() {
+        assertFalse(registry.scanIndex("META-INF/qitchain/missing"));
+    }
+    
+    @Test
+    public void testUnknownNameScannedOnce() {
+        registry = Mockito.spy(registry);
+        assertNull(registry.getChainInfo("unknown-chain"));
+        assertNull(registry.getChainInfo("unknown-chain"));
+        assertNull(registry.getChainInfo("other-unknown-chain"));
+        assertNotNull(registry.getChainInfo(CHAIN_NAME));
+        Mockito.verify(registry, Mockito.times(1)).scan();
+    }
+    
+    @Test
+    public void testInvalidate() {
+        registry = Mockito.spy(registry);
+        assertNull(registry.getChainInfo("unknown-chain"));
+        registry.invalidate();
+        assertNull(registry.getChainInfo("unknown-chain"));
+        assertNotNull(registry.getChainInfo(CHAIN_NAME));
+        Mockito.verify(registry, Mockito.times(2)).scan();
+    }
+    
+    @Test
+    public void testConcurrentMissesScanOnce() throws Exception {
+        registry = Mockito.spy(registry);
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<ChainInfo>> results = new ArrayList<Future<ChainInfo>>();
+            for(int i = 0; i < 8; i++) {
+                final String name = i % 2 == 0 ? CHAIN_NAME : "unknown-chain-" + i;
+                results.add(executor.submit(new Callable<ChainInfo>() {
+
+                    public ChainInfo call() throws Exception {
+                        start.await();
+                        return registry.getChainInfo(name);
+                    }
+                }));
+            }
+            start.countDown();
+            for(int i = 0; i < results.size(); i++) {
+                ChainInfo chainInfo = results.get(i).get(10, TimeUnit.SECONDS);
+                assertEquals(i % 2 == 0, chainInfo != null);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Mockito.verify(registry, Mockito.times(1)).scan();
+    }
+    
     @Test
     public void testGetInstance() {
         assertNotNull(ChainsRegistry.getInstance());
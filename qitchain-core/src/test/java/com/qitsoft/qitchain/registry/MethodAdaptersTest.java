@@ -0,0 +1,221 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.registry;
+
+import com.qitsoft.qitchain.ChainStepExecutor;
+import com.qitsoft.qitchain.ChainStepExecutor.Status;
+import com.qitsoft.qitchain.ChainStorage;
+import com.qitsoft.qitchain.ChainWorker;
+import com.qitsoft.qitchain.annotation.ChainListenerType;
+import com.qitsoft.qitchain.listeners.ChainAfterStepListener;
+import com.qitsoft.qitchain.listeners.ChainBeforeListener;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class MethodAdaptersTest {
+    
+    @Mock
+    private ChainStorage storage;
+    
+    @Mock
+    private ChainWorker worker;
+    
+    @Mock
+    private ChainStepExecutor step;
+    
+    @Test
+    public void testVoidStepWithoutParameters() throws Exception {
+        Steps steps = new Steps();
+        ChainStepExecutor executor = stepInfo("noParams").createExecutor(steps);
+        
+        assertEquals(Status.DONE, executor.execute(storage));
+        assertEquals(1, steps.calls.size());
+    }
+    
+    @Test
+    public void testStepWithStorageAndStatus() throws Exception {
+        Steps steps = new Steps();
+        ChainStepExecutor executor = stepInfo("withStorage", ChainStorage.class).createExecutor(steps);
+        
+        assertEquals(Status.SKIP, executor.execute(storage));
+        assertSame(storage, steps.calls.get(0));
+    }
+    
+    @Test
+    public void testStepReturningStatus() throws Exception {
+        assertEquals(Status.POSTPONE, stepInfo("postpone").createExecutor(new Steps()).execute(storage));
+    }
+    
+    @Test
+    public void testStaticStep() throws Exception {
+        Steps.staticCalls = 0;
+        stepInfo("staticStep", ChainStorage.class).createExecutor(null).execute(storage);
+        assertEquals(1, Steps.staticCalls);
+    }
+    
+    @Test
+    public void testPrivateStep() throws Exception {
+        Steps steps = new Steps();
+        assertEquals(Status.DONE, stepInfo("privateStep").createExecutor(steps).execute(storage));
+        assertEquals(1, steps.calls.size());
+    }
+    
+    @Test
+    public void testSameExecutorForStepObject() throws Exception {
+        ChainStepInfo info = new ChainStepInfo(ChainStepExecutor.class, 
+                ChainStepExecutor.class.getMethod("execute", ChainStorage.class), 0);
+        assertSame(step, info.createExecutor(step));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testStepWithWrongTarget() throws Exception {
+        stepInfo("noParams").createExecutor("target");
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testStepWithWrongParameters() throws Exception {
+        stepInfo("wrongParams", String.class).createExecutor(new Steps());
+    }
+    
+    @Test(expected=IllegalStateException.class)
+    public void testStepFailure() throws Exception {
+        stepInfo("failure").createExecutor(new Steps()).execute(storage);
+    }
+    
+    @Test
+    public void testListenerWithoutParameters() throws Exception {
+        Listeners listeners = new Listeners();
+        ChainListenerInfo info = new ChainListenerInfo(Listeners.class, 
+                Listeners.class.getMethod("before"), ChainListenerType.BEFORE);
+        
+        ((ChainBeforeListener) info.createListener(listeners)).onBefore(worker, storage);
+        assertEquals(1, listeners.calls.size());
+    }
+    
+    @Test
+    public void testListenerWithParameters() throws Exception {
+        Listeners listeners = new Listeners();
+        ChainListenerInfo info = new ChainListenerInfo(Listeners.class, 
+                Listeners.class.getMethod("afterStep", ChainWorker.class, ChainStepExecutor.class, 
+                        ChainStorage.class, Status.class), ChainListenerType.AFTER_STEP);
+        
+        ((ChainAfterStepListener) info.createListener(listeners)).onAfterStep(worker, step, storage, Status.SKIP);
+        assertSame(step, listeners.calls.get(1));
+        assertSame(Status.SKIP, listeners.calls.get(3));
+    }
+    
+    @Test
+    public void testPrivateListenerWithParameters() throws Exception {
+        Listeners listeners = new Listeners();
+        ChainListenerInfo info = new ChainListenerInfo(Listeners.class, 
+                Listeners.class.getDeclaredMethod("privateBefore", ChainWorker.class, ChainStorage.class), 
+                ChainListenerType.BEFORE);
+        
+        ((ChainBeforeListener) info.createListener(listeners)).onBefore(worker, storage);
+        assertSame(worker, listeners.calls.get(0));
+    }
+    
+    @Test
+    public void testSameListenerForListenerObject() throws Exception {
+        ChainBeforeListener listener = new ChainBeforeListener() {
+
+            public void onBefore(ChainWorker worker, ChainStorage storage) {
+            }
+        };
+        ChainListenerInfo info = new ChainListenerInfo(listener.getClass(), 
+                listener.getClass().getMethod("onBefore", ChainWorker.class, ChainStorage.class), 
+                ChainListenerType.BEFORE);
+        
+        assertSame(listener, info.createListener(listener));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testUnknownListenerType() throws Exception {
+        new ChainListenerInfo(Listeners.class, Listeners.class.getMethod("before"), ChainListenerType.UNKNOWN)
+                .createListener(new Listeners());
+    }
+    
+    private ChainStepInfo stepInfo(String name, Class... params) throws NoSuchMethodException {
+        return new ChainStepInfo(Steps.class, Steps.class.getDeclaredMethod(name, params), 0);
+    }
+    
+    public static class Steps {
+        
+        private static int staticCalls;
+        
+        private final List<Object> calls = new ArrayList<Object>();
+        
+        public void noParams() {
+            calls.add(null);
+        }
+        
+        public Status withStorage(ChainStorage storage) {
+            calls.add(storage);
+            return Status.SKIP;
+        }
+        
+        public Status postpone() {
+            return Status.POSTPONE;
+        }
+        
+        public static void staticStep(ChainStorage storage) {
+            staticCalls++;
+        }
+        
+        private void privateStep() {
+            calls.add(null);
+        }
+        
+        public void wrongParams(String value) {
+        }
+        
+        public void failure() {
+            throw new IllegalStateException("failure");
+        }
+    }
+    
+    public static class Listeners {
+        
+        private final List<Object> calls = new ArrayList<Object>();
+        
+        public void before() {
+            calls.add(null);
+        }
+        
+        public void afterStep(ChainWorker worker, ChainStepExecutor step, ChainStorage storage, Status status) {
+            calls.add(worker);
+            calls.add(step);
+            calls.add(storage);
+            calls.add(status);
+        }
+        
+        private void privateBefore(ChainWorker worker, ChainStorage storage) {
+            calls.add(worker);
+        }
+    }
+}
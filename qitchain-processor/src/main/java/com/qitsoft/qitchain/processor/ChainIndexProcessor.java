@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.processor;
+
+import com.qitsoft.qitchain.annotation.Chain;
+import com.qitsoft.qitchain.registry.ChainsRegistry;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates the {@link ChainsRegistry#INDEX_RESOURCE chains index} at compile
+ * time, so the registry finds the chain classes without scanning the
+ * classpath. The classes annotated with {@link Chain} or with an annotation
+ * which is itself a chain annotation are listed; their steps and listeners
+ * are read from the classes by the registry as before. The entries of the
+ * index left by the previous compilation are kept unless their classes are
+ * compiled again, so the incremental builds stay complete.
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+@SupportedAnnotationTypes("*")
+public class ChainIndexProcessor extends AbstractProcessor {
+
+    private final Set<String> entries = new LinkedHashSet<String>();
+
+    private final Set<String> processedTypes = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if (roundEnv.processingOver()) {
+            writeIndex();
+        } else {
+            for(Element element : roundEnv.getRootElements()) {
+                processElement(element);
+            }
+        }
+        return false;
+    }
+
+    private void processElement(Element element) {
+        if (!(element instanceof TypeElement)) {
+            return;
+        }
+
+        TypeElement type = (TypeElement) element;
+        String typeName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        processedTypes.add(typeName);
+        if (type.getKind() != ElementKind.ANNOTATION_TYPE) {
+            for(AnnotationMirror mirror : type.getAnnotationMirrors()) {
+                TypeElement annotation = (TypeElement) mirror.getAnnotationType().asElement();
+                if (isChainAnnotation(annotation, new HashSet<String>())) {
+                    entries.add(processingEnv.getElementUtils().getBinaryName(annotation) + " " + typeName);
+                }
+            }
+        }
+
+        for(Element enclosed : type.getEnclosedElements()) {
+            processElement(enclosed);
+        }
+    }
+
+    private boolean isChainAnnotation(TypeElement annotation, Set<String> visited) {
+        String name = annotation.getQualifiedName().toString();
+        if (Chain.class.getName().equals(name)) {
+            return true;
+        }
+        if (name.startsWith("java.lang.annotation.") || !visited.add(name)) {
+            return false;
+        }
+
+        for(AnnotationMirror mirror : annotation.getAnnotationMirrors()) {
+            if (isChainAnnotation((TypeElement) mirror.getAnnotationType().asElement(), visited)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void writeIndex() {
+        Set<String> previous = readPreviousIndex();
+        Set<String> result = new LinkedHashSet<String>();
+        for(String entry : previous) {
+            if (!processedTypes.contains(entry.substring(entry.indexOf(' ') + 1))) {
+                result.add(entry);
+            }
+        }
+        result.addAll(entries);
+        if (result.isEmpty() && previous.isEmpty()) {
+            return;
+        }
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT,
+                    "", ChainsRegistry.INDEX_RESOURCE);
+            Writer writer = new OutputStreamWriter(file.openOutputStream(), "UTF-8");
+            try {
+                for(String entry : result) {
+                    writer.write(entry);
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot write the chains index: " + ex.getMessage());
+        }
+    }
+
+    private Set<String> readPreviousIndex() {
+        Set<String> result = new LinkedHashSet<String>();
+        try {
+            FileObject file = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT,
+                    "", ChainsRegistry.INDEX_RESOURCE);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(file.openInputStream(), "UTF-8"));
+            try {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (line.indexOf(' ') > 0) {
+                        result.add(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            // there is no index of the previous compilation
+        } catch (IllegalArgumentException ex) {
+            // the location does not support reading
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2012 QitSoft LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.qitsoft.qitchain.processor;
+
+import com.qitsoft.qitchain.registry.ChainsRegistry;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Serj Soloviov <serj@qitsoft.com>
+ */
+public class ChainIndexProcessorTest {
+    
+    private File sources;
+    
+    private File classes;
+    
+    @Before
+    public void setUp() throws IOException {
+        sources = Files.createTempDirectory("qitchain-sources").toFile();
+        classes = Files.createTempDirectory("qitchain-classes").toFile();
+    }
+    
+    @After
+    public void tearDown() {
+        delete(sources);
+        delete(classes);
+    }
+    
+    @Test
+    public void testIndexChains() throws IOException {
+        write("sample/NamedChain.java", "package sample;\n"
+                + "@com.qitsoft.qitchain.annotation.Chain(\"named\")\n"
+                + "public class NamedChain {\n"
+                + "    @com.qitsoft.qitchain.annotation.Chain(\"nested\")\n"
+                + "    public static class Nested {}\n"
+                + "}\n");
+        write("sample/MyChain.java", "package sample;\n"
+                + "@com.qitsoft.qitchain.annotation.Chain\n"
+                + "@java.lang.annotation.Retention(java.lang.annotation.RetentionPolicy.RUNTIME)\n"
+                + "public @interface MyChain {}\n");
+        write("sample/MyChainStep.java", "package sample;\n"
+                + "@MyChain\n"
+                + "public class MyChainStep {}\n");
+        write("sample/NotChain.java", "package sample;\n"
+                + "@Deprecated\n"
+                + "public class NotChain {}\n");
+        
+        assertTrue(compile("sample/NamedChain.java", "sample/MyChain.java", "sample/MyChainStep.java", "sample/NotChain.java"));
+        
+        List<String> index = readIndex();
+        Collections.sort(index);
+        assertEquals(Arrays.asList(
+                "com.qitsoft.qitchain.annotation.Chain sample.NamedChain",
+                "com.qitsoft.qitchain.annotation.Chain sample.NamedChain$Nested",
+                "sample.MyChain sample.MyChainStep"), index);
+    }
+    
+    @Test
+    public void testKeepPreviousEntriesOnIncrementalBuild() throws IOException {
+        write("sample/FirstChain.java", "package sample;\n"
+                + "@com.qitsoft.qitchain.annotation.Chain(\"first\")\n"
+                + "public class FirstChain {}\n");
+        write("sample/SecondChain.java", "package sample;\n"
+                + "@com.qitsoft.qitchain.annotation.Chain(\"second\")\n"
+                + "public class SecondChain {}\n");
+        assertTrue(compile("sample/FirstChain.java", "sample/SecondChain.java"));
+        
+        write("sample/SecondChain.java", "package sample;\n"
+                + "public class SecondChain {}\n");
+        assertTrue(compile("sample/SecondChain.java"));
+        
+        assertEquals(Arrays.asList("com.qitsoft.qitchain.annotation.Chain sample.FirstChain"), readIndex());
+    }
+    
+    private void write(String path, String content) throws IOException {
+        File file = new File(sources, path);
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes("UTF-8"));
+    }
+    
+    private boolean compile(String... paths) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+        try {
+            List<File> files = new ArrayList<File>();
+            for(String path : paths) {
+                files.add(new File(sources, path));
+            }
+            Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(files);
+            List<String> options = Arrays.asList("-d", classes.getPath(), 
+                    "-classpath", System.getProperty("java.class.path") + File.pathSeparator + classes.getPath());
+            JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, options, null, units);
+            task.setProcessors(Arrays.asList(new ChainIndexProcessor()));
+            return task.call();
+        } finally {
+            fileManager.close();
+        }
+    }
+    
+    private List<String> readIndex() throws IOException {
+        File index = new File(classes, ChainsRegistry.INDEX_RESOURCE);
+        assertTrue(index.exists());
+        return Files.readAllLines(index.toPath(), Charset.forName("UTF-8"));
+    }
+    
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}